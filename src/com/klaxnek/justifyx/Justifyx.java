@@ -59,6 +59,7 @@ import de.felixbruns.jotify.media.Track;
 import de.felixbruns.jotify.media.User;
 import de.felixbruns.jotify.media.Link.InvalidSpotifyURIException;
 import de.felixbruns.jotify.player.SpotifyInputStream;
+import de.felixbruns.jotify.protocol.channel.Channel;
 
 import adamb.vorbis.CommentField;
 import adamb.vorbis.VorbisCommentHeader;
@@ -421,6 +422,7 @@ public class Justifyx extends JotifyConnection{
 		if (track.getFiles().size() == 0) return;
 		FileOutputStream fos = new FileOutputStream(file);
 		SpotifyInputStream sis = new SpotifyInputStream(protocol, track, bitrate, chunksize, substreamsize);
+		sis.setPriority(Channel.Priority.PRIORITY_BULK);
 
 		System.out.print(".");
 
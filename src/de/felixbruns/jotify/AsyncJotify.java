@@ -0,0 +1,142 @@
+package de.felixbruns.jotify;
+
+import java.awt.Image;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import de.felixbruns.jotify.media.Album;
+import de.felixbruns.jotify.media.Artist;
+import de.felixbruns.jotify.media.Playlist;
+import de.felixbruns.jotify.media.PlaylistContainer;
+import de.felixbruns.jotify.media.Result;
+import de.felixbruns.jotify.media.Track;
+import de.felixbruns.jotify.util.JotifyFuture;
+
+/**
+ * Asynchronous variants of the {@link Jotify} requests. Each method sends
+ * its request and returns immediately, so many requests can be in flight
+ * on one connection. The returned futures are completed once the response
+ * was received and parsed, or failed if the request or parsing failed.
+ */
+public interface AsyncJotify {
+	/**
+	 * Set the {@link Executor} that responses are parsed on and
+	 * {@link JotifyFuture} listeners are notified from.
+	 * 
+	 * @param executor An {@link Executor}.
+	 */
+	public void setExecutor(Executor executor);
+	
+	/**
+	 * Fetch a toplist.
+	 * 
+	 * @param type     A toplist type. e.g. "artist", "album" or "track".
+	 * @param region   A region code or null. e.g. "SE" or "DE".
+	 * @param username A username or null.
+	 * 
+	 * @return A future {@link Result} object.
+	 * 
+	 * @see Jotify#toplist(String, String, String)
+	 */
+	public JotifyFuture<Result> toplistAsync(String type, String region, String username);
+	
+	/**
+	 * Search for an artist, album or track.
+	 * 
+	 * @param query Your search query.
+	 * 
+	 * @return A future {@link Result} object.
+	 * 
+	 * @see Jotify#search(String)
+	 */
+	public JotifyFuture<Result> searchAsync(String query);
+	
+	/**
+	 * Get an image (e.g. artist portrait or cover).
+	 * 
+	 * @param id Id of the image to get.
+	 * 
+	 * @return A future {@link Image}.
+	 * 
+	 * @see Jotify#image(String)
+	 */
+	public JotifyFuture<Image> imageAsync(String id);
+	
+	/**
+	 * Browse artist info by id.
+	 * 
+	 * @param id A 32-character hex string or a Spotify URI.
+	 * 
+	 * @return A future {@link Artist} object, which is null if
+	 *         the response didn't describe an artist.
+	 * 
+	 * @see Jotify#browseArtist(String)
+	 */
+	public JotifyFuture<Artist> browseArtistAsync(String id);
+	
+	/**
+	 * Browse album info by id.
+	 * 
+	 * @param id A 32-character hex string or a Spotify URI.
+	 * 
+	 * @return A future {@link Album} object, which is null if
+	 *         the response didn't describe an album.
+	 * 
+	 * @see Jotify#browseAlbum(String)
+	 */
+	public JotifyFuture<Album> browseAlbumAsync(String id);
+	
+	/**
+	 * Browse track info by id.
+	 * 
+	 * @param id A 32-character hex string or a Spotify URI.
+	 * 
+	 * @return A future {@link Track} object, which is null if
+	 *         the track wasn't found.
+	 * 
+	 * @see Jotify#browseTrack(String)
+	 */
+	public JotifyFuture<Track> browseTrackAsync(String id);
+	
+	/**
+	 * Browse information for multiple tracks by id.
+	 * 
+	 * @param ids A {@link List} of ids identifying the tracks to browse.
+	 * 
+	 * @return A future list of {@link Track} objects.
+	 * 
+	 * @see Jotify#browseTracks(List)
+	 */
+	public JotifyFuture<List<Track>> browseTracksAsync(List<String> ids);
+	
+	/**
+	 * Request multiple replacement tracks.
+	 * 
+	 * @param tracks The tracks to search the replacements for.
+	 * 
+	 * @return A future list of {@link Track} objects.
+	 * 
+	 * @see Jotify#replacement(List)
+	 */
+	public JotifyFuture<List<Track>> replacementAsync(List<Track> tracks);
+	
+	/**
+	 * Get stored user playlists.
+	 * 
+	 * @return A future {@link PlaylistContainer}.
+	 * 
+	 * @see Jotify#playlistContainer()
+	 */
+	public JotifyFuture<PlaylistContainer> playlistContainerAsync();
+	
+	/**
+	 * Get a playlist.
+	 * 
+	 * @param id Id of the playlist to load.
+	 * 
+	 * @return A future {@link Playlist} object.
+	 * 
+	 * @see Jotify#playlist(String)
+	 */
+	public JotifyFuture<Playlist> playlistAsync(String id);
+}
@@ -3,6 +3,8 @@ package de.felixbruns.jotify;
 import java.awt.Image;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.*;
 import java.util.concurrent.*;
@@ -18,7 +20,7 @@ import de.felixbruns.jotify.protocol.*;
 import de.felixbruns.jotify.protocol.channel.*;
 import de.felixbruns.jotify.util.*;
 
-public class JotifyConnection implements Jotify, CommandListener {
+public class JotifyConnection implements Jotify, AsyncJotify, CommandListener, ConnectionListener {
 	/*
 	 * Values for browsing media.
 	 */
@@ -26,11 +28,18 @@ public class JotifyConnection implements Jotify, CommandListener {
 	private static final int BROWSE_ALBUM  = 2;
 	private static final int BROWSE_TRACK  = 3;
 	
+	/*
+	 * Reconnect attempts after the connection was lost and delay
+	 * before the first retry in ms, doubled after each failure.
+	 */
+	private static final int  RECONNECT_ATTEMPTS = 5;
+	private static final long RECONNECT_DELAY    = 1000;
+	
 	/*
 	 * Session and protocol associated with this connection.
 	 */
-	protected Session  session;
-	protected Protocol protocol;
+	protected Session           session;
+	protected volatile Protocol protocol;
 	
 	/*
 	 * User information.
@@ -41,29 +50,130 @@ public class JotifyConnection implements Jotify, CommandListener {
 	/*
 	 * Status and timeout.
 	 */
-	private boolean  running;
-	private long     timeout;
-	private TimeUnit unit;
+	private boolean          running;
+	private volatile boolean closed;
+	private volatile boolean lost;
+	private long             timeout;
+	private TimeUnit         unit;
+	
+	/*
+	 * Optional reactor that receives packets for this connection,
+	 * instead of a dedicated I/O thread.
+	 */
+	private Reactor reactor;
+	
+	/*
+	 * Executor that responses are parsed on and channel listeners are
+	 * notified on. By default, a pool of daemon threads shared by all
+	 * connections, with at least two threads, so a slow channel can't
+	 * hold up all others.
+	 */
+	private Executor executor;
+	
+	private static final Executor PARSER_EXECUTOR = Executors.newFixedThreadPool(
+		Math.max(2, Runtime.getRuntime().availableProcessors()), new ThreadFactory(){
+			private int count = 0;
+			
+			public synchronized Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Parser-Thread-" + this.count++);
+				
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		}
+	);
 	
 	/**
 	 * Create a new Jotify instance using the default {@link Cache}
 	 * implementation and timeout value (10 seconds).
 	 */
 	public JotifyConnection(long timeout, TimeUnit unit){
+		this(timeout, unit, null);
+	}
+	
+	/**
+	 * Create a new Jotify instance that receives packets on the
+	 * event-loop threads of the given {@link Reactor}, instead of
+	 * starting its own I/O thread. This allows many connections to
+	 * share a few threads.
+	 * 
+	 * @param timeout Timeout value to use.
+	 * @param unit    TimeUnit to use for timeout.
+	 * @param reactor A {@link Reactor} or null to use an I/O thread.
+	 */
+	public JotifyConnection(long timeout, TimeUnit unit, Reactor reactor){
 		this.session = new Session();
 		this.protocol = null;
 		this.running = false;
+		this.closed = false;
+		this.lost = false;
 		this.user = null;
 		this.userSemaphore = new Semaphore(2);
 		this.timeout = timeout;
 		this.unit = unit;
+		this.reactor = reactor;
+		this.executor = PARSER_EXECUTOR;
+
+		/* Keep the I/O thread free of listener work. */
+		this.session.setExecutor(this.executor);
 
+		/* Reclaim channels of requests that timed out. */
+		this.session.setChannelTimeout(timeout, unit);
+		
 		/* Acquire permits (country, prodinfo). */
 		this.userSemaphore.acquireUninterruptibly(2);
 	}
 
 	/**
-	 * Set timeout for requests.
+	 * Set the executor that responses are parsed on, channel and
+	 * future listeners are notified from. Needs to be called before
+	 * sending requests.
+	 * 
+	 * @param executor An {@link Executor}.
+	 */
+	public void setExecutor(Executor executor){
+		this.executor = executor;
+		
+		this.session.setExecutor(executor);
+	}
+	
+	/**
+	 * Set the servers to connect to, instead of looking them up
+	 * via DNS, e.g. a local {@link de.felixbruns.jotify.mock.MockServer}.
+	 * Needs to be called before logging in.
+	 * 
+	 * @param servers A {@link List} of servers or null to use DNS.
+	 */
+	public void setServers(List<InetSocketAddress> servers){
+		this.session.setServers(servers);
+	}
+	
+	/**
+	 * Capture the decrypted commands of this connection into a log,
+	 * which can be fed back with a {@link Replayer}. Call this before
+	 * logging in to capture the whole session.
+	 * 
+	 * @param recorder A {@link Recorder} or null to stop capturing.
+	 */
+	public void setRecorder(Recorder recorder){
+		this.session.setRecorder(recorder);
+	}
+	
+	/**
+	 * Get round-trip time, traffic and channel metrics of this connection.
+	 * Add a {@link MetricsListener} or register them via JMX with
+	 * {@link ProtocolMetrics#registerMBean(String)} to watch them.
+	 * 
+	 * @return The {@link ProtocolMetrics}, kept across reconnects.
+	 */
+	public ProtocolMetrics getMetrics(){
+		return this.session.getMetrics();
+	}
+	
+	/**
+	 * Set timeout for requests. Channels of requests that don't
+	 * complete in time, also of asynchronous ones, are aborted.
 	 * 
 	 * @param timeout Timeout value to use.
 	 * @param unit    TimeUnit to use for timeout.
@@ -71,6 +181,8 @@ public class JotifyConnection implements Jotify, CommandListener {
 	public void setTimeout(long timeout, TimeUnit unit){
 		this.timeout = timeout;
 		this.unit    = unit;
+		
+		this.session.setChannelTimeout(timeout, unit);
 	}
 	
 	/**
@@ -79,8 +191,7 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @param seconds Timeout in seconds to use.
 	 */
 	public void setTimeout(long seconds){
-		this.timeout = seconds;
-		this.unit    = TimeUnit.SECONDS;
+		this.setTimeout(seconds, TimeUnit.SECONDS);
 	}
 	
 	/**
@@ -104,11 +215,17 @@ public class JotifyConnection implements Jotify, CommandListener {
 		/* Create user object. */
 		this.user = new User(username);
 		
-		/* Add command handler. */
+		/* Add command and connection handlers. */
 		this.protocol.addListener(this);
+		this.protocol.addConnectionListener(this);
 		
-		/* Start I/O thread. */
-		new Thread(this, "I/O-Thread").start();
+		/* Let the reactor receive packets or start I/O thread. */
+		if(this.reactor != null){
+			this.reactor.register(this.protocol);
+		}
+		else{
+			new Thread(this, "I/O-Thread").start();
+		}
 	}
 	
 	/**
@@ -117,11 +234,17 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @throws ConnectionException
 	 */
 	public void close() throws ConnectionException {
+		/* Don't reconnect. */
+		this.closed = true;
+		
 		/* This will make receivePacket return immediately. */
 		if(this.protocol != null){
 			this.protocol.disconnect();
 		}
 		
+		/* Metrics of a closed connection are of no interest. */
+		this.session.getMetrics().unregisterMBean();
+		
 		/* Reset protocol to 'null'. */
 		this.protocol = null;
 	}
@@ -145,21 +268,138 @@ public class JotifyConnection implements Jotify, CommandListener {
 		/* Continuously receive packets until connection is closed. */
 		try{
 			while(true){
-				if(this.protocol == null){
+				Protocol protocol = this.protocol;
+				
+				if(protocol == null){
 					break;
 				}
 				
-				this.protocol.receivePacket();
+				try{
+					protocol.receivePacket();
+				}
+				catch(ProtocolException e){
+					/* Connection was closed or lost, make sure the socket is closed too. */
+					try{
+						protocol.disconnect();
+					}
+					catch(ConnectionException ce){
+						/* Just don't care. */
+					}
+					
+					/* Reconnect, unless closed on purpose. */
+					if(this.closed || !this.reconnect(protocol)){
+						break;
+					}
+				}
 			}
 		}
-		catch(ProtocolException e){
-			/* Connection was closed. */
-		}
 		finally{
 			this.running = false;
 		}
 	}
 	
+	/**
+	 * Reconnects in the background, if the connection of a
+	 * {@link Reactor} was lost, then registers it again.
+	 * 
+	 * @param protocol The {@link Protocol} that lost its connection.
+	 */
+	public void connectionLost(final Protocol protocol){
+		/* Closed on purpose or not using a reactor. */
+		if(this.closed || this.reactor == null){
+			return;
+		}
+		
+		/* Don't block the event-loop thread. */
+		new Thread("Reconnect-Thread"){
+			public void run(){
+				if(reconnect(protocol)){
+					try{
+						reactor.register(protocol);
+					}
+					catch(ConnectionException e){
+						System.err.println("Error registering connection: " + e.getMessage());
+						
+						protocol.getChannels().failAll();
+					}
+				}
+			}
+		}.start();
+	}
+	
+	/*
+	 * Authenticate again after the connection was lost and send
+	 * outstanding requests on the new connection. If that fails
+	 * repeatedly, outstanding requests fail instead of timing out.
+	 */
+	private boolean reconnect(Protocol protocol){
+		long delay = RECONNECT_DELAY;
+		
+		/* Country and product info will be sent again. */
+		this.userSemaphore.drainPermits();
+		
+		for(int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !this.closed; attempt++){
+			try{
+				this.session.reauthenticate();
+				
+				protocol.replayChannels();
+				
+				return true;
+			}
+			catch(ConnectionException e){
+				System.err.println("Error reconnecting: " + e.getMessage());
+			}
+			catch(AuthenticationException e){
+				System.err.println("Error reconnecting: " + e.getMessage());
+			}
+			catch(ProtocolException e){
+				System.err.println("Error reconnecting: " + e.getMessage());
+			}
+			
+			/* Back off before trying again. */
+			if(attempt < RECONNECT_ATTEMPTS){
+				try{
+					Thread.sleep(delay);
+				}
+				catch(InterruptedException e){
+					break;
+				}
+				
+				delay *= 2;
+			}
+		}
+		
+		/* Give up, keep user data of the previous connection. */
+		protocol.getChannels().failAll();
+		
+		this.lost = true;
+		
+		this.userSemaphore.release(2);
+		
+		return false;
+	}
+	
+	/**
+	 * Check if this connection is logged in and connected.
+	 * 
+	 * @return true if connected, false otherwise.
+	 */
+	public boolean isConnected(){
+		Protocol protocol = this.protocol;
+		
+		return protocol != null && protocol.isConnected();
+	}
+	
+	/**
+	 * Check if this connection was closed or lost for good, i.e. it
+	 * isn't reconnecting in the background and won't be connected again.
+	 * 
+	 * @return true if closed for good, false otherwise.
+	 */
+	public boolean isClosed(){
+		return this.closed || this.lost;
+	}
+	
 	/**
 	 * Get user info.
 	 * 
@@ -197,8 +437,28 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Result
 	 */
 	public Result toplist(String type, String region, String username) throws TimeoutException {
-		/* Create channel callback and parameter map. */
-		ChannelCallback callback   = new ChannelCallback();
+		return this.await(this.toplistAsync(type, region, username));
+	}
+	
+	/**
+	 * Fetch a toplist asynchronously.
+	 * 
+	 * @param type     A toplist type. e.g. "artist", "album" or "track".
+	 * @param region   A region code or null. e.g. "SE" or "DE".
+	 * @param username A username or null.
+	 * 
+	 * @return A future {@link Result} object.
+	 * 
+	 * @see Result
+	 */
+	public JotifyFuture<Result> toplistAsync(String type, String region, String username){
+		/* Create channel future and parameter map. */
+		ChannelFuture<Result> future = new ChannelFuture<Result>(this.executor){
+			protected Result parse(byte[] data){
+				/* Create result from XML. */
+				return XMLMediaParser.parseResult(data, "UTF-8");
+			}
+		};
 		Map<String, String> params = new HashMap<String, String>();
 		
 		/* Add parameters. */
@@ -208,17 +468,13 @@ public class JotifyConnection implements Jotify, CommandListener {
 		
 		/* Send toplist request. */
 		try{
-			this.protocol.sendToplistRequest(callback, params);
+			this.protocol.sendToplistRequest(future, params);
 		}
 		catch(ProtocolException e){
-			return null;
+			future.fail(e);
 		}
 		
-		/* Get data. */
-		byte[] data = callback.get(this.timeout, this.unit);
-		
-		/* Create result from XML. */
-		return XMLMediaParser.parseResult(data, "UTF-8");
+		return future;
 	}
 	
 	/**
@@ -231,26 +487,40 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Result
 	 */
 	public Result search(String query) throws TimeoutException {
-		/* Create channel callback. */
-		ChannelCallback callback = new ChannelCallback();
+		return this.await(this.searchAsync(query));
+	}
+	
+	/**
+	 * Search for an artist, album or track asynchronously.
+	 * 
+	 * @param query Your search query.
+	 * 
+	 * @return A future {@link Result} object.
+	 * 
+	 * @see Result
+	 */
+	public JotifyFuture<Result> searchAsync(final String query){
+		/* Create channel future. */
+		ChannelFuture<Result> future = new ChannelFuture<Result>(this.executor){
+			protected Result parse(byte[] data){
+				/* Create result from XML. */
+				Result result = XMLMediaParser.parseResult(data, "UTF-8");
+				
+				result.setQuery(query);
+				
+				return result;
+			}
+		};
 		
 		/* Send search query. */
 		try{
-			this.protocol.sendSearchQuery(callback, query);
+			this.protocol.sendSearchQuery(future, query);
 		}
 		catch(ProtocolException e){
-			return null;
+			future.fail(e);
 		}
 		
-		/* Get data. */
-		byte[] data = callback.get(this.timeout, this.unit);
-		
-		/* Create result from XML. */
-		Result result = XMLMediaParser.parseResult(data, "UTF-8");
-		
-		result.setQuery(query);
-		
-		return result;
+		return future;
 	}
 	
 	/**
@@ -265,44 +535,50 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Image
 	 */
 	public Image image(String id) throws TimeoutException {
-		/* Data buffer. */
-		byte[] data;
-		
-			/* Create channel callback. */
-			ChannelCallback callback = new ChannelCallback();
-			
-			/* Send image request. */
-			try{
-				this.protocol.sendImageRequest(callback, id);
-			}
-			catch(ProtocolException e){
-				return null;
+		return this.await(this.imageAsync(id));
+	}
+	
+	/**
+	 * Get an image (e.g. artist portrait or cover) asynchronously.
+	 * 
+	 * @param id Id of the image to get.
+	 * 
+	 * @return A future {@link Image}.
+	 * 
+	 * @see Image
+	 */
+	public JotifyFuture<Image> imageAsync(String id){
+		/* Create channel future. */
+		ChannelFuture<Image> future = new ChannelFuture<Image>(this.executor){
+			protected Image parse(byte[] data) throws IOException {
+				/* Create Image. */
+				return ImageIO.read(new ByteArrayInputStream(data));
 			}
-			
-			/* Get data. */
-			data = callback.get(this.timeout, this.unit);
-			
-		/* Create Image. */
+		};
+		
+		/* Send image request. */
 		try{
-			return ImageIO.read(new ByteArrayInputStream(data));
+			this.protocol.sendImageRequest(future, id);
 		}
-		catch(IOException e){
-			return null;
+		catch(ProtocolException e){
+			future.fail(e);
 		}
+		
+		return future;
 	}
 	
 	/**
 	 * Browse artist, album or track info.
 	 * 
-	 * @param type Type of media to browse for.
-	 * @param id   A 32-character hex string or a Spotify URI.
+	 * @param future A {@link ChannelFuture} parsing the response.
+	 * @param type   Type of media to browse for.
+	 * @param id     A 32-character hex string or a Spotify URI.
 	 * 
-	 * @return An {@link XMLElement} object holding the data or null
-	 *         on failure.
+	 * @return The given future.
 	 * 
 	 * @see BrowseType
 	 */
-	private Object browse(int type, String id) throws TimeoutException {
+	private <T> JotifyFuture<T> browse(ChannelFuture<T> future, int type, String id){
 		/*
 		 * Check if id is a 32-character hex string,
 		 * if not try to parse it as a Spotify URI.
@@ -329,21 +605,15 @@ public class JotifyConnection implements Jotify, CommandListener {
 			}
 		}
 		
-		/* Create channel callback. */
-		ChannelCallback callback = new ChannelCallback();
-		
 		/* Send browse request. */
 		try{
-			this.protocol.sendBrowseRequest(callback, type, id);
+			this.protocol.sendBrowseRequest(future, type, id);
 		}
 		catch(ProtocolException e){
-			return null;
+			future.fail(e);
 		}
 		
-		/* Create object from XML. */
-		return XMLMediaParser.parse(
-			callback.get(this.timeout, this.unit), "UTF-8"
-		);
+		return future;
 	}
 	
 	/**
@@ -357,14 +627,31 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Artist
 	 */
 	public Artist browseArtist(String id) throws TimeoutException {
-		/* Browse. */
-		Object artist = this.browse(BROWSE_ARTIST, id);
-		
-		if(artist instanceof Artist){
-			return (Artist)artist;
-		}
-		
-		return null;
+		return this.await(this.browseArtistAsync(id));
+	}
+	
+	/**
+	 * Browse artist info by id asynchronously.
+	 * 
+	 * @param id A 32-character hex string or a Spotify URI.
+	 * 
+	 * @return A future {@link Artist} object.
+	 * 
+	 * @see Artist
+	 */
+	public JotifyFuture<Artist> browseArtistAsync(String id){
+		return this.browse(new ChannelFuture<Artist>(this.executor){
+			protected Artist parse(byte[] data){
+				/* Create object from XML. */
+				Object artist = XMLMediaParser.parse(data, "UTF-8");
+				
+				if(artist instanceof Artist){
+					return (Artist)artist;
+				}
+				
+				return null;
+			}
+		}, BROWSE_ARTIST, id);
 	}
 	
 	/**
@@ -392,14 +679,31 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Album
 	 */
 	public Album browseAlbum(String id) throws TimeoutException {
-		/* Browse. */
-		Object album = this.browse(BROWSE_ALBUM, id);
-		
-		if(album instanceof Album){
-			return (Album)album;
-		}
-		
-		return null;
+		return this.await(this.browseAlbumAsync(id));
+	}
+	
+	/**
+	 * Browse album info by id asynchronously.
+	 * 
+	 * @param id A 32-character hex string or a Spotify URI.
+	 * 
+	 * @return A future {@link Album} object.
+	 * 
+	 * @see Album
+	 */
+	public JotifyFuture<Album> browseAlbumAsync(String id){
+		return this.browse(new ChannelFuture<Album>(this.executor){
+			protected Album parse(byte[] data){
+				/* Create object from XML. */
+				Object album = XMLMediaParser.parse(data, "UTF-8");
+				
+				if(album instanceof Album){
+					return (Album)album;
+				}
+				
+				return null;
+			}
+		}, BROWSE_ALBUM, id);
 	}
 	
 	/**
@@ -426,20 +730,37 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Track
 	 */
 	public Track browseTrack(String id) throws TimeoutException {
-		/* Browse. */
-		Object object = this.browse(BROWSE_TRACK, id);
-		
-		if(object instanceof Result){
-			Result result = (Result)object;
-			
-			if(result.getTracks().isEmpty()){
+		return this.await(this.browseTrackAsync(id));
+	}
+	
+	/**
+	 * Browse track info by id asynchronously.
+	 * 
+	 * @param id A 32-character hex string or a Spotify URI.
+	 * 
+	 * @return A future {@link Track} object.
+	 * 
+	 * @see Track
+	 */
+	public JotifyFuture<Track> browseTrackAsync(String id){
+		return this.browse(new ChannelFuture<Track>(this.executor){
+			protected Track parse(byte[] data){
+				/* Create object from XML. */
+				Object object = XMLMediaParser.parse(data, "UTF-8");
+				
+				if(object instanceof Result){
+					Result result = (Result)object;
+					
+					if(result.getTracks().isEmpty()){
+						return null;
+					}
+					
+					return result.getTracks().get(0);
+				}
+				
 				return null;
 			}
-			
-			return result.getTracks().get(0);
-		}
-		
-		return null;
+		}, BROWSE_TRACK, id);
 	}
 	
 	/**
@@ -465,12 +786,19 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Track
 	 */
 	public List<Track> browseTracks(List<String> ids) throws TimeoutException {
-		/* Data buffer. */
-		byte[] data;
-		
-		/* Create cache hash. */
-		StringBuffer hashBuffer = new StringBuffer();
-		
+		return this.await(this.browseTracksAsync(ids));
+	}
+	
+	/**
+	 * Browse information for multiple tracks by id asynchronously.
+	 * 
+	 * @param ids A {@link List} of ids identifying the tracks to browse.
+	 * 
+	 * @return A future list of {@link Track} objects.
+	 * 
+	 * @see Track
+	 */
+	public JotifyFuture<List<Track>> browseTracksAsync(List<String> ids){
 		for(int i = 0; i < ids.size(); i++){
 			String id = ids.get(i);
 			
@@ -500,27 +828,25 @@ public class JotifyConnection implements Jotify, CommandListener {
 					);
 				}
 			}
-			
-			/* Append id to buffer in order to create a cache hash. */
-			hashBuffer.append(id);
 		}
 		
-			/* Create channel callback */
-			ChannelCallback callback = new ChannelCallback();
-			
-			/* Send browse request. */
-			try{
-				this.protocol.sendBrowseRequest(callback, BROWSE_TRACK, ids);
+		/* Create channel future. */
+		ChannelFuture<List<Track>> future = new ChannelFuture<List<Track>>(this.executor){
+			protected List<Track> parse(byte[] data){
+				/* Create result from XML. */
+				return XMLMediaParser.parseResult(data, "UTF-8").getTracks();
 			}
-			catch(ProtocolException e){
-				return null;
-			}
-			
-			/* Get data. */
-			data = callback.get(this.timeout, this.unit);
-			
-		/* Create result from XML. */
-		return XMLMediaParser.parseResult(data, "UTF-8").getTracks();
+		};
+		
+		/* Send browse request. */
+		try{
+			this.protocol.sendBrowseRequest(future, BROWSE_TRACK, ids);
+		}
+		catch(ProtocolException e){
+			future.fail(e);
+		}
+		
+		return future;
 	}
 	
 	/**
@@ -569,22 +895,36 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Track
 	 */
 	public List<Track> replacement(List<Track> tracks) throws TimeoutException {
-		/* Create channel callback */
-		ChannelCallback callback = new ChannelCallback();
+		return this.await(this.replacementAsync(tracks));
+	}
+	
+	/**
+	 * Request multiple replacement tracks asynchronously.
+	 * 
+	 * @param tracks The tracks to search the replacements for.
+	 * 
+	 * @return A future list of {@link Track} objects.
+	 * 
+	 * @see Track
+	 */
+	public JotifyFuture<List<Track>> replacementAsync(List<Track> tracks){
+		/* Create channel future. */
+		ChannelFuture<List<Track>> future = new ChannelFuture<List<Track>>(this.executor){
+			protected List<Track> parse(byte[] data){
+				/* Create result from XML. */
+				return XMLMediaParser.parseResult(data, "UTF-8").getTracks();
+			}
+		};
 		
-		/* Send browse request. */
+		/* Send replacement request. */
 		try{
-			this.protocol.sendReplacementRequest(callback, tracks);
+			this.protocol.sendReplacementRequest(future, tracks);
 		}
 		catch(ProtocolException e){
-			return null;
+			future.fail(e);
 		}
 		
-		/* Get data. */
-		byte[] data = callback.get(this.timeout, this.unit);
-		
-		/* Create result from XML. */
-		return XMLMediaParser.parseResult(data, "UTF-8").getTracks();
+		return future;
 	}
 	
 	/**
@@ -600,21 +940,40 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see PlaylistContainer
 	 */
 	public PlaylistContainer playlistContainer() throws TimeoutException {
-		/* Create channel callback. */
-		ChannelCallback callback = new ChannelCallback();
+		PlaylistContainer playlistContainer = this.await(this.playlistContainerAsync());
 		
-		/* Send request and parse response. */
+		if(playlistContainer == null){
+			return PlaylistContainer.EMPTY;
+		}
+		
+		return playlistContainer;
+	}
+	
+	/**
+	 * Get stored user playlists asynchronously.
+	 * 
+	 * @return A future {@link PlaylistContainer}.
+	 * 
+	 * @see PlaylistContainer
+	 */
+	public JotifyFuture<PlaylistContainer> playlistContainerAsync(){
+		/* Create channel future. */
+		ChannelFuture<PlaylistContainer> future = new ChannelFuture<PlaylistContainer>(this.executor){
+			protected PlaylistContainer parse(byte[] data){
+				/* Create and return playlist container. */
+				return XMLPlaylistParser.parsePlaylistContainer(data, "UTF-8");
+			}
+		};
+		
+		/* Send playlist container request. */
 		try{
-			this.protocol.sendPlaylistRequest(callback, null);
-			
-			/* Create and return playlist. */
-			return XMLPlaylistParser.parsePlaylistContainer(
-				callback.get(this.timeout, this.unit), "UTF-8"
-			);
+			this.protocol.sendPlaylistRequest(future, null);
 		}
 		catch(ProtocolException e){
-			return PlaylistContainer.EMPTY;
+			future.fail(e);
 		}
+		
+		return future;
 	}
 	
 	/**
@@ -628,6 +987,32 @@ public class JotifyConnection implements Jotify, CommandListener {
 	 * @see Playlist
 	 */
 	public Playlist playlist(String id, boolean cached) throws TimeoutException {
+		return this.await(this.playlistAsync(id));
+	}
+	
+	/**
+	 * Get a playlist.
+	 * 
+	 * @param id Id of the playlist to load.
+	 * 
+	 * @return A {@link Playlist} object or null on failure.
+	 * 
+	 * @see Playlist
+	 */
+	public Playlist playlist(String id) throws TimeoutException {
+		return this.playlist(id, false);
+	}
+	
+	/**
+	 * Get a playlist asynchronously.
+	 * 
+	 * @param id Id of the playlist to load.
+	 * 
+	 * @return A future {@link Playlist} object.
+	 * 
+	 * @see Playlist
+	 */
+	public JotifyFuture<Playlist> playlistAsync(String id){
 		/*
 		 * Check if id is a 32-character hex string,
 		 * if not try to parse it as a Spotify URI.
@@ -652,61 +1037,77 @@ public class JotifyConnection implements Jotify, CommandListener {
 			}
 		}
 		
-		/* Data buffer. */
-		byte[] data;
+		/* Create channel future. */
+		final String playlistId = id;
+		
+		ChannelFuture<Playlist> future = new ChannelFuture<Playlist>(this.executor){
+			protected Playlist parse(byte[] data){
+				/* Create and return playlist. */
+				return XMLPlaylistParser.parsePlaylist(data, "UTF-8", playlistId);
+			}
+		};
 		
-		/* Create channel callback */
-		ChannelCallback callback = new ChannelCallback();
-			
 		/* Send playlist request. */
 		try{
-			this.protocol.sendPlaylistRequest(callback, id);
+			this.protocol.sendPlaylistRequest(future, id);
 		}
 		catch(ProtocolException e){
-			return null;
+			future.fail(e);
 		}
-			
-		/* Get data. */
-		data = callback.get(this.timeout, this.unit);
 		
-		/* Create and return playlist. */
-		return XMLPlaylistParser.parsePlaylist(data, "UTF-8", id);
+		return future;
 	}
 	
 	/**
-	 * Get a playlist.
+	 * Wait for a future to be done, using the configured timeout.
 	 * 
-	 * @param id Id of the playlist to load.
+	 * @param future The future to wait for.
 	 * 
-	 * @return A {@link Playlist} object or null on failure.
+	 * @return The result or null on failure.
 	 * 
-	 * @see Playlist
+	 * @throws TimeoutException If the timeout elapsed. The future is cancelled then.
 	 */
-	public Playlist playlist(String id) throws TimeoutException {
-		return this.playlist(id, false);
+	private <T> T await(JotifyFuture<T> future) throws TimeoutException {
+		try{
+			return future.get(this.timeout, this.unit);
+		}
+		catch(TimeoutException e){
+			future.cancel(false);
+			
+			throw e;
+		}
+		catch(InterruptedException e){
+			return null;
+		}
+		catch(ExecutionException e){
+			return null;
+		}
+		catch(CancellationException e){
+			return null;
+		}
 	}
 	
 	/**
 	 * Handles incoming commands from the server.
 	 * 
 	 * @param command A command.
-	 * @param payload Payload of packet.
+	 * @param payload Read-only view of the packet payload.
 	 */
-	public void commandReceived(int command, byte[] payload){
-		//System.out.format("< Command: 0x%02x Length: %d\n", command, payload.length);
+	public void commandReceived(int command, ByteBuffer payload){
+		//System.out.format("< Command: 0x%02x Length: %d\n", command, payload.remaining());
 		
 		switch(command){
 			case Command.COMMAND_SECRETBLK: {
 				/* Check length. */
-				if(payload.length != 336){
-					System.err.format("Got command 0x02 with len %d, expected 336!\n", payload.length);
+				if(payload.remaining() != 336){
+					System.err.format("Got command 0x02 with len %d, expected 336!\n", payload.remaining());
 				}
 				
 				/* Check RSA public key. */
 				byte[] rsaPublicKey = RSA.keyToBytes(this.session.getRSAPublicKey());
 				
 				for(int i = 0; i < 128; i++){
-					if(payload[16 + i] != rsaPublicKey[i]){
+					if(payload.get(16 + i) != rsaPublicKey[i]){
 						System.err.format("RSA public key doesn't match! %d\n", i);
 						
 						break;
@@ -739,18 +1140,20 @@ public class JotifyConnection implements Jotify, CommandListener {
 				break;
 			}
 			case Command.COMMAND_CHANNELDATA: {
-				Channel.process(payload);
+				this.protocol.getChannels().process(payload);
 				
 				break;
 			}
 			case Command.COMMAND_CHANNELERR: {
-				Channel.error(payload);
+				this.protocol.getChannels().error(payload);
 				
 				break;
 			}
 			case Command.COMMAND_AESKEY: {
 				/* Channel id is at offset 2. AES Key is at offset 4. */
-				Channel.process(Arrays.copyOfRange(payload, 2, payload.length));
+				payload.position(2);
+				
+				this.protocol.getChannels().process(payload);
 				
 				break;
 			}
@@ -760,7 +1163,7 @@ public class JotifyConnection implements Jotify, CommandListener {
 			}
 			case Command.COMMAND_COUNTRYCODE: {
 				//System.out.println("Country: " + new String(payload, Charset.forName("UTF-8")));
-				this.user.setCountry(new String(payload, Charset.forName("UTF-8")));
+				this.user.setCountry(Charset.forName("UTF-8").decode(payload).toString());
 				
 				/* Release 'country' permit. */
 				this.userSemaphore.release();
@@ -774,20 +1177,27 @@ public class JotifyConnection implements Jotify, CommandListener {
 			case Command.COMMAND_NOTIFY: {
 				/* HTML-notification, shown in a yellow bar in the official client. */
 				/* Skip 11 byte header... */
-				System.out.println("Notification: " + new String(
-					Arrays.copyOfRange(payload, 11, payload.length), Charset.forName("UTF-8")
-				));
-				this.user.setNotification(new String(
-					Arrays.copyOfRange(payload, 11, payload.length), Charset.forName("UTF-8")
-				));
+				payload.position(11);
+				
+				String notification = Charset.forName("UTF-8").decode(payload).toString();
+				
+				System.out.println("Notification: " + notification);
+				this.user.setNotification(notification);
 				
 				break;
 			}
 			case Command.COMMAND_PRODINFO: {
-				this.user = XMLUserParser.parseUser(payload, "UTF-8", this.user);
+				final byte[] data = BufferUtilities.toBytes(payload);
 				
-				/* Release 'prodinfo' permit. */
-				this.userSemaphore.release();
+				/* Parse off the I/O thread. */
+				this.executor.execute(new Runnable(){
+					public void run(){
+						user = XMLUserParser.parseUser(data, "UTF-8", user);
+						
+						/* Release 'prodinfo' permit. */
+						userSemaphore.release();
+					}
+				});
 				
 				break;
 			}
@@ -799,14 +1209,14 @@ public class JotifyConnection implements Jotify, CommandListener {
 				break;
 			}
 			case Command.COMMAND_PLAYLISTCHANGED: {
-				System.out.format("Playlist '%s' changed!\n", Hex.toHex(payload));
+				System.out.format("Playlist '%s' changed!\n", Hex.toHex(BufferUtilities.toBytes(payload)));
 				
 				break;
 			}
 			default: {
 				/*
-				System.out.format("Unknown Command: 0x%02x Length: %d\n", command, payload.length);
-				System.out.println("Data: " + new String(payload));// + " " + Hex.toHex(payload));
+				System.out.format("Unknown Command: 0x%02x Length: %d\n", command, payload.remaining());
+				System.out.println("Data: " + new String(BufferUtilities.toBytes(payload)));// + " " + Hex.toHex(payload));
 				*/
 				// No mostramos nada silenciosamente. No es necesario mostrar datos de depuracion en un entorno normal
 				break;
@@ -0,0 +1,742 @@
+package de.felixbruns.jotify;
+
+import java.awt.Image;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import de.felixbruns.jotify.exceptions.AuthenticationException;
+import de.felixbruns.jotify.exceptions.ConnectionException;
+import de.felixbruns.jotify.media.Album;
+import de.felixbruns.jotify.media.Artist;
+import de.felixbruns.jotify.media.Playlist;
+import de.felixbruns.jotify.media.PlaylistContainer;
+import de.felixbruns.jotify.media.Result;
+import de.felixbruns.jotify.media.Track;
+import de.felixbruns.jotify.media.User;
+import de.felixbruns.jotify.protocol.Protocol;
+import de.felixbruns.jotify.protocol.Reactor;
+import de.felixbruns.jotify.protocol.channel.ChannelTable;
+import de.felixbruns.jotify.util.FutureListener;
+import de.felixbruns.jotify.util.JotifyFuture;
+import de.felixbruns.jotify.util.LatencyTracker;
+
+/**
+ * A pool of logged in {@link JotifyConnection}s. Each request is sent on
+ * the least loaded connection, so bulk transfers are spread over multiple
+ * sockets instead of being limited by a single one. Connections that are
+ * reconnecting are skipped, connections that were lost for good are
+ * replaced in the background by logging in again with the same credentials.
+ * 
+ * Browse and image requests are hedged: if one takes longer than most
+ * recent ones (see {@link #setHedging(double)}), the same request is sent
+ * on a second connection. The first response is used, the other request
+ * is aborted.
+ */
+public class JotifyPool implements Jotify, AsyncJotify {
+	/*
+	 * Load of a single channel in flight, in bytes. Channels of
+	 * unknown size (e.g. browse requests) are weighted by this.
+	 */
+	private static final long CHANNEL_LOAD = 64 * 1024;
+	
+	/* Delay before logging in again after replacing a connection failed, doubled up to a maximum, in ms. */
+	private static final long RETRY_DELAY     = 1000;
+	private static final long MAX_RETRY_DELAY = 60 * 1000;
+	
+	/* Percentile of recent latencies after which requests are hedged by default. */
+	public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+	
+	/* Thread sending hedged requests of all pools. */
+	private static final ScheduledExecutorService HEDGER = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Hedge-Thread");
+				
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		}
+	);
+	
+	/*
+	 * Connections in this pool and the credentials they
+	 * were logged in with.
+	 */
+	private List<Member> members;
+	
+	/*
+	 * Number of connections to log in, timeout, reactor, executor
+	 * and servers used for new connections.
+	 */
+	private int                     size;
+	private long                    timeout;
+	private TimeUnit                unit;
+	private Reactor                 reactor;
+	private Executor                executor;
+	private List<InetSocketAddress> servers;
+	
+	/*
+	 * Percentile of recent latencies after which requests are hedged
+	 * (0 to disable) and recent latencies of browse and image requests.
+	 */
+	private volatile double hedgePercentile;
+	private LatencyTracker  browseLatency;
+	private LatencyTracker  imageLatency;
+	
+	/**
+	 * Create a new pool of connections, each using its own I/O thread.
+	 * 
+	 * @param size    Number of connections to log in on {@link #login}.
+	 * @param timeout Timeout value to use.
+	 * @param unit    TimeUnit to use for timeout.
+	 */
+	public JotifyPool(int size, long timeout, TimeUnit unit){
+		this(size, timeout, unit, null);
+	}
+	
+	/**
+	 * Create a new pool of connections.
+	 * 
+	 * @param size    Number of connections to log in on {@link #login}.
+	 * @param timeout Timeout value to use.
+	 * @param unit    TimeUnit to use for timeout.
+	 * @param reactor A {@link Reactor} or null to use an I/O thread per connection.
+	 */
+	public JotifyPool(int size, long timeout, TimeUnit unit, Reactor reactor){
+		/* Check size. */
+		if(size <= 0){
+			throw new IllegalArgumentException("Size needs to be > 0.");
+		}
+		
+		this.members  = new ArrayList<Member>();
+		this.size     = size;
+		this.timeout  = timeout;
+		this.unit     = unit;
+		this.reactor  = reactor;
+		this.executor = null;
+		this.servers  = null;
+		
+		this.hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+		this.browseLatency   = new LatencyTracker();
+		this.imageLatency    = new LatencyTracker();
+	}
+	
+	/**
+	 * Log in the configured number of connections using
+	 * the specified username and password.
+	 * 
+	 * @param username Username to use.
+	 * @param password Corresponding password.
+	 * 
+	 * @throws ConnectionException
+	 * @throws AuthenticationException
+	 */
+	public void login(String username, String password) throws ConnectionException, AuthenticationException {
+		for(int i = 0; i < this.size; i++){
+			this.addConnection(username, password);
+		}
+	}
+	
+	/**
+	 * Log in one more connection, possibly using different credentials.
+	 * 
+	 * @param username Username to use.
+	 * @param password Corresponding password.
+	 * 
+	 * @throws ConnectionException
+	 * @throws AuthenticationException
+	 */
+	public void addConnection(String username, String password) throws ConnectionException, AuthenticationException {
+		Member member = new Member(username, password);
+		
+		member.connection = this.connect(username, password);
+		
+		synchronized(this.members){
+			this.members.add(member);
+		}
+	}
+	
+	/**
+	 * Close all connections of this pool.
+	 * 
+	 * @throws ConnectionException
+	 */
+	public void close() throws ConnectionException {
+		synchronized(this.members){
+			for(Member member : this.members){
+				member.connection.close();
+			}
+			
+			this.members.clear();
+		}
+	}
+	
+	/**
+	 * Does nothing, packets are received by the
+	 * I/O threads of the pooled connections.
+	 */
+	public void run(){
+		/* Nothing to do. */
+	}
+	
+	/**
+	 * Get the number of connections in this pool.
+	 * 
+	 * @return The number of connections.
+	 */
+	public int getSize(){
+		synchronized(this.members){
+			return this.members.size();
+		}
+	}
+	
+	/**
+	 * Get the protocol of the least loaded connection, e.g. to
+	 * request a substream with a {@link de.felixbruns.jotify.player.SpotifyInputStream}.
+	 * 
+	 * @return A {@link Protocol} object.
+	 */
+	public Protocol getProtocol(){
+		/* Select again if the connection was closed in the meantime. */
+		while(true){
+			Protocol protocol = this.select().protocol;
+			
+			if(protocol != null){
+				return protocol;
+			}
+		}
+	}
+	
+	/* Log in a new connection. */
+	private JotifyConnection connect(String username, String password) throws ConnectionException, AuthenticationException {
+		JotifyConnection connection = new JotifyConnection(this.timeout, this.unit, this.reactor);
+		
+		if(this.executor != null){
+			connection.setExecutor(this.executor);
+		}
+		
+		connection.setServers(this.servers);
+		
+		connection.login(username, password);
+		
+		return connection;
+	}
+	
+	/*
+	 * Select the least loaded connection. Load is the number of bytes
+	 * outstanding on a connection plus a fixed load per channel in flight.
+	 * Connections that are not connected are skipped.
+	 */
+	private JotifyConnection select(){
+		JotifyConnection selected = this.select(null);
+		
+		/* Check if any connection is left. */
+		if(selected == null){
+			throw new IllegalStateException("No connection available!");
+		}
+		
+		return selected;
+	}
+	
+	/* Select the least loaded connection other than the given one or null if there is none. */
+	private JotifyConnection select(JotifyConnection excluded){
+		JotifyConnection selected = null;
+		long             minimum  = Long.MAX_VALUE;
+		
+		synchronized(this.members){
+			if(this.members.isEmpty()){
+				throw new IllegalStateException("You need to login first!");
+			}
+			
+			for(Member member : this.members){
+				/* Replace connection that was lost for good. */
+				if(member.connection.isClosed()){
+					this.replace(member);
+				}
+				
+				/* Connections may be closed concurrently, read protocol only once. */
+				Protocol protocol = member.connection.protocol;
+				
+				/* Skip connections that are reconnecting or being replaced. */
+				if(protocol == null || !protocol.isConnected() || member.connection == excluded){
+					continue;
+				}
+				
+				/* Calculate load of connection. */
+				ChannelTable channels = protocol.getChannels();
+				long         load     = channels.getOutstanding() + channels.size() * CHANNEL_LOAD;
+				
+				if(load < minimum){
+					selected = member.connection;
+					minimum  = load;
+				}
+			}
+		}
+		
+		return selected;
+	}
+	
+	/*
+	 * Log in a new connection for a member in the background, unless that
+	 * is already happening or failed recently. Must hold members lock.
+	 */
+	private void replace(final Member member){
+		final JotifyConnection previous = member.connection;
+		
+		if(member.replacing || System.currentTimeMillis() < member.retryTime){
+			return;
+		}
+		
+		member.replacing = true;
+		
+		/* Don't block requests of other connections while logging in. */
+		new Thread("Replace-Thread"){
+			public void run(){
+				JotifyConnection connection = null;
+				
+				/* Make sure it doesn't live on, e.g. unregister its metrics. */
+				try{
+					previous.close();
+				}
+				catch(ConnectionException e){
+					/* Just don't care. */
+				}
+				
+				try{
+					connection = connect(member.username, member.password);
+				}
+				catch(Exception e){
+					System.err.println("Error replacing connection: " + e.getMessage());
+				}
+				
+				synchronized(members){
+					member.replacing = false;
+					
+					if(connection == null){
+						/* Back off before trying again. */
+						member.retryTime  = System.currentTimeMillis() + member.retryDelay;
+						member.retryDelay = Math.min(2 * member.retryDelay, MAX_RETRY_DELAY);
+						
+						return;
+					}
+					
+					member.retryDelay = RETRY_DELAY;
+					
+					/* Pool was closed in the meantime. */
+					if(!members.contains(member)){
+						try{
+							connection.close();
+						}
+						catch(ConnectionException e){
+							/* Just don't care. */
+						}
+						
+						return;
+					}
+					
+					member.connection = connection;
+				}
+			}
+		}.start();
+	}
+	
+	/*
+	 * Send a request on the least loaded connection. If hedging is enabled
+	 * and there is no response after the configured percentile of recent
+	 * latencies, send it on a second connection too.
+	 */
+	private <T> JotifyFuture<T> hedge(Request<T> request, LatencyTracker latency){
+		JotifyConnection connection = this.select();
+		Hedge<T>         hedge      = new Hedge<T>(request, latency, connection);
+		double           percentile = this.hedgePercentile;
+		long             delay      = (percentile > 0.0) ? latency.percentile(percentile) : -1;
+		
+		hedge.start();
+		
+		if(delay >= 0 && this.getSize() > 1 && !hedge.isDone()){
+			HEDGER.schedule(hedge, delay, TimeUnit.MILLISECONDS);
+		}
+		
+		return hedge;
+	}
+	
+	/* Wait for a hedged request using the timeout of the pool. */
+	private <T> T await(JotifyFuture<T> future) throws TimeoutException {
+		try{
+			return future.get(this.timeout, this.unit);
+		}
+		catch(TimeoutException e){
+			future.cancel(false);
+			
+			throw e;
+		}
+		catch(InterruptedException e){
+			return null;
+		}
+		catch(ExecutionException e){
+			return null;
+		}
+		catch(CancellationException e){
+			return null;
+		}
+	}
+	
+	/**
+	 * Set the percentile of recent latencies after which browse and image
+	 * requests are sent on a second connection too, if there is one. Lower
+	 * values reduce tail latency, but cause more duplicate requests.
+	 * 
+	 * @param percentile The percentile between 0.0 and 1.0 (default
+	 *                   {@link #DEFAULT_HEDGE_PERCENTILE}) or 0 to disable hedging.
+	 */
+	public void setHedging(double percentile){
+		if(percentile < 0.0 || percentile > 1.0){
+			throw new IllegalArgumentException("Percentile needs to be between 0.0 and 1.0.");
+		}
+		
+		this.hedgePercentile = percentile;
+	}
+	
+	/**
+	 * Set the executor that responses are parsed on for
+	 * all current and future connections of this pool.
+	 * 
+	 * @param executor An {@link Executor}.
+	 */
+	public void setExecutor(Executor executor){
+		this.executor = executor;
+		
+		synchronized(this.members){
+			for(Member member : this.members){
+				member.connection.setExecutor(executor);
+			}
+		}
+	}
+	
+	/**
+	 * Set the servers that new connections connect to, instead
+	 * of looking them up via DNS.
+	 * 
+	 * @param servers A {@link List} of servers or null to use DNS.
+	 */
+	public void setServers(List<InetSocketAddress> servers){
+		this.servers = servers;
+	}
+	
+	public User user() throws TimeoutException {
+		return this.select().user();
+	}
+	
+	public Result toplist(String type, String region, String username) throws TimeoutException {
+		return this.select().toplist(type, region, username);
+	}
+	
+	public JotifyFuture<Result> toplistAsync(String type, String region, String username){
+		return this.select().toplistAsync(type, region, username);
+	}
+	
+	public Result search(String query) throws TimeoutException {
+		return this.select().search(query);
+	}
+	
+	public JotifyFuture<Result> searchAsync(String query){
+		return this.select().searchAsync(query);
+	}
+	
+	public Image image(String id) throws TimeoutException {
+		return this.await(this.imageAsync(id));
+	}
+	
+	public JotifyFuture<Image> imageAsync(final String id){
+		return this.hedge(new Request<Image>(){
+			public JotifyFuture<Image> send(JotifyConnection connection){
+				return connection.imageAsync(id);
+			}
+		}, this.imageLatency);
+	}
+	
+	public Artist browse(Artist artist) throws TimeoutException {
+		return this.browseArtist(artist.getId());
+	}
+	
+	public Album browse(Album album) throws TimeoutException {
+		return this.browseAlbum(album.getId());
+	}
+	
+	public Track browse(Track track) throws TimeoutException {
+		return this.browseTrack(track.getId());
+	}
+	
+	public List<Track> browse(List<Track> tracks) throws TimeoutException {
+		List<String> ids = new ArrayList<String>();
+		
+		for(Track track : tracks){
+			ids.add(track.getId());
+		}
+		
+		return this.browseTracks(ids);
+	}
+	
+	public Artist browseArtist(String id) throws TimeoutException {
+		return this.await(this.browseArtistAsync(id));
+	}
+	
+	public JotifyFuture<Artist> browseArtistAsync(final String id){
+		return this.hedge(new Request<Artist>(){
+			public JotifyFuture<Artist> send(JotifyConnection connection){
+				return connection.browseArtistAsync(id);
+			}
+		}, this.browseLatency);
+	}
+	
+	public Album browseAlbum(String id) throws TimeoutException {
+		return this.await(this.browseAlbumAsync(id));
+	}
+	
+	public JotifyFuture<Album> browseAlbumAsync(final String id){
+		return this.hedge(new Request<Album>(){
+			public JotifyFuture<Album> send(JotifyConnection connection){
+				return connection.browseAlbumAsync(id);
+			}
+		}, this.browseLatency);
+	}
+	
+	public Track browseTrack(String id) throws TimeoutException {
+		return this.await(this.browseTrackAsync(id));
+	}
+	
+	public JotifyFuture<Track> browseTrackAsync(final String id){
+		return this.hedge(new Request<Track>(){
+			public JotifyFuture<Track> send(JotifyConnection connection){
+				return connection.browseTrackAsync(id);
+			}
+		}, this.browseLatency);
+	}
+	
+	public List<Track> browseTracks(List<String> ids) throws TimeoutException {
+		return this.await(this.browseTracksAsync(ids));
+	}
+	
+	public JotifyFuture<List<Track>> browseTracksAsync(final List<String> ids){
+		return this.hedge(new Request<List<Track>>(){
+			public JotifyFuture<List<Track>> send(JotifyConnection connection){
+				return connection.browseTracksAsync(ids);
+			}
+		}, this.browseLatency);
+	}
+	
+	public Track replacement(Track track) throws TimeoutException {
+		return this.select().replacement(track);
+	}
+	
+	public List<Track> replacement(List<Track> tracks) throws TimeoutException {
+		return this.select().replacement(tracks);
+	}
+	
+	public JotifyFuture<List<Track>> replacementAsync(List<Track> tracks){
+		return this.select().replacementAsync(tracks);
+	}
+	
+	public PlaylistContainer playlistContainer() throws TimeoutException {
+		return this.select().playlistContainer();
+	}
+	
+	public JotifyFuture<PlaylistContainer> playlistContainerAsync(){
+		return this.select().playlistContainerAsync();
+	}
+	
+	public Playlist playlist(String id, boolean cached) throws TimeoutException {
+		return this.select().playlist(id, cached);
+	}
+	
+	public Playlist playlist(String id) throws TimeoutException {
+		return this.select().playlist(id);
+	}
+	
+	public JotifyFuture<Playlist> playlistAsync(String id){
+		return this.select().playlistAsync(id);
+	}
+	
+	/* A request that can be sent on any connection. */
+	private static interface Request<T> {
+		public JotifyFuture<T> send(JotifyConnection connection);
+	}
+	
+	/*
+	 * A request sent on one connection and, once the hedge delay passed
+	 * (see run()), on a second one. Completes with the first result,
+	 * fails only once all attempts failed.
+	 */
+	private class Hedge<T> extends JotifyFuture<T> implements FutureListener<T>, Runnable {
+		private Request<T>       request;
+		private LatencyTracker   latency;
+		private JotifyConnection connection;
+		
+		/* First and hedged attempt, time the first was sent in ns. */
+		private JotifyFuture<T> primary;
+		private JotifyFuture<T> secondary;
+		private long            start;
+		
+		/* Number of attempts sent and failed. */
+		private int attempts;
+		private int failures;
+		
+		public Hedge(Request<T> request, LatencyTracker latency, JotifyConnection connection){
+			this.request    = request;
+			this.latency    = latency;
+			this.connection = connection;
+			this.primary    = null;
+			this.secondary  = null;
+			this.start      = 0;
+			this.attempts   = 1;
+			this.failures   = 0;
+		}
+		
+		/* Send the first attempt. */
+		public void start(){
+			JotifyFuture<T> primary;
+			
+			this.start = System.nanoTime();
+			
+			primary = this.request.send(this.connection);
+			
+			synchronized(this){
+				this.primary = primary;
+			}
+			
+			primary.addListener(this);
+		}
+		
+		/* Send the hedged attempt on another connection, if still needed. */
+		public void run(){
+			JotifyConnection connection = select(this.connection);
+			JotifyFuture<T>  secondary;
+			
+			if(connection == null){
+				return;
+			}
+			
+			synchronized(this){
+				if(this.isDone()){
+					return;
+				}
+				
+				this.attempts++;
+			}
+			
+			secondary = this.request.send(connection);
+			
+			synchronized(this){
+				this.secondary = secondary;
+			}
+			
+			secondary.addListener(this);
+			
+			/* Finished meanwhile. */
+			if(this.isDone()){
+				secondary.cancel(false);
+			}
+		}
+		
+		public void futureDone(JotifyFuture<T> attempt){
+			T result;
+			
+			/* Lost, cancelled by us. */
+			if(attempt.isCancelled()){
+				return;
+			}
+			
+			try{
+				result = attempt.get();
+			}
+			catch(InterruptedException e){
+				return;
+			}
+			catch(ExecutionException e){
+				synchronized(this){
+					/* Wait for the other attempt. */
+					if(++this.failures < this.attempts){
+						return;
+					}
+				}
+				
+				this.fail(e.getCause());
+				
+				return;
+			}
+			
+			if(this.complete(result)){
+				this.abortOthers();
+			}
+		}
+		
+		public boolean cancel(boolean mayInterruptIfRunning){
+			if(!super.cancel(mayInterruptIfRunning)){
+				return false;
+			}
+			
+			this.abortOthers();
+			
+			return true;
+		}
+		
+		/* Record the latency of the first attempt and abort the ones still running. */
+		private void abortOthers(){
+			JotifyFuture<T> primary;
+			JotifyFuture<T> secondary;
+			
+			synchronized(this){
+				primary   = this.primary;
+				secondary = this.secondary;
+			}
+			
+			/*
+			 * If the first attempt lost, its latency is at least the time
+			 * until now, which is what hedging is about.
+			 */
+			if(!this.isCancelled()){
+				this.latency.add((System.nanoTime() - this.start) / 1000000);
+			}
+			
+			if(primary != null){
+				primary.cancel(false);
+			}
+			
+			if(secondary != null){
+				secondary.cancel(false);
+			}
+		}
+	}
+	
+	/*
+	 * A pooled connection and its credentials, whether it is being replaced
+	 * and when and after which delay to retry if replacing it failed.
+	 */
+	private static class Member {
+		private String           username;
+		private String           password;
+		private JotifyConnection connection;
+		private boolean          replacing;
+		private long             retryTime;
+		private long             retryDelay;
+		
+		public Member(String username, String password){
+			this.username   = username;
+			this.password   = password;
+			this.connection = null;
+			this.replacing  = false;
+			this.retryTime  = 0;
+			this.retryDelay = RETRY_DELAY;
+		}
+	}
+}
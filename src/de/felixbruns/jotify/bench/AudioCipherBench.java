@@ -0,0 +1,155 @@
+package de.felixbruns.jotify.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import de.felixbruns.jotify.crypto.AudioCipher;
+
+/**
+ * Measures the throughput of deinterleaving and decrypting substream
+ * packets with {@link AudioCipher#decrypt(long, byte[], int, byte[], int, int)}
+ * against the previous path: deinterleave into a new array, then decrypt
+ * it with {@link AudioCipher#decrypt(long, byte[], int, int)}. First
+ * checks that both produce the same plaintext for random packets,
+ * including shorter tail blocks. Exits with status 1 on any mismatch.
+ * 
+ * Usage: AudioCipherBench [packet size in bytes (4096)] [MB per round (128)]
+ */
+public class AudioCipherBench {
+	/* Number of rounds, including one for warming up, and packets to check. */
+	private static final int ROUNDS = 6;
+	private static final int CHECKS = 3000;
+	
+	public static void main(String[] args){
+		int size  = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+		int total = (args.length > 1) ? Integer.parseInt(args[1]) : 128;
+		int count = Math.max(1, (int)((long)total * 1024 * 1024 / size));
+		
+		Random random = new Random();
+		byte[] key    = new byte[16];
+		
+		random.nextBytes(key);
+		
+		AudioCipher reference = new AudioCipher(key);
+		AudioCipher cipher    = new AudioCipher(key);
+		
+		int failures = check(reference, cipher, random);
+		
+		System.out.format("%d packets checked: %d mismatches\n", CHECKS, failures);
+		
+		if(failures > 0){
+			System.exit(1);
+		}
+		
+		byte[] packet = new byte[size];
+		
+		random.nextBytes(packet);
+		
+		double[] best = new double[2];
+		
+		for(int round = 0; round < ROUNDS; round++){
+			double[] rates = {
+				decryptReference(reference, packet, count), decrypt(cipher, packet, count)
+			};
+			
+			/* Skip warm-up round. */
+			for(int i = 0; round > 0 && i < rates.length; i++){
+				best[i] = Math.max(best[i], rates[i]);
+			}
+		}
+		
+		System.out.format("Packets of %d bytes, %d per round, best of %d rounds:\n", size, count, ROUNDS - 1);
+		System.out.format("  deinterleave + decrypt: reference %8.1f MB/s, current %8.1f MB/s (%.2fx)\n", best[0], best[1], best[1] / best[0]);
+	}
+	
+	/* Compare both paths on consecutive random packets. Returns the number of mismatches. */
+	private static int check(AudioCipher reference, AudioCipher cipher, Random random){
+		AudioCipher copy     = cipher.copy();
+		long        offset   = 0;
+		int         failures = 0;
+		
+		for(int i = 0; i < CHECKS; i++){
+			/* Full packets and packets ending in a shorter block. */
+			int    length = (random.nextInt(3) == 0) ? 4096 : 4 * (1 + random.nextInt(1200));
+			byte[] data   = new byte[length];
+			
+			random.nextBytes(data);
+			
+			byte[] expected = deinterleave(data);
+			
+			reference.decrypt(offset, expected, 0, length);
+			
+			/* In place, like the stream, and into another array at an offset. */
+			byte[] inPlace = data.clone();
+			byte[] copied  = new byte[length + 10];
+			
+			cipher.decrypt(offset, inPlace, 0, inPlace, 0, length);
+			copy.decrypt(offset, data, 0, copied, 5, length);
+			
+			if(!Arrays.equals(expected, inPlace) || !Arrays.equals(expected, Arrays.copyOfRange(copied, 5, 5 + length))){
+				System.out.format("Mismatch at offset %d, length %d\n", offset, length);
+				
+				failures++;
+			}
+			
+			offset += length;
+		}
+		
+		return failures;
+	}
+	
+	/* Deinterleave and decrypt packets the previous way. Returns MB/s. */
+	private static double decryptReference(AudioCipher cipher, byte[] packet, int count){
+		long offset = 0;
+		long start  = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			byte[] data = deinterleave(packet);
+			
+			cipher.decrypt(offset, data, 0, data.length);
+			
+			offset += data.length;
+		}
+		
+		return ShannonBench.rate(packet.length, count, System.nanoTime() - start);
+	}
+	
+	/* Deinterleave and decrypt packets in place, like the stream. Returns MB/s. */
+	private static double decrypt(AudioCipher cipher, byte[] packet, int count){
+		byte[] data   = new byte[packet.length];
+		long   offset = 0;
+		long   start  = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			/* Packets arrive in a new array, decrypting in place would destroy the input. */
+			System.arraycopy(packet, 0, data, 0, packet.length);
+			
+			cipher.decrypt(offset, data, 0, data, 0, data.length);
+			
+			offset += data.length;
+		}
+		
+		return ShannonBench.rate(packet.length, count, System.nanoTime() - start);
+	}
+	
+	/* Deinterleave 4x256 byte blocks and the shorter last block into a new array, as before. */
+	private static byte[] deinterleave(byte[] data){
+		byte[] ciphertext = new byte[data.length];
+		int    block, size, part, i, off;
+		
+		for(block = 0; block < data.length; block += AudioCipher.INTERLEAVE_SIZE){
+			size = Math.min(AudioCipher.INTERLEAVE_SIZE, data.length - block);
+			part = size / 4;
+			off  = block;
+			
+			for(i = 0; i < part; i++){
+				ciphertext[off++] = data[block + i];
+				ciphertext[off++] = data[block + i + part];
+				ciphertext[off++] = data[block + i + 2 * part];
+				ciphertext[off++] = data[block + i + 3 * part];
+			}
+		}
+		
+		return ciphertext;
+	}
+}
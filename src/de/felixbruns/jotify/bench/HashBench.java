@@ -0,0 +1,182 @@
+package de.felixbruns.jotify.bench;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.felixbruns.jotify.crypto.Hash;
+import de.felixbruns.jotify.crypto.HmacSha1;
+
+/**
+ * Checks {@link HmacSha1} and {@link Hash} against the JCE HmacSHA1, also
+ * from several threads sharing them, then measures the login key
+ * derivation: five HMACs of a 53-byte message with a 96-byte shared key,
+ * with a {@link Mac} initialized for every HMAC as before, with
+ * {@link Hash#hmacSha1(byte[], byte[])} and with one {@link HmacSha1}.
+ * Exits with status 1 on any mismatch.
+ * 
+ * Usage: HashBench [derivations per round (100000)] [threads (8)]
+ */
+public class HashBench {
+	/* Number of rounds, including one for warming up, and HMACs per derivation. */
+	private static final int ROUNDS = 6;
+	private static final int HMACS  = 5;
+	
+	public static void main(String[] args) throws Exception {
+		int count   = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+		
+		Random random = new Random();
+		Mac    mac    = Mac.getInstance("HmacSHA1");
+		byte[] key    = new byte[96];
+		byte[] bytes  = new byte[53];
+		
+		random.nextBytes(key);
+		random.nextBytes(bytes);
+		
+		int failures = check(mac, random) + checkThreads(key, bytes, threads);
+		
+		System.out.format("Checked key lengths 1-199 and %d threads: %d mismatches\n", threads, failures);
+		
+		if(failures > 0){
+			System.exit(1);
+		}
+		
+		double[] best = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+		
+		for(int round = 0; round < ROUNDS; round++){
+			double[] times = {
+				deriveMac(mac, key, bytes, count), deriveHash(key, bytes, count), deriveHmac(key, bytes, count)
+			};
+			
+			/* Skip warm-up round. */
+			for(int i = 0; round > 0 && i < times.length; i++){
+				best[i] = Math.min(best[i], times[i]);
+			}
+		}
+		
+		System.out.format("%d HMACs per derivation, %d derivations per round, best of %d rounds:\n", HMACS, count, ROUNDS - 1);
+		System.out.format("  Mac (reference):  %6.2f us\n", best[0]);
+		System.out.format("  Hash.hmacSha1:    %6.2f us (%.2fx)\n", best[1], best[0] / best[1]);
+		System.out.format("  HmacSha1:         %6.2f us (%.2fx)\n", best[2], best[0] / best[2]);
+	}
+	
+	/* Compare with the JCE for all key lengths up to three blocks. Returns the number of mismatches. */
+	private static int check(Mac mac, Random random) throws InvalidKeyException {
+		int failures = 0;
+		
+		for(int length = 1; length < 200; length++){
+			byte[] key    = new byte[length];
+			byte[] buffer = new byte[random.nextInt(300)];
+			
+			random.nextBytes(key);
+			random.nextBytes(buffer);
+			
+			byte[] expected = hmac(mac, buffer, key);
+			
+			if(!Arrays.equals(expected, Hash.hmacSha1(buffer, key)) || !Arrays.equals(expected, new HmacSha1(key).hmac(buffer))){
+				System.out.format("Mismatch with key length %d\n", length);
+				
+				failures++;
+			}
+		}
+		
+		return failures;
+	}
+	
+	/* Share Hash and one HmacSha1 between threads. Returns the number of wrong results. */
+	private static int checkThreads(final byte[] key, final byte[] bytes, int count) throws InterruptedException {
+		final HmacSha1      shared   = new HmacSha1(key);
+		final byte[]        hmac     = Hash.hmacSha1(bytes, key);
+		final byte[]        sha1     = Hash.sha1(bytes);
+		final AtomicInteger failures = new AtomicInteger();
+		
+		Thread[] threads = new Thread[count];
+		
+		for(int i = 0; i < count; i++){
+			threads[i] = new Thread(){
+				public void run(){
+					for(int j = 0; j < 20000; j++){
+						if(!Arrays.equals(hmac, shared.hmac(bytes)) ||
+							!Arrays.equals(hmac, Hash.hmacSha1(bytes, key)) ||
+							!Arrays.equals(sha1, Hash.sha1(bytes))){
+							failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			
+			threads[i].start();
+		}
+		
+		for(Thread thread : threads){
+			thread.join();
+		}
+		
+		return failures.get();
+	}
+	
+	/* Derive keys with a Mac initialized for every HMAC. Returns us per derivation. */
+	private static double deriveMac(Mac mac, byte[] key, byte[] bytes, int count) throws InvalidKeyException {
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			for(int j = 1; j <= HMACS; j++){
+				bytes[bytes.length - 1] = (byte)j;
+				
+				System.arraycopy(hmac(mac, bytes, key), 0, bytes, 0, 20);
+			}
+		}
+		
+		return (System.nanoTime() - start) / 1e3 / count;
+	}
+	
+	/* Derive keys with Hash. Returns us per derivation. */
+	private static double deriveHash(byte[] key, byte[] bytes, int count){
+		byte[] hmac  = new byte[HMACS * HmacSha1.LENGTH];
+		long   start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			for(int j = 1; j <= HMACS; j++){
+				bytes[bytes.length - 1] = (byte)j;
+				
+				Hash.hmacSha1(bytes, key, hmac, (j - 1) * HmacSha1.LENGTH);
+				
+				System.arraycopy(hmac, (j - 1) * HmacSha1.LENGTH, bytes, 0, 20);
+			}
+		}
+		
+		return (System.nanoTime() - start) / 1e3 / count;
+	}
+	
+	/* Derive keys like the session, with one HmacSha1 per derivation. Returns us per derivation. */
+	private static double deriveHmac(byte[] key, byte[] bytes, int count){
+		byte[] hmac  = new byte[HMACS * HmacSha1.LENGTH];
+		long   start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			HmacSha1 hmacSha1 = new HmacSha1(key);
+			
+			for(int j = 1; j <= HMACS; j++){
+				bytes[bytes.length - 1] = (byte)j;
+				
+				hmacSha1.hmac(bytes, hmac, (j - 1) * HmacSha1.LENGTH);
+				
+				System.arraycopy(hmac, (j - 1) * HmacSha1.LENGTH, bytes, 0, 20);
+			}
+		}
+		
+		return (System.nanoTime() - start) / 1e3 / count;
+	}
+	
+	/* HMAC with the JCE, as Hash computed it before. */
+	private static byte[] hmac(Mac mac, byte[] buffer, byte[] key) throws InvalidKeyException {
+		mac.init(new SecretKeySpec(key, "HmacSHA1"));
+		
+		return mac.doFinal(buffer);
+	}
+}
@@ -0,0 +1,108 @@
+package de.felixbruns.jotify.bench;
+
+import de.felixbruns.jotify.crypto.Shannon;
+import de.felixbruns.jotify.util.IntegerUtilities;
+
+/**
+ * Measures the throughput of {@link Shannon} against {@link ReferenceShannon}
+ * the way the protocol uses it: set the nonce of a packet, decrypt it and
+ * compute its MAC. Also measures plain keystream generation. Each round
+ * processes the same amount of data with both, the first round warms up
+ * the JIT and the best of the other rounds is reported.
+ * 
+ * Usage: ShannonBench [packet size in bytes (4096)] [MB per round (128)]
+ */
+public class ShannonBench {
+	/* Number of rounds, including one for warming up. */
+	private static final int ROUNDS = 6;
+	
+	public static void main(String[] args){
+		int size  = (args.length > 0) ? Integer.parseInt(args[0]) : 4096;
+		int total = (args.length > 1) ? Integer.parseInt(args[1]) : 128;
+		int count = Math.max(1, (int)((long)total * 1024 * 1024 / size));
+		
+		ReferenceShannon reference = new ReferenceShannon();
+		Shannon          shannon   = new Shannon();
+		byte[]           key       = new byte[32];
+		byte[]           packet    = new byte[size];
+		
+		/* Packets are decrypted in place, their content doesn't matter. */
+		reference.key(key);
+		shannon.key(key);
+		
+		double[] best = new double[4];
+		
+		for(int round = 0; round < ROUNDS; round++){
+			double[] rates = {
+				decrypt(reference, packet, count), decrypt(shannon, packet, count),
+				stream(reference, packet, count),  stream(shannon, packet, count)
+			};
+			
+			/* Skip warm-up round. */
+			for(int i = 0; round > 0 && i < rates.length; i++){
+				best[i] = Math.max(best[i], rates[i]);
+			}
+		}
+		
+		System.out.format("Packets of %d bytes, %d per round, best of %d rounds:\n", size, count, ROUNDS - 1);
+		System.out.format("  decrypt + MAC: reference %8.1f MB/s, current %8.1f MB/s (%.2fx)\n", best[0], best[1], best[1] / best[0]);
+		System.out.format("  keystream:     reference %8.1f MB/s, current %8.1f MB/s (%.2fx)\n", best[2], best[3], best[3] / best[2]);
+	}
+	
+	/* Decrypt packets and compute their MACs with the reference. Returns MB/s. */
+	private static double decrypt(ReferenceShannon shannon, byte[] packet, int count){
+		byte[] mac   = new byte[4];
+		long   start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			shannon.nonce(IntegerUtilities.toBytes(i));
+			shannon.decrypt(packet, packet.length);
+			shannon.finish(mac);
+		}
+		
+		return rate(packet.length, count, System.nanoTime() - start);
+	}
+	
+	/* Decrypt packets and compute their MACs, like the protocol. Returns MB/s. */
+	private static double decrypt(Shannon shannon, byte[] packet, int count){
+		byte[] mac   = new byte[4];
+		long   start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			shannon.nonce(i);
+			shannon.decrypt(packet, 0, packet.length);
+			shannon.finish(mac);
+		}
+		
+		return rate(packet.length, count, System.nanoTime() - start);
+	}
+	
+	/* Generate keystream with the reference. Returns MB/s. */
+	private static double stream(ReferenceShannon shannon, byte[] packet, int count){
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			shannon.nonce(IntegerUtilities.toBytes(i));
+			shannon.stream(packet);
+		}
+		
+		return rate(packet.length, count, System.nanoTime() - start);
+	}
+	
+	/* Generate keystream. Returns MB/s. */
+	private static double stream(Shannon shannon, byte[] packet, int count){
+		long start = System.nanoTime();
+		
+		for(int i = 0; i < count; i++){
+			shannon.nonce(i);
+			shannon.stream(packet);
+		}
+		
+		return rate(packet.length, count, System.nanoTime() - start);
+	}
+	
+	/* Throughput in MB/s. */
+	static double rate(long size, long count, long nanos){
+		return (double)size * count / (1024 * 1024) / (nanos / 1e9);
+	}
+}
@@ -0,0 +1,220 @@
+package de.felixbruns.jotify.bench;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import de.felixbruns.jotify.crypto.Shannon;
+import de.felixbruns.jotify.util.IntegerUtilities;
+
+/**
+ * Checks that {@link Shannon} produces the same keystream, ciphertext and
+ * MACs as {@link ReferenceShannon}, for random keys and nonces of any
+ * length, data of odd lengths at odd offsets, processed in one or two
+ * calls on arrays, heap and direct buffers. Exits with status 1 on any
+ * mismatch. See {@link ShannonBench} for throughput.
+ * 
+ * Usage: ShannonCheck [iterations (20000)] [seed]
+ */
+public class ShannonCheck {
+	/* Ways to hand data to the current implementation. */
+	private static final int ARRAY  = 0;
+	private static final int HEAP   = 1;
+	private static final int DIRECT = 2;
+	
+	private static Random random;
+	private static int    failures;
+	
+	public static void main(String[] args){
+		int  iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		long seed       = (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+		
+		random   = new Random(seed);
+		failures = 0;
+		
+		for(int i = 0; i < iterations; i++){
+			checkCrypt(i);
+			checkStream(i);
+		}
+		
+		System.out.format("%d iterations, seed %d: %d mismatches\n", iterations, seed, failures);
+		
+		if(failures > 0){
+			System.exit(1);
+		}
+	}
+	
+	/* Encrypt or decrypt data in two calls and compare output and MAC. */
+	private static void checkCrypt(int iteration){
+		ReferenceShannon reference = new ReferenceShannon();
+		Shannon          shannon   = new Shannon();
+		byte[]           key       = bytes(1 + random.nextInt(40));
+		
+		reference.key(key);
+		shannon.key(key);
+		
+		/* Every other iteration sets a packet counter like the protocol. */
+		if(iteration % 2 == 0){
+			reference.nonce(IntegerUtilities.toBytes(iteration));
+			shannon.nonce(iteration);
+		}
+		else{
+			byte[] nonce = bytes(random.nextInt(20));
+			
+			reference.nonce(nonce);
+			shannon.nonce(nonce);
+		}
+		
+		int     length  = random.nextInt(300);
+		int     offset  = random.nextInt(10);
+		int     split   = random.nextInt(length + 1);
+		int     mode    = random.nextInt(3);
+		boolean encrypt = random.nextBoolean();
+		byte[]  data    = bytes(offset + length + random.nextInt(10));
+		
+		/* The reference has no offsets, process copies of both parts. */
+		byte[] first    = Arrays.copyOfRange(data, offset, offset + split);
+		byte[] second   = Arrays.copyOfRange(data, offset + split, offset + length);
+		byte[] expected = new byte[data.length];
+		
+		if(encrypt){
+			reference.encrypt(first);
+			reference.encrypt(second);
+		}
+		else{
+			reference.decrypt(first);
+			reference.decrypt(second);
+		}
+		
+		System.arraycopy(data,   0, expected, 0,              data.length);
+		System.arraycopy(first,  0, expected, offset,         split);
+		System.arraycopy(second, 0, expected, offset + split, length - split);
+		
+		byte[] actual = crypt(shannon, data.clone(), offset, split, length, mode, encrypt);
+		
+		check(iteration, "crypt", expected, actual);
+		
+		byte[] expectedMac = new byte[4];
+		byte[] actualMac   = new byte[4];
+		
+		reference.finish(expectedMac);
+		shannon.finish(actualMac);
+		
+		check(iteration, "crypt MAC", expectedMac, actualMac);
+	}
+	
+	/* Process data in two parts with the current implementation. */
+	private static byte[] crypt(Shannon shannon, byte[] data, int offset, int split, int length, int mode, boolean encrypt){
+		if(mode == ARRAY){
+			if(encrypt){
+				shannon.encrypt(data, offset, split);
+				shannon.encrypt(data, offset + split, length - split);
+			}
+			else{
+				shannon.decrypt(data, offset, split);
+				shannon.decrypt(data, offset + split, length - split);
+			}
+			
+			return data;
+		}
+		
+		ByteBuffer buffer;
+		
+		if(mode == HEAP){
+			buffer = ByteBuffer.wrap(data);
+		}
+		else{
+			buffer = ByteBuffer.allocateDirect(data.length);
+			
+			buffer.put(data);
+		}
+		
+		buffer.limit(offset + split).position(offset);
+		
+		if(encrypt){
+			shannon.encrypt(buffer);
+		}
+		else{
+			shannon.decrypt(buffer);
+		}
+		
+		/* The buffer must be handed back as it was passed. */
+		if(buffer.position() != offset || buffer.order() != ByteOrder.BIG_ENDIAN){
+			System.out.format("Buffer position or order changed, mode %d\n", mode);
+			
+			failures++;
+		}
+		
+		buffer.limit(offset + length).position(offset + split);
+		
+		if(encrypt){
+			shannon.encrypt(buffer);
+		}
+		else{
+			shannon.decrypt(buffer);
+		}
+		
+		if(mode == DIRECT){
+			buffer.clear();
+			buffer.get(data);
+		}
+		
+		return data;
+	}
+	
+	/* Compare plain keystream and a MAC-only pass with a long MAC. */
+	private static void checkStream(int iteration){
+		ReferenceShannon reference = new ReferenceShannon();
+		Shannon          shannon   = new Shannon();
+		byte[]           key       = bytes(1 + random.nextInt(40));
+		byte[]           nonce     = bytes(random.nextInt(20));
+		
+		reference.key(key);
+		shannon.key(key);
+		reference.nonce(nonce);
+		shannon.nonce(nonce);
+		
+		byte[] expected = new byte[random.nextInt(300)];
+		byte[] actual   = new byte[expected.length];
+		
+		reference.stream(expected);
+		shannon.stream(actual);
+		
+		check(iteration, "stream", expected, actual);
+		
+		byte[] data = bytes(random.nextInt(300));
+		
+		reference.macOnly(data.clone());
+		shannon.macOnly(data.clone());
+		
+		/* Odd MAC length, to cover a partial last word. */
+		int length = 1 + random.nextInt(16);
+		
+		expected = new byte[length];
+		actual   = new byte[length];
+		
+		reference.finish(expected);
+		shannon.finish(actual);
+		
+		check(iteration, "MAC only", expected, actual);
+	}
+	
+	/* Count and print a mismatch. */
+	private static void check(int iteration, String what, byte[] expected, byte[] actual){
+		if(!Arrays.equals(expected, actual)){
+			System.out.format("Mismatch in %s, iteration %d\n", what, iteration);
+			
+			failures++;
+		}
+	}
+	
+	/* Random bytes. */
+	private static byte[] bytes(int length){
+		byte[] bytes = new byte[length];
+		
+		random.nextBytes(bytes);
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,209 @@
+package de.felixbruns.jotify.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES in counter mode, as audio files are encrypted with. Decrypts any
+ * range of a file given its offset: the counter of an offset is computed
+ * with plain long arithmetic and one {@link Cipher} is reused, it is only
+ * initialized again if a range doesn't continue the previous one.
+ * 
+ * Substream data is also interleaved, see
+ * {@link #decrypt(long, byte[], int, byte[], int, int)}.
+ */
+public class AudioCipher {
+	/* Size of an AES block. */
+	public static final int BLOCK_SIZE = 16;
+	
+	/* Size of an interleaved block of substream data. */
+	public static final int INTERLEAVE_SIZE = 1024;
+	
+	/* Initial counter (IV) of every file, as high and low 64 bits. */
+	private static final long IV_HIGH = 0x72e067fbddcbcf77L;
+	private static final long IV_LOW  = 0xebe8bc643f630d93L;
+	
+	/* Cipher in counter mode and key of the file. */
+	private Cipher cipher;
+	private Key    key;
+	
+	/* Offset in the file the cipher continues at, or -1. */
+	private long position;
+	
+	/* Reused buffers for keystream and for a block that is deinterleaved in place. */
+	private byte[] keystream;
+	private byte[] scratch;
+	
+	/**
+	 * Create a new cipher for a file.
+	 * 
+	 * @param key The AES key of the file.
+	 * 
+	 * @throws IllegalArgumentException If the key is empty or not a valid AES key.
+	 */
+	public AudioCipher(byte[] key){
+		this(new SecretKeySpec(key, "AES"));
+	}
+	
+	/* Create a new cipher with a key. */
+	private AudioCipher(Key key){
+		try{
+			this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+		}
+		catch(NoSuchAlgorithmException e){
+			throw new RuntimeException("AES/CTR is not available!", e);
+		}
+		catch(NoSuchPaddingException e){
+			throw new RuntimeException("NoPadding is not available!", e);
+		}
+		
+		this.key       = key;
+		this.position  = -1;
+		this.keystream = new byte[0];
+		this.scratch   = new byte[INTERLEAVE_SIZE];
+		
+		/* Check key. */
+		this.seek(0);
+	}
+	
+	/**
+	 * Create another cipher for the same file, e.g. to decrypt
+	 * ranges on multiple threads in parallel.
+	 * 
+	 * @return A new {@link AudioCipher}.
+	 */
+	public AudioCipher copy(){
+		return new AudioCipher(this.key);
+	}
+	
+	/**
+	 * Decrypt (or encrypt) a range of the file in place.
+	 * 
+	 * @param offset Offset of the range in the file.
+	 * @param buffer Buffer holding the range.
+	 * @param off    Offset of the range in the buffer.
+	 * @param len    Length of the range.
+	 */
+	public synchronized void decrypt(long offset, byte[] buffer, int off, int len){
+		if(offset != this.position){
+			this.seek(offset);
+		}
+		
+		try{
+			this.cipher.update(buffer, off, len, buffer, off);
+		}
+		catch(ShortBufferException e){
+			this.position = -1;
+			
+			throw new IllegalArgumentException("Range exceeds buffer!", e);
+		}
+		
+		this.position += len;
+	}
+	
+	/**
+	 * Deinterleave and decrypt a range of substream data in one pass.
+	 * The data consists of blocks of 1024 bytes, each interleaved from
+	 * 4 parts of 256 bytes: byte i of part p is at index p * 256 + i
+	 * instead of i * 4 + p. The last, shorter block is interleaved the
+	 * same way, from 4 parts of a quarter of its length.
+	 * 
+	 * @param offset Offset of the range in the file.
+	 * @param src    Buffer holding the interleaved, encrypted range.
+	 * @param srcOff Offset of the range in the source buffer.
+	 * @param dst    Buffer to write the plaintext to, may be the source buffer.
+	 * @param dstOff Offset to write at, must equal srcOff if dst is the source buffer.
+	 * @param len    Length of the range.
+	 */
+	public synchronized void decrypt(long offset, byte[] src, int srcOff, byte[] dst, int dstOff, int len){
+		byte[] keystream = this.keystream(offset, len);
+		byte[] input;
+		int    block, size, part, i, k, d, s;
+		
+		for(block = 0; block < len; block += INTERLEAVE_SIZE){
+			size = Math.min(INTERLEAVE_SIZE, len - block);
+			part = size / 4;
+			
+			/* Don't overwrite bytes of the block that weren't read yet. */
+			if(src == dst){
+				System.arraycopy(src, srcOff + block, this.scratch, 0, size);
+				
+				input = this.scratch;
+				s     = 0;
+			}
+			else{
+				input = src;
+				s     = srcOff + block;
+			}
+			
+			/* Gather one byte of each part and XOR the keystream. */
+			for(i = 0, k = block, d = dstOff + block; i < part; i++, k += 4, d += 4){
+				dst[d    ] = (byte)(input[s + i           ] ^ keystream[k    ]);
+				dst[d + 1] = (byte)(input[s + i + part    ] ^ keystream[k + 1]);
+				dst[d + 2] = (byte)(input[s + i + part * 2] ^ keystream[k + 2]);
+				dst[d + 3] = (byte)(input[s + i + part * 3] ^ keystream[k + 3]);
+			}
+			
+			/* Bytes left over, if the size is not a multiple of 4, are not interleaved. */
+			for(i = part * 4; i < size; i++){
+				dst[dstOff + block + i] = (byte)(input[s + i] ^ keystream[block + i]);
+			}
+		}
+	}
+	
+	/* Get keystream for a range of the file. Must hold lock. */
+	private byte[] keystream(long offset, int len){
+		if(this.keystream.length < len){
+			this.keystream = new byte[len];
+		}
+		
+		Arrays.fill(this.keystream, 0, len, (byte)0);
+		
+		/* Encrypting zeros yields the keystream. */
+		this.decrypt(offset, this.keystream, 0, len);
+		
+		return this.keystream;
+	}
+	
+	/* Initialize the cipher with the counter of an offset. Must hold lock. */
+	private void seek(long offset){
+		long   block = offset / BLOCK_SIZE;
+		long   high  = IV_HIGH;
+		long   low   = IV_LOW + block;
+		byte[] iv    = new byte[BLOCK_SIZE];
+		
+		/* Carry, if the unsigned addition overflowed. */
+		if((low ^ Long.MIN_VALUE) < (IV_LOW ^ Long.MIN_VALUE)){
+			high++;
+		}
+		
+		ByteBuffer.wrap(iv).putLong(high).putLong(low);
+		
+		try{
+			this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(iv));
+		}
+		catch(InvalidKeyException e){
+			throw new IllegalArgumentException("Invalid key!", e);
+		}
+		catch(InvalidAlgorithmParameterException e){
+			throw new RuntimeException("Invalid IV!", e);
+		}
+		
+		/* Skip keystream up to the offset inside the block. */
+		if(offset % BLOCK_SIZE != 0){
+			this.cipher.update(new byte[(int)(offset % BLOCK_SIZE)]);
+		}
+		
+		this.position = offset;
+	}
+}
@@ -28,9 +28,20 @@ import javax.crypto.spec.DHPublicKeySpec;
  */
 public class DH {
 	/**
-	 * {@link KeyPairGenerator} object for creating new key pairs.
+	 * {@link KeyPairGenerator} objects for creating new key pairs, one per
+	 * thread, so generating a pair never waits for another thread (e.g.
+	 * the background generator of a {@link KeyPool}).
 	 */
-	private static KeyPairGenerator keyPairGenerator;
+	private static final ThreadLocal<KeyPairGenerator> keyPairGenerator = new ThreadLocal<KeyPairGenerator>(){
+		protected KeyPairGenerator initialValue(){
+			try{
+				return KeyPairGenerator.getInstance("DH");
+			}
+			catch(NoSuchAlgorithmException e){
+				throw new RuntimeException(e);
+			}
+		}
+	};
 	
 	/**
 	 * {@link KeyAgreement} object for computing shared keys.
@@ -76,9 +87,8 @@ public class DH {
 	 */
 	static{
 		try{
-			keyPairGenerator = KeyPairGenerator.getInstance("DH");
-			keyAgreement     = KeyAgreement.getInstance("DH");
-			keyFactory       = KeyFactory.getInstance("DH");
+			keyAgreement = KeyAgreement.getInstance("DH");
+			keyFactory   = KeyFactory.getInstance("DH");
 		}
 		catch(NoSuchAlgorithmException e){
 			throw new RuntimeException(e);
@@ -96,10 +106,7 @@ public class DH {
 	 * @return A {@link DHKeyPair} holding Diffie-Hellman private and public keys.
 	 */
 	public static DHKeyPair generateKeyPair(int keysize){
-		/* Check if key pair generator is instantiated. */
-		if(keyPairGenerator == null){
-			throw new RuntimeException("KeyPairGenerator not instantiated!");
-		}
+		KeyPairGenerator keyPairGenerator = DH.keyPairGenerator.get();
 		
 		/* Initialize key pair generator with prime, generator and keysize in bits. */
 		try{
@@ -126,7 +133,7 @@ public class DH {
 	 * 
 	 * @return The shared key as a byte array.
 	 */
-	public static byte[] computeSharedKey(DHPrivateKey privateKey, DHPublicKey publicKey){
+	public static synchronized byte[] computeSharedKey(DHPrivateKey privateKey, DHPublicKey publicKey){
 		/* Check if key agreement is instantiated. */
 		if(keyAgreement == null){
 			throw new RuntimeException("KeyAgreement not instantiated!");
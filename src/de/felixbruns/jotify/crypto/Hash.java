@@ -14,18 +14,43 @@ import javax.crypto.spec.SecretKeySpec;
  * @author Felix Bruns <felixbruns@web.de>
  */
 public class Hash {
-	private static MessageDigest digestSha1;
-	private static MessageDigest digestMd5;
-	private static Mac           hmacSha1;
+	/*
+	 * Digest and Mac instances are not thread-safe, so every thread gets
+	 * its own, instead of serializing concurrent logins on shared ones.
+	 */
+	private static final ThreadLocal<MessageDigest> digestSha1 = new ThreadLocal<MessageDigest>(){
+		protected MessageDigest initialValue(){
+			return digest("SHA-1");
+		}
+	};
+	
+	private static final ThreadLocal<MessageDigest> digestMd5 = new ThreadLocal<MessageDigest>(){
+		protected MessageDigest initialValue(){
+			return digest("MD5");
+		}
+	};
+	
+	private static final ThreadLocal<Mac> hmacSha1 = new ThreadLocal<Mac>(){
+		protected Mac initialValue(){
+			try{
+				return Mac.getInstance("HmacSHA1");
+			}
+			catch(NoSuchAlgorithmException e){
+				throw new RuntimeException(e);
+			}
+		}
+	};
 	
 	/**
-	 * Statically instantiate needed objects.
+	 * Create a new {@link MessageDigest} instance.
+	 * 
+	 * @param algorithm The name of the algorithm, e.g. "SHA-1".
+	 * 
+	 * @return A {@link MessageDigest}.
 	 */
-	static{
+	static MessageDigest digest(String algorithm){
 		try{
-			digestSha1 = MessageDigest.getInstance("SHA-1");
-			digestMd5  = MessageDigest.getInstance("MD5");
-			hmacSha1   = Mac.getInstance("HmacSHA1");
+			return MessageDigest.getInstance(algorithm);
 		}
 		catch(NoSuchAlgorithmException e){
 			throw new RuntimeException(e);
@@ -40,11 +65,7 @@ public class Hash {
 	 * @return The 20-byte SHA-1 hash of that buffer.
 	 */
 	public static byte[] sha1(byte[] buffer){
-		if(digestSha1 == null){
-			throw new RuntimeException("MessageDigest not instantiated!");
-		}
-		
-		return digestSha1.digest(buffer);
+		return digestSha1.get().digest(buffer);
 	}
 	
 	/**
@@ -55,15 +76,12 @@ public class Hash {
 	 * @return The 16-byte MD5 hash of that buffer.
 	 */
 	public static byte[] md5(byte[] buffer){
-		if(digestMd5 == null){
-			throw new RuntimeException("MessageDigest not instantiated!");
-		}
-		
-		return digestMd5.digest(buffer);
+		return digestMd5.get().digest(buffer);
 	}
 	
 	/**
-	 * Compute the SHA-1 HMAC of a buffer.
+	 * Compute the SHA-1 HMAC of a buffer. To compute multiple
+	 * HMACs with the same key, use {@link HmacSha1}.
 	 * 
 	 * @param buffer The buffer of bytes.
 	 * @param key    The key to use for keying.
@@ -79,7 +97,8 @@ public class Hash {
 	}
 	
 	/**
-	 * Compute the SHA-1 HMAC of a buffer.
+	 * Compute the SHA-1 HMAC of a buffer. To compute multiple
+	 * HMACs with the same key, use {@link HmacSha1}.
 	 * 
 	 * @param buffer The buffer of bytes.
 	 * @param key    The key to use for keying.
@@ -87,27 +106,25 @@ public class Hash {
 	 * @param offset The offset in the destination buffer.
 	 */
 	public static void hmacSha1(byte[] buffer, byte[] key, byte[] output, int offset){
-		if(hmacSha1 == null){
-			throw new RuntimeException("Mac not instantiated!");
-		}
+		Mac mac = hmacSha1.get();
 		
 		/* Create secret key from bytes. */
 		SecretKeySpec secretKey = new SecretKeySpec(key, "HmacSHA1");
 		
 		/* Initialize Mac with secret key. */
 		try{
-			hmacSha1.init(secretKey);
+			mac.init(secretKey);
 		}
 		catch(InvalidKeyException e){
 			throw new RuntimeException(e);
 		}
 		
 		/* Update Mac with buffer. */
-		hmacSha1.update(buffer);
+		mac.update(buffer);
 		
 		/* Write output into buffer at specified offset. */
 		try{
-			hmacSha1.doFinal(output, offset);
+			mac.doFinal(output, offset);
 		}
 		catch(ShortBufferException e){
 			throw new RuntimeException(e);
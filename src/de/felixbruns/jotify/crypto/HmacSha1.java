@@ -0,0 +1,101 @@
+package de.felixbruns.jotify.crypto;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+
+/**
+ * SHA-1 HMAC (RFC 2104) for computing multiple HMACs with the same key.
+ * The digest states after the inner and outer key pads are computed once,
+ * each HMAC continues from copies of them. Instances are thread-safe.
+ * 
+ * @see Hash#hmacSha1(byte[], byte[])
+ */
+public class HmacSha1 {
+	/* Block size of SHA-1 and length of a HMAC. */
+	private static final int BLOCK_SIZE = 64;
+	public  static final int LENGTH     = 20;
+	
+	/* Digest states after the inner and outer key pad. */
+	private MessageDigest inner;
+	private MessageDigest outer;
+	
+	/**
+	 * Create a new HMAC with a key.
+	 * 
+	 * @param key The key to use for keying.
+	 * 
+	 * @throws RuntimeException If the SHA-1 implementation can't be copied.
+	 */
+	public HmacSha1(byte[] key){
+		byte[] ipad = new byte[BLOCK_SIZE];
+		byte[] opad = new byte[BLOCK_SIZE];
+		
+		/* Keys longer than a block are hashed first, shorter ones padded with zeros. */
+		if(key.length > BLOCK_SIZE){
+			key = Hash.sha1(key);
+		}
+		
+		for(int i = 0; i < BLOCK_SIZE; i++){
+			byte k = (i < key.length) ? key[i] : 0;
+			
+			ipad[i] = (byte)(k ^ 0x36);
+			opad[i] = (byte)(k ^ 0x5c);
+		}
+		
+		this.inner = Hash.digest("SHA-1");
+		this.outer = Hash.digest("SHA-1");
+		
+		this.inner.update(ipad);
+		this.outer.update(opad);
+		
+		/* Check that states can be copied. */
+		this.copy(this.inner);
+	}
+	
+	/**
+	 * Compute the HMAC of a buffer.
+	 * 
+	 * @param buffer The buffer of bytes.
+	 * 
+	 * @return The 20-byte SHA-1 HMAC of that buffer.
+	 */
+	public byte[] hmac(byte[] buffer){
+		byte[] output = new byte[LENGTH];
+		
+		this.hmac(buffer, output, 0);
+		
+		return output;
+	}
+	
+	/**
+	 * Compute the HMAC of a buffer.
+	 * 
+	 * @param buffer The buffer of bytes.
+	 * @param output The destination buffer.
+	 * @param offset The offset in the destination buffer.
+	 */
+	public void hmac(byte[] buffer, byte[] output, int offset){
+		MessageDigest inner = this.copy(this.inner);
+		MessageDigest outer = this.copy(this.outer);
+		
+		/* H(K ^ opad, H(K ^ ipad, buffer)) */
+		outer.update(inner.digest(buffer));
+		
+		try{
+			outer.digest(output, offset, LENGTH);
+		}
+		catch(DigestException e){
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/* Copy a digest state, the original is only read. */
+	private MessageDigest copy(MessageDigest digest){
+		try{
+			return (MessageDigest)digest.clone();
+		}
+		catch(CloneNotSupportedException e){
+			throw new RuntimeException("SHA-1 digest can't be copied!", e);
+		}
+	}
+}
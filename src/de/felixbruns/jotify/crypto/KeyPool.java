@@ -0,0 +1,167 @@
+package de.felixbruns.jotify.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import de.felixbruns.jotify.crypto.DH.DHKeyPair;
+import de.felixbruns.jotify.crypto.RSA.RSAKeyPair;
+
+/**
+ * Pool of RSA and Diffie-Hellman key pairs that are generated ahead of
+ * time on background threads, so creating a session doesn't have to
+ * wait for (slow) RSA key generation. Each key pair is handed out once.
+ * If the pool is empty, key pairs are generated on the calling thread.
+ */
+public class KeyPool {
+	/**
+	 * Default number of key pairs of each type to keep ready.
+	 */
+	public static final int DEFAULT_DEPTH = 2;
+	
+	/**
+	 * Key sizes in bits, as used by the Spotify protocol.
+	 */
+	public static final int RSA_KEY_SIZE = 1024;
+	public static final int DH_KEY_SIZE  = 768;
+	
+	/**
+	 * Default pool, created on first use.
+	 */
+	private static KeyPool defaultPool;
+	
+	/**
+	 * Key pairs ready to be handed out.
+	 */
+	private BlockingQueue<RSAKeyPair> rsaKeyPairs;
+	private BlockingQueue<DHKeyPair>  dhKeyPairs;
+	
+	/**
+	 * Background threads generating key pairs.
+	 */
+	private Thread rsaThread;
+	private Thread dhThread;
+	
+	/**
+	 * Create a new key pool and start generating key pairs.
+	 * 
+	 * @param depth Number of key pairs of each type to keep ready.
+	 */
+	public KeyPool(int depth){
+		/* Check depth. */
+		if(depth <= 0){
+			throw new IllegalArgumentException("Depth needs to be > 0.");
+		}
+		
+		this.rsaKeyPairs = new ArrayBlockingQueue<RSAKeyPair>(depth);
+		this.dhKeyPairs  = new ArrayBlockingQueue<DHKeyPair>(depth);
+		
+		/* Fill queues until they are full, then wait for key pairs to be taken. */
+		this.rsaThread = new Thread("KeyPool-RSA-Thread"){
+			public void run(){
+				try{
+					while(true){
+						rsaKeyPairs.put(RSA.generateKeyPair(RSA_KEY_SIZE));
+					}
+				}
+				catch(InterruptedException e){
+					/* Pool was shut down. */
+				}
+			}
+		};
+		this.dhThread = new Thread("KeyPool-DH-Thread"){
+			public void run(){
+				try{
+					while(true){
+						dhKeyPairs.put(DH.generateKeyPair(DH_KEY_SIZE));
+					}
+				}
+				catch(InterruptedException e){
+					/* Pool was shut down. */
+				}
+			}
+		};
+		
+		/* Don't keep the JVM alive and don't compete with other work. */
+		this.rsaThread.setDaemon(true);
+		this.rsaThread.setPriority(Thread.MIN_PRIORITY);
+		this.dhThread.setDaemon(true);
+		this.dhThread.setPriority(Thread.MIN_PRIORITY);
+		
+		this.rsaThread.start();
+		this.dhThread.start();
+	}
+	
+	/**
+	 * Get the default key pool. It is created and starts generating
+	 * key pairs on the first call, so calling this early at startup
+	 * makes key pairs available for the first login.
+	 * 
+	 * @return The default {@link KeyPool}.
+	 */
+	public static synchronized KeyPool getDefault(){
+		if(defaultPool == null){
+			defaultPool = new KeyPool(DEFAULT_DEPTH);
+		}
+		
+		return defaultPool;
+	}
+	
+	/**
+	 * Replace the default key pool, e.g. to use a different depth.
+	 * 
+	 * @param pool The new default {@link KeyPool}.
+	 */
+	public static synchronized void setDefault(KeyPool pool){
+		defaultPool = pool;
+	}
+	
+	/**
+	 * Take a pre-generated RSA key pair. Doesn't wait for the
+	 * background thread, but generates one on the calling thread if none is ready.
+	 * 
+	 * @return A {@link RSAKeyPair}.
+	 */
+	public RSAKeyPair takeRSAKeyPair(){
+		RSAKeyPair keyPair = this.rsaKeyPairs.poll();
+		
+		if(keyPair == null){
+			keyPair = RSA.generateKeyPair(RSA_KEY_SIZE);
+		}
+		
+		return keyPair;
+	}
+	
+	/**
+	 * Take a pre-generated Diffie-Hellman key pair. Doesn't wait
+	 * for the background thread, but generates one on the calling thread if none is ready.
+	 * 
+	 * @return A {@link DHKeyPair}.
+	 */
+	public DHKeyPair takeDHKeyPair(){
+		DHKeyPair keyPair = this.dhKeyPairs.poll();
+		
+		if(keyPair == null){
+			keyPair = DH.generateKeyPair(DH_KEY_SIZE);
+		}
+		
+		return keyPair;
+	}
+	
+	/**
+	 * Get the number of key pairs of each type that are ready.
+	 * 
+	 * @return The smaller of the number of RSA and DH key pairs ready.
+	 */
+	public int available(){
+		return Math.min(this.rsaKeyPairs.size(), this.dhKeyPairs.size());
+	}
+	
+	/**
+	 * Stop generating key pairs. Key pairs that are
+	 * ready can still be taken.
+	 */
+	public void shutdown(){
+		this.rsaThread.interrupt();
+		this.dhThread.interrupt();
+	}
+}
@@ -15,9 +15,20 @@ import java.util.Arrays;
  */
 public class RSA {
 	/**
-	 * {@link KeyPairGenerator} object for creating new key pairs.
+	 * {@link KeyPairGenerator} objects for creating new key pairs, one per
+	 * thread, so generating a pair never waits for another thread (e.g.
+	 * the background generator of a {@link KeyPool}).
 	 */
-	private static KeyPairGenerator keyPairGenerator;
+	private static final ThreadLocal<KeyPairGenerator> keyPairGenerator = new ThreadLocal<KeyPairGenerator>(){
+		protected KeyPairGenerator initialValue(){
+			try{
+				return KeyPairGenerator.getInstance("RSA");
+			}
+			catch(NoSuchAlgorithmException e){
+				throw new RuntimeException(e);
+			}
+		}
+	};
 	
 	/**
 	 * {@link RSA} instance for creating new {@link RSAKeyPair} objects.
@@ -25,16 +36,9 @@ public class RSA {
 	private static RSA instance;
 	
 	/**
-	 * Statically instantiate needed objects and create a class instance.
+	 * Create a class instance.
 	 */
 	static{
-		try{
-			keyPairGenerator = KeyPairGenerator.getInstance("RSA");
-		}
-		catch(NoSuchAlgorithmException e){
-			throw new RuntimeException(e);
-		}
-		
 		/* Create RSA instance for creating new RSAKeyPair objects. */
 		instance = new RSA();
 	}
@@ -47,10 +51,7 @@ public class RSA {
 	 * @return A {@link RSAKeyPair} holding RSA private and public keys.
 	 */
 	public static RSAKeyPair generateKeyPair(int keysize){
-		/* Check if key pair generator is instantiated. */
-		if(keyPairGenerator == null){
-			throw new RuntimeException("KeyPairGenerator not instantiated!");
-		}
+		KeyPairGenerator keyPairGenerator = RSA.keyPairGenerator.get();
 		
 		/* Initialize key pair generator with keysize in bits. */
 		keyPairGenerator.initialize(keysize);
@@ -1,9 +1,13 @@
 package de.felixbruns.jotify.crypto;
 
+import java.nio.ByteBuffer;
+
 /**
  * Implementation of the Shannon stream-cipher.
  * 
- * Based on original reference implementation in C.
+ * Based on original reference implementation in C. Encryption and
+ * decryption work in place on a range of an array or on a (heap or
+ * direct) {@link ByteBuffer}.
  * 
  * @author Felix Bruns <felixbruns@web.de>
  */
@@ -20,6 +24,9 @@ public class Shannon {
 	private static final int INITKONST = 0x6996c53a; /* Value of konst to use during key loading. */
 	private static final int KEYP      = 13;         /* Where to insert key/MAC/counter words. */
 	
+	/* Size of the array buffers without accessible array are processed in. */
+	private static final int SCRATCH_SIZE = 4096;
+	
 	private int[] R;     /* Working storage for the shift register. */
 	private int[] CRC;   /* Working storage for CRC accumulation. */
 	private int[] initR; /* Saved register contents. */
@@ -28,6 +35,9 @@ public class Shannon {
 	private int   mbuf;  /* Partial word MAC buffer. */
 	private int   nbuf;  /* Number of part-word stream bits buffered. */
 	
+	/* Array to process buffers without accessible array in, allocated on first use. */
+	private byte[] scratch;
+	
 	/**
 	 * Create a new instance of the Shannon stream-cipher.
 	 */
@@ -205,8 +215,15 @@ public class Shannon {
 			this.cycle();
 		}
 		
+		this.finishKey(key.length);
+	}
+	
+	/* Fold in the length of loaded key material and diffuse. */
+	private void finishKey(int length){
+		int i;
+		
 		/* Also fold in the length of the key. */
-		this.addKey(key.length);
+		this.addKey(length);
 		
 		/* Cycle register. */
 		this.cycle();
@@ -261,6 +278,26 @@ public class Shannon {
 		this.nbuf = 0;
 	}
 	
+	/* Set IV from a big-endian 32-bit counter, without allocating. */
+	public void nonce(int nonce){
+		/* Reload register state. */
+		this.reloadState();
+		
+		/* Set initialization constant. */
+		this.konst = INITKONST;
+		
+		/* Load "IV" material, one word as read by loadKey. */
+		this.addKey(Integer.reverseBytes(nonce));
+		this.cycle();
+		this.finishKey(4);
+		
+		/* Set 'konst'. */
+		this.genKonst();
+		
+		/* Set 'nbuf' value to zero. */
+		this.nbuf = 0;
+	}
+	
 	/*
 	 * XOR pseudo-random bytes into buffer.
 	 * Note: doesn't play well with MAC functions. 
@@ -382,7 +419,7 @@ public class Shannon {
 	 * Note that plaintext is accumulated for MAC.
 	 */
 	public void encrypt(byte[] buffer){
-		this.encrypt(buffer, buffer.length);
+		this.encrypt(buffer, 0, buffer.length);
 	}
 	
 	/*
@@ -390,7 +427,16 @@ public class Shannon {
 	 * Note that plaintext is accumulated for MAC.
 	 */
 	public void encrypt(byte[] buffer, int n){
-		int i = 0, j;
+		this.encrypt(buffer, 0, n);
+	}
+	
+	/*
+	 * Combined MAC and encryption of 'n' bytes in place,
+	 * starting at offset 'off' in the buffer.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void encrypt(byte[] buffer, int off, int n){
+		int i = off, j;
 		int t;
 		
 		/* Handle any previously buffered bytes. */
@@ -408,7 +454,7 @@ public class Shannon {
 			
 			/* Not a whole word yet. */
 			if(this.nbuf != 0){
-				return;			
+				return;
 			}
 			
 			/* LFSR already cycled. */
@@ -416,7 +462,7 @@ public class Shannon {
 		}
 		
 		/* Handle whole words. */
-		j = n & ~0x03;
+		j = i + (n & ~0x03);
 		
 		while(i < j){
 			/* Cycle register. */
@@ -464,12 +510,26 @@ public class Shannon {
 		}
 	}
 	
+	/*
+	 * Combined MAC and encryption of the bytes between position and
+	 * limit of the buffer, in place. Position and limit are not changed.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void encrypt(ByteBuffer buffer){
+		if(buffer.hasArray()){
+			this.encrypt(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		else{
+			this.crypt(buffer, true);
+		}
+	}
+	
 	/*
 	 * Combined MAC and decryption.
 	 * Note that plaintext is accumulated for MAC.
 	 */
 	public void decrypt(byte[] buffer){
-		this.decrypt(buffer, buffer.length);
+		this.decrypt(buffer, 0, buffer.length);
 	}
 	
 	/*
@@ -477,7 +537,16 @@ public class Shannon {
 	 * Note that plaintext is accumulated for MAC.
 	 */
 	public void decrypt(byte[] buffer, int n){
-		int i = 0, j;
+		this.decrypt(buffer, 0, n);
+	}
+	
+	/*
+	 * Combined MAC and decryption of 'n' bytes in place,
+	 * starting at offset 'off' in the buffer.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void decrypt(byte[] buffer, int off, int n){
+		int i = off, j;
 		int t;
 		
 		/* Handle any previously buffered bytes. */
@@ -495,7 +564,7 @@ public class Shannon {
 			
 			/* Not a whole word yet. */
 			if(this.nbuf != 0){
-				return;			
+				return;
 			}
 			
 			/* LFSR already cycled. */
@@ -503,7 +572,7 @@ public class Shannon {
 		}
 		
 		/* Handle whole words. */
-		j = n & ~0x03;
+		j = i + (n & ~0x03);
 		
 		while(i < j){
 			/* Cycle register. */
@@ -551,6 +620,47 @@ public class Shannon {
 		}
 	}
 	
+	/*
+	 * Combined MAC and decryption of the bytes between position and
+	 * limit of the buffer, in place. Position and limit are not changed.
+	 * Note that plaintext is accumulated for MAC.
+	 */
+	public void decrypt(ByteBuffer buffer){
+		if(buffer.hasArray()){
+			this.decrypt(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+		}
+		else{
+			this.crypt(buffer, false);
+		}
+	}
+	
+	/* Encrypt or decrypt a buffer without accessible array (e.g. direct) through the scratch array. */
+	private void crypt(ByteBuffer buffer, boolean encrypt){
+		ByteBuffer view = buffer.duplicate();
+		int        n;
+		
+		if(this.scratch == null){
+			this.scratch = new byte[SCRATCH_SIZE];
+		}
+		
+		while(view.hasRemaining()){
+			n = Math.min(view.remaining(), SCRATCH_SIZE);
+			
+			view.mark();
+			view.get(this.scratch, 0, n);
+			view.reset();
+			
+			if(encrypt){
+				this.encrypt(this.scratch, 0, n);
+			}
+			else{
+				this.decrypt(this.scratch, 0, n);
+			}
+			
+			view.put(this.scratch, 0, n);
+		}
+	}
+	
 	/*
 	 * Having accumulated a MAC, finish processing and return it.
 	 * Note that any unprocessed bytes are treated as if they were
@@ -566,7 +676,15 @@ public class Shannon {
 	 * encrypted zero bytes, so plaintext (zero) is accumulated.
 	 */
 	public void finish(byte[] buffer, int n){
-		int i = 0, j;
+		this.finish(buffer, 0, n);
+	}
+	
+	/*
+	 * Having accumulated a MAC, finish processing and write 'n' bytes
+	 * of it to the buffer, starting at offset 'off'.
+	 */
+	public void finish(byte[] buffer, int off, int n){
+		int i = off, j;
 		
 		/* Handle any previously buffered bytes. */
 		if(this.nbuf != 0){
@@ -608,7 +726,7 @@ public class Shannon {
 			}
 			else{
 				for(j = 0; j < n; j++){
-					buffer[i + j] = (byte)((this.sbuf >> (i * 8)) & 0xFF);
+					buffer[i + j] = (byte)((this.sbuf >> ((i - off) * 8)) & 0xFF);
 				}
 				
 				break;
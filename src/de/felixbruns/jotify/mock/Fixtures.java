@@ -0,0 +1,173 @@
+package de.felixbruns.jotify.mock;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.felixbruns.jotify.crypto.Hash;
+import de.felixbruns.jotify.util.Hex;
+
+/**
+ * Data served by a {@link MockServer}, read from a fixture directory.
+ * Files are read once and kept in memory, so serving them doesn't
+ * touch the disk while benchmarking. See {@link MockServer} for the
+ * directory layout.
+ */
+class Fixtures {
+	/* Directory to read files from. */
+	private File directory;
+	
+	/* Files read so far, by path. Missing files map to null. */
+	private Map<String, byte[]> files;
+	
+	/**
+	 * Create a new fixture set.
+	 * 
+	 * @param directory The fixture directory.
+	 */
+	public Fixtures(File directory){
+		this.directory = directory;
+		this.files     = new HashMap<String, byte[]>();
+	}
+	
+	/**
+	 * Get the XML answering a browse request.
+	 * 
+	 * @param type 1 for an artist, 2 for an album and 3 for tracks.
+	 * @param ids  The requested ids.
+	 * 
+	 * @return The XML or null if any id is unknown.
+	 */
+	public byte[] browse(int type, List<String> ids){
+		/* Artists and albums are served as they are, plus a terminating newline like the real server sends. */
+		if(type == 1 || type == 2){
+			byte[] xml = this.get((type == 1 ? "artist/" : "album/") + ids.get(0) + ".xml");
+			
+			if(xml == null){
+				return null;
+			}
+			
+			xml = Arrays.copyOf(xml, xml.length + 1);
+			
+			xml[xml.length - 1] = '\n';
+			
+			return xml;
+		}
+		
+		/* Wrap track elements into a result. */
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		
+		try{
+			output.write("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<result><tracks>".getBytes("UTF-8"));
+			
+			for(String id : ids){
+				byte[] track = this.get("track/" + id + ".xml");
+				
+				if(track == null){
+					return null;
+				}
+				
+				output.write(track);
+			}
+			
+			output.write("</tracks></result>\n".getBytes("UTF-8"));
+		}
+		catch(IOException e){
+			/* Can't happen when writing to memory. */
+			throw new RuntimeException(e);
+		}
+		
+		return output.toByteArray();
+	}
+	
+	/**
+	 * Get an image.
+	 * 
+	 * @param id The 40-character hex image id.
+	 * 
+	 * @return The image data or null if it is unknown.
+	 */
+	public byte[] image(String id){
+		return this.get("image/" + id);
+	}
+	
+	/**
+	 * Get the (decrypted) data of an audio file.
+	 * 
+	 * @param id The 40-character hex file id.
+	 * 
+	 * @return The file data or null if it is unknown.
+	 */
+	public byte[] audio(String id){
+		return this.get("audio/" + id);
+	}
+	
+	/**
+	 * Get the AES key of an audio file. It is read from a key file, if
+	 * one exists, otherwise the first 16 bytes of the SHA-1 hash of the
+	 * file id are used.
+	 * 
+	 * @param id The 40-character hex file id.
+	 * 
+	 * @return A 16-byte AES key.
+	 */
+	public byte[] key(String id){
+		byte[] key = this.get("audio/" + id + ".key");
+		
+		if(key == null || key.length != 16){
+			key = Arrays.copyOf(Hash.sha1(Hex.toBytes(id)), 16);
+		}
+		
+		return key;
+	}
+	
+	/* Get a file by path relative to the fixture directory. */
+	private synchronized byte[] get(String path){
+		if(this.files.containsKey(path)){
+			return this.files.get(path);
+		}
+		
+		byte[] data = null;
+		File   file = new File(this.directory, path);
+		
+		if(file.isFile()){
+			try{
+				data = read(file);
+			}
+			catch(IOException e){
+				System.err.println("Error reading fixture '" + file + "': " + e.getMessage());
+			}
+		}
+		
+		this.files.put(path, data);
+		
+		return data;
+	}
+	
+	/* Read a whole file. */
+	private static byte[] read(File file) throws IOException {
+		InputStream input = new FileInputStream(file);
+		
+		try{
+			byte[] data = new byte[(int)file.length()];
+			int    n    = 0;
+			
+			for(int r; n < data.length && (r = input.read(data, n, data.length - n)) > 0; n += r);
+			
+			if(n != data.length){
+				throw new IOException("Unexpected end of file.");
+			}
+			
+			return data;
+		}
+		finally{
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,633 @@
+package de.felixbruns.jotify.mock;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import de.felixbruns.jotify.crypto.DH;
+import de.felixbruns.jotify.crypto.Hash;
+import de.felixbruns.jotify.crypto.HmacSha1;
+import de.felixbruns.jotify.crypto.KeyPool;
+import de.felixbruns.jotify.crypto.RandomBytes;
+import de.felixbruns.jotify.crypto.Shannon;
+import de.felixbruns.jotify.crypto.DH.DHKeyPair;
+import de.felixbruns.jotify.protocol.Command;
+import de.felixbruns.jotify.util.GZIP;
+import de.felixbruns.jotify.util.Hex;
+import de.felixbruns.jotify.util.IntegerUtilities;
+
+/**
+ * A single client connection of a {@link MockServer}. Performs the
+ * server side of the handshake, then receives packets on its own thread
+ * and answers requests on the executor of the server.
+ */
+class MockConnection implements Runnable {
+	/* Static IV of substream encryption (see SpotifyInputStream). */
+	private static final byte[] IV = new byte[]{
+		(byte)0x72, (byte)0xe0, (byte)0x67, (byte)0xfb,
+		(byte)0xdd, (byte)0xcb, (byte)0xcf, (byte)0x77,
+		(byte)0xeb, (byte)0xe8, (byte)0xbc, (byte)0x64,
+		(byte)0x3f, (byte)0x63, (byte)0x0d, (byte)0x93
+	};
+	
+	/* Server this connection belongs to. */
+	private MockServer server;
+	
+	/* Client socket and its streams. */
+	private Socket          socket;
+	private DataInputStream input;
+	private OutputStream    output;
+	
+	/* Stream ciphers and IVs for sending and receiving. */
+	private Shannon shannonSend;
+	private Shannon shannonRecv;
+	private int     sendIv;
+	private int     recvIv;
+	
+	/* RSA public key of the client, echoed in the secret block. */
+	private byte[] clientRsaKey;
+	
+	/* Ids of channels aborted by the client. */
+	private Set<Integer> aborted;
+	
+	/* Earliest time the next packet may be sent, for bandwidth limiting (ns). */
+	private long nextSend;
+	
+	/* Random number generator for loss injection. */
+	private Random random;
+	
+	public MockConnection(MockServer server, Socket socket) throws IOException {
+		this.server       = server;
+		this.socket       = socket;
+		this.input        = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.output       = socket.getOutputStream();
+		this.shannonSend  = new Shannon();
+		this.shannonRecv  = new Shannon();
+		this.sendIv       = 0;
+		this.recvIv       = 0;
+		this.clientRsaKey = null;
+		this.aborted      = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+		this.nextSend     = 0;
+		this.random       = new Random();
+	}
+	
+	/**
+	 * Perform the handshake, then receive and answer
+	 * packets until the connection is closed.
+	 */
+	public void run(){
+		try{
+			if(!this.handshake()){
+				return;
+			}
+			
+			this.sendWelcome();
+			
+			while(true){
+				this.receivePacket();
+			}
+		}
+		catch(IOException e){
+			/* Connection was closed. */
+		}
+		finally{
+			this.close();
+		}
+	}
+	
+	/* Close the connection. */
+	void close(){
+		try{
+			this.socket.close();
+		}
+		catch(IOException e){
+			/* Just don't care. */
+		}
+		
+		this.server.removeConnection(this);
+	}
+	
+	/*
+	 * Server side of the key exchange and authentication (see
+	 * Protocol and Session). Returns false if authentication failed.
+	 */
+	private boolean handshake() throws IOException {
+		/* Read initial client packet, starting with version and length. */
+		byte[] clientPacket = new byte[4];
+		
+		this.input.readFully(clientPacket);
+		
+		int length = ((clientPacket[2] & 0xFF) << 8) | (clientPacket[3] & 0xFF);
+		
+		if(length < 276){
+			throw new IOException("Initial packet is too short.");
+		}
+		
+		clientPacket = Arrays.copyOf(clientPacket, length);
+		
+		this.input.readFully(clientPacket, 4, length - 4);
+		
+		/* Get client random, public keys and username. */
+		byte[] clientRandom   = Arrays.copyOfRange(clientPacket, 32, 48);
+		byte[] dhClientKey    = Arrays.copyOfRange(clientPacket, 48, 144);
+		int    randomLength   = clientPacket[272] & 0xFF;
+		int    usernameLength = clientPacket[273] & 0xFF;
+		byte[] username       = Arrays.copyOfRange(clientPacket, 276 + randomLength, 276 + randomLength + usernameLength);
+		
+		this.clientRsaKey = Arrays.copyOfRange(clientPacket, 144, 272);
+		
+		/* Create server random, DH key pair, salt and puzzle. */
+		byte[]    serverRandom = RandomBytes.randomBytes(16);
+		DHKeyPair dhKeyPair    = KeyPool.getDefault().takeDHKeyPair();
+		byte[]    salt         = RandomBytes.randomBytes(10);
+		byte[]    padding      = RandomBytes.randomBytes(1);
+		int       denominator  = 4;
+		int       magic        = this.random.nextInt();
+		
+		/* A status byte of zero means success. */
+		serverRandom[0] = 0x00;
+		
+		/* Build initial server packet. */
+		ByteBuffer buffer = ByteBuffer.allocate(
+			16 + 96 + 256 + 10 + 1 + 1 + 8 + padding.length + username.length + 6
+		);
+		
+		buffer.put(serverRandom); /* 16 bytes */
+		buffer.put(dhKeyPair.getPublicKeyBytes()); /* 96 bytes */
+		buffer.put(RandomBytes.randomBytes(256)); /* Blob, not checked by the client. */
+		buffer.put(salt); /* 10 bytes */
+		buffer.put((byte)padding.length);
+		buffer.put((byte)username.length);
+		buffer.putShort((short)6); /* Puzzle challenge length. */
+		buffer.putShort((short)0);
+		buffer.putShort((short)0);
+		buffer.putShort((short)0);
+		buffer.put(padding);
+		buffer.put(username);
+		buffer.put((byte)0x01); /* SHA-1 puzzle. */
+		buffer.put((byte)denominator);
+		buffer.putInt(magic);
+		
+		byte[] serverPacket = buffer.array();
+		
+		this.output.write(serverPacket);
+		this.output.flush();
+		
+		/* Compute shared key and derive keys like the client does. */
+		byte[] sharedKey = DH.computeSharedKey(
+			dhKeyPair.getPrivateKey(),
+			DH.bytesToPublicKey(dhKeyPair.getPublicKey().getParams(), dhClientKey)
+		);
+		
+		byte[] password = this.server.getPassword().getBytes();
+		byte[] authHash = Hash.sha1(
+			ByteBuffer.allocate(salt.length + 1 + password.length).put(salt).put((byte)' ').put(password).array()
+		);
+		
+		byte[] message = ByteBuffer.allocate(20 + 16 + 16 + 1)
+			.put(authHash).put(clientRandom).put(serverRandom).put((byte)0x00).array();
+		byte[] hmac    = new byte[5 * 20];
+		
+		HmacSha1 hmacSha1 = new HmacSha1(sharedKey);
+		
+		for(int i = 1; i <= 5; i++){
+			message[message.length - 1] = (byte)i;
+			
+			hmacSha1.hmac(message, hmac, (i - 1) * 20);
+			
+			System.arraycopy(hmac, (i - 1) * 20, message, 0, 20);
+		}
+		
+		byte[] keyHmac = Arrays.copyOfRange(hmac, 0, 20);
+		
+		/* Client sends with its send key, we receive with it. */
+		this.shannonRecv.key(Arrays.copyOfRange(hmac, 20, 20 + 32));
+		this.shannonSend.key(Arrays.copyOfRange(hmac, 52, 52 + 32));
+		
+		/* Read authentication packet. */
+		byte[] authentication = new byte[20 + 1 + 1 + 2 + 4];
+		
+		this.input.readFully(authentication);
+		
+		int    solutionLength = ((authentication[22] & 0xFF) << 8) | (authentication[23] & 0xFF);
+		byte[] solution       = new byte[solutionLength];
+		
+		this.input.readFully(solution);
+		
+		/* Check auth HMAC, which also proves the password, username and puzzle solution. */
+		byte[] authHmac = Hash.hmacSha1(
+			ByteBuffer.allocate(clientPacket.length + serverPacket.length + 1 + 1 + 2 + 4 + solution.length)
+				.put(clientPacket).put(serverPacket)
+				.put((byte)0).put((byte)0).putShort((short)solution.length).putInt(0)
+				.put(solution).array(),
+			keyHmac
+		);
+		
+		boolean authenticated =
+			new String(username).equals(this.server.getUsername()) &&
+			Arrays.equals(authHmac, Arrays.copyOfRange(authentication, 0, 20)) &&
+			this.checkPuzzle(serverRandom, solution, denominator, magic);
+		
+		/* Send status, length and payload. */
+		if(!authenticated){
+			this.output.write(new byte[]{ 0x01, 0x01, 0x00 });
+			this.output.flush();
+			
+			return false;
+		}
+		
+		this.output.write(new byte[]{ 0x00, 0x01, 0x00 });
+		this.output.flush();
+		
+		return true;
+	}
+	
+	/* Check a puzzle solution (see Session). */
+	private boolean checkPuzzle(byte[] serverRandom, byte[] solution, int denominator, int magic){
+		byte[] digest = Hash.sha1(
+			ByteBuffer.allocate(serverRandom.length + solution.length).put(serverRandom).put(solution).array()
+		);
+		
+		int value = ByteBuffer.wrap(digest, 16, 4).getInt() ^ magic;
+		
+		return (value & ((1 << denominator) - 1)) == 0;
+	}
+	
+	/* Send the packets a client gets after logging in. */
+	private void sendWelcome() throws IOException {
+		/* Secret block, with the RSA public key of the client at offset 16. */
+		byte[] secret = new byte[336];
+		
+		System.arraycopy(this.clientRsaKey, 0, secret, 16, this.clientRsaKey.length);
+		
+		this.sendPacket(Command.COMMAND_SECRETBLK, secret);
+		this.sendPacket(Command.COMMAND_COUNTRYCODE, "SE".getBytes("UTF-8"));
+		this.sendPacket(Command.COMMAND_PRODINFO, (
+			"<products><product><type>premium</type>" +
+			"<expiry>0</expiry><user-country>SE</user-country>" +
+			"</product></products>"
+		).getBytes("UTF-8"));
+		this.sendPacket(Command.COMMAND_WELCOME, new byte[0]);
+		
+		/* Ping once, so clients can measure the round-trip time. */
+		this.sendPacket(Command.COMMAND_PING, IntegerUtilities.toBytes((int)(System.currentTimeMillis() / 1000)));
+	}
+	
+	/* Receive and decrypt a packet, then dispatch it. */
+	private void receivePacket() throws IOException {
+		byte[] header = new byte[3];
+		
+		this.input.readFully(header);
+		
+		this.shannonRecv.nonce(this.recvIv++);
+		this.shannonRecv.decrypt(header, 0, 3);
+		
+		int    command = header[0] & 0xFF;
+		int    length  = ((header[1] & 0xFF) << 8) | (header[2] & 0xFF);
+		byte[] payload = new byte[length + 4];
+		
+		/* Read and decrypt payload and MAC, then throw away the MAC. */
+		this.input.readFully(payload);
+		
+		this.shannonRecv.decrypt(payload, 0, payload.length);
+		
+		this.dispatch(command, Arrays.copyOf(payload, length));
+	}
+	
+	/* Answer a request on the executor, after the configured latency. */
+	private void dispatch(final int command, final byte[] payload){
+		/* Aborts take effect right away. */
+		if(command == Command.COMMAND_CHANNELABRT){
+			if(payload.length >= 2){
+				this.aborted.add(ByteBuffer.wrap(payload).getShort() & 0xFFFF);
+			}
+			
+			return;
+		}
+		
+		try{
+			this.server.getExecutor().execute(new Runnable(){
+				public void run(){
+					try{
+						long latency = server.getLatency();
+						
+						if(latency > 0){
+							Thread.sleep(latency);
+						}
+						
+						answer(command, ByteBuffer.wrap(payload));
+					}
+					catch(InterruptedException e){
+						/* Server was stopped. */
+					}
+					catch(IOException e){
+						close();
+					}
+				}
+			});
+		}
+		catch(RejectedExecutionException e){
+			/* Server was stopped. */
+		}
+	}
+	
+	/* Answer a single request. */
+	private void answer(int command, ByteBuffer payload) throws IOException {
+		switch(command){
+			case Command.COMMAND_BROWSE: {
+				int          channel = payload.getShort() & 0xFFFF;
+				List<String> ids     = new ArrayList<String>();
+				
+				payload.getShort(); /* Unknown. */
+				
+				int type = payload.get();
+				
+				while(payload.remaining() >= 16){
+					byte[] id = new byte[16];
+					
+					payload.get(id);
+					
+					ids.add(Hex.toHex(id));
+				}
+				
+				/* Artist and album requests end with a timestamp. */
+				if(type != 3 && ids.size() > 1){
+					ids = ids.subList(0, 1);
+				}
+				
+				byte[] xml = ids.isEmpty() ? null : this.server.getFixtures().browse(type, ids);
+				
+				if(xml == null){
+					this.sendChannelError(channel);
+				}
+				else{
+					this.sendChannel(channel, GZIP.deflate(xml));
+				}
+				
+				break;
+			}
+			case Command.COMMAND_IMAGE: {
+				int    channel = payload.getShort() & 0xFFFF;
+				byte[] id      = new byte[20];
+				
+				payload.getShort(); /* Unknown. */
+				payload.get(id);
+				
+				byte[] image = this.server.getFixtures().image(Hex.toHex(id));
+				
+				if(image == null){
+					this.sendChannelError(channel);
+				}
+				else{
+					this.sendChannel(channel, image);
+				}
+				
+				break;
+			}
+			case Command.COMMAND_REQKEY: {
+				byte[] file = new byte[20];
+				
+				payload.get(file);
+				
+				int channel = payload.getShort(20 + 16 + 2) & 0xFFFF;
+				
+				/* Unknown, channel id, key. */
+				ByteBuffer buffer = ByteBuffer.allocate(2 + 2 + 16);
+				
+				buffer.putShort((short)0x0000);
+				buffer.putShort((short)channel);
+				buffer.put(this.server.getFixtures().key(Hex.toHex(file)));
+				
+				this.sendPacket(Command.COMMAND_AESKEY, buffer.array());
+				
+				break;
+			}
+			case Command.COMMAND_GETSUBSTREAM: {
+				int    channel = payload.getShort(0) & 0xFFFF;
+				byte[] file    = new byte[20];
+				
+				payload.position(2 + 12 + 4);
+				payload.get(file);
+				
+				/* Offsets are in 4-byte words. */
+				long offset = (payload.getInt() & 0xFFFFFFFFL) << 2;
+				long end    = (payload.getInt() & 0xFFFFFFFFL) << 2;
+				
+				this.sendSubstream(channel, Hex.toHex(file), offset, end);
+				
+				break;
+			}
+			case Command.COMMAND_PONG: {
+				this.sendPacket(Command.COMMAND_PONGACK, new byte[4]);
+				
+				break;
+			}
+			case Command.COMMAND_SEARCH:
+			case Command.COMMAND_GETTOPLIST:
+			case Command.COMMAND_GETPLAYLIST:
+			case Command.COMMAND_CHANGEPLAYLIST:
+			case Command.COMMAND_REQUESTAD: {
+				/* Not supported, all of these start with a channel id. */
+				this.sendChannelError(payload.getShort() & 0xFFFF);
+				
+				break;
+			}
+			default: {
+				/* Cache hash, play request, etc. need no answer. */
+				break;
+			}
+		}
+	}
+	
+	/* Send data on a channel, without headers. */
+	private void sendChannel(int channel, byte[] data) throws IOException {
+		int packetSize = this.server.getPacketSize();
+		
+		/* Empty header list. */
+		this.sendChannelData(channel, new byte[]{ 0x00, 0x00 }, 0, 2);
+		
+		for(int offset = 0; offset < data.length; offset += packetSize){
+			this.sendChannelData(channel, data, offset, Math.min(packetSize, data.length - offset));
+		}
+		
+		/* Empty packet marks the end. */
+		this.sendChannelData(channel, data, 0, 0);
+	}
+	
+	/*
+	 * Send a part of an audio file, encrypted with AES-CTR and
+	 * interleaved in packets, the way SpotifyInputStream expects it.
+	 */
+	private void sendSubstream(int channel, String file, long offset, long end) throws IOException {
+		byte[] audio = this.server.getFixtures().audio(file);
+		
+		if(audio == null){
+			this.sendChannelError(channel);
+			
+			return;
+		}
+		
+		/* Stream length is sent in 4-byte words. */
+		int length = audio.length & ~3;
+		
+		/* Header with stream length and end of headers. */
+		ByteBuffer header = ByteBuffer.allocate(2 + 5 + 2);
+		
+		header.putShort((short)5);
+		header.put((byte)0x03);
+		header.putInt(length >> 2);
+		header.putShort((short)0);
+		
+		this.sendChannelData(channel, header.array(), 0, header.capacity());
+		
+		/* Encrypt requested part. */
+		int    from       = (int)Math.min(offset, length);
+		int    to         = (int)Math.min(end, length);
+		byte[] ciphertext;
+		
+		try{
+			BigInteger counter = new BigInteger(IV).add(BigInteger.valueOf(from / 16));
+			Cipher     cipher  = Cipher.getInstance("AES/CTR/NoPadding");
+			
+			cipher.init(
+				Cipher.ENCRYPT_MODE,
+				new SecretKeySpec(this.server.getFixtures().key(file), "AES"),
+				new IvParameterSpec(counter.toByteArray())
+			);
+			
+			ciphertext = cipher.doFinal(audio, from, to - from);
+		}
+		catch(GeneralSecurityException e){
+			throw new RuntimeException("AES/CTR is not available!", e);
+		}
+		
+		/* Send interleaved packets, unless the channel gets aborted. */
+		int packetSize = this.server.getPacketSize();
+		
+		for(int position = 0; position < ciphertext.length; position += packetSize){
+			if(this.aborted.remove(channel)){
+				return;
+			}
+			
+			byte[] packet = interleave(ciphertext, position, Math.min(packetSize, ciphertext.length - position));
+			
+			this.sendChannelData(channel, packet, 0, packet.length);
+		}
+		
+		this.aborted.remove(channel);
+		
+		/* Empty packet marks the end. */
+		this.sendChannelData(channel, ciphertext, 0, 0);
+	}
+	
+	/*
+	 * Interleave a packet in blocks of 4x256 bytes. A last, smaller
+	 * block is divided into 4 parts of equal size.
+	 */
+	private static byte[] interleave(byte[] data, int offset, int length){
+		byte[] packet = new byte[length];
+		
+		for(int block = 0; block < length; block += 1024){
+			int size = Math.min(1024, length - block) / 4;
+			
+			for(int i = 0; i < size; i++){
+				for(int j = 0; j < 4; j++){
+					packet[block + j * size + i] = data[offset + block + i * 4 + j];
+				}
+			}
+		}
+		
+		return packet;
+	}
+	
+	/* Send a packet of channel data, prefixed with the channel id. */
+	private void sendChannelData(int channel, byte[] data, int offset, int length) throws IOException {
+		byte[] payload = new byte[2 + length];
+		
+		payload[0] = (byte)(channel >> 8);
+		payload[1] = (byte)(channel);
+		
+		System.arraycopy(data, offset, payload, 2, length);
+		
+		this.sendPacket(Command.COMMAND_CHANNELDATA, payload);
+	}
+	
+	/* Send a channel error. */
+	private void sendChannelError(int channel) throws IOException {
+		this.sendPacket(Command.COMMAND_CHANNELERR, new byte[]{ (byte)(channel >> 8), (byte)channel });
+	}
+	
+	/*
+	 * Encrypt and send a packet. Packets are encrypted and written in
+	 * order, the bandwidth limit and loss injection are applied here.
+	 */
+	private void sendPacket(int command, byte[] payload) throws IOException {
+		int    length = payload.length, headerLength = 3, macLength = 4;
+		byte[] bytes  = new byte[headerLength + length + macLength];
+		
+		bytes[0] = (byte)command;
+		bytes[1] = (byte)(length >> 8);
+		bytes[2] = (byte)(length);
+		
+		System.arraycopy(payload, 0, bytes, headerLength, length);
+		
+		synchronized(this.output){
+			/* Drop connection instead of sending. */
+			if(this.random.nextDouble() < this.server.getLossRate()){
+				this.close();
+				
+				throw new IOException("Connection dropped.");
+			}
+			
+			this.throttle(bytes.length);
+			
+			this.shannonSend.nonce(this.sendIv++);
+			this.shannonSend.encrypt(bytes, headerLength + length);
+			this.shannonSend.finish(bytes, headerLength + length, macLength);
+			
+			this.output.write(bytes);
+			this.output.flush();
+		}
+	}
+	
+	/* Wait until the given number of bytes may be sent. */
+	private void throttle(int bytes) throws IOException {
+		long bandwidth = this.server.getBandwidth();
+		
+		if(bandwidth <= 0){
+			return;
+		}
+		
+		long now  = System.nanoTime();
+		long wait = this.nextSend - now;
+		
+		/* Sleep until the previous packets were sent. */
+		if(wait > 0){
+			try{
+				Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+			}
+			catch(InterruptedException e){
+				throw new IOException("Interrupted while sending.");
+			}
+		}
+		
+		this.nextSend = Math.max(this.nextSend, now) + bytes * 1000000000L / bandwidth;
+	}
+}
@@ -0,0 +1,384 @@
+package de.felixbruns.jotify.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+
+/**
+ * Local stand-in for a Spotify access point, to exercise the networking,
+ * channel and streaming code without a live server, e.g. for load and
+ * regression tests. It speaks the handshake and the Shannon-encrypted
+ * framing of {@link de.felixbruns.jotify.protocol.Protocol} and serves
+ * files from a fixture directory:
+ * 
+ * <pre>
+ * artist/&lt;id&gt;.xml   Artist browse response.
+ * album/&lt;id&gt;.xml    Album browse response.
+ * track/&lt;id&gt;.xml    A &lt;track&gt; element. Track browse responses are
+ *                   wrapped in &lt;result&gt;&lt;tracks&gt;.
+ * image/&lt;id&gt;        Image data.
+ * audio/&lt;id&gt;        Decrypted audio file, served as an AES-CTR encrypted,
+ *                   interleaved substream.
+ * audio/&lt;id&gt;.key    Optional 16-byte AES key of an audio file. Otherwise
+ *                   the first 16 bytes of the SHA-1 hash of the file id.
+ * </pre>
+ * 
+ * Ids are hex strings, as in requests. Unknown ids and unsupported
+ * requests (search, toplists, playlists, ads) are answered with a
+ * channel error.
+ * 
+ * Latency, bandwidth and connection loss can be simulated, see
+ * {@link #setLatency(long)}, {@link #setBandwidth(long)} and
+ * {@link #setLossRate(double)}.
+ */
+public class MockServer implements Runnable {
+	/* Fixtures to serve. */
+	private Fixtures fixtures;
+	
+	/* The only account that can log in. */
+	private String username;
+	private String password;
+	
+	/* Simulated network conditions. */
+	private volatile long   latency;
+	private volatile long   bandwidth;
+	private volatile double lossRate;
+	
+	/* Size of substream data packets, in bytes. */
+	private volatile int packetSize;
+	
+	/* Listening socket and open connections. */
+	private ServerSocket         socket;
+	private List<MockConnection> connections;
+	
+	/* Executor that requests are answered on. */
+	private ExecutorService executor;
+	
+	/**
+	 * Create a new mock server.
+	 * 
+	 * @param fixtures Fixture directory to serve files from.
+	 * @param username Username of the only account.
+	 * @param password Password of the only account.
+	 */
+	public MockServer(File fixtures, String username, String password){
+		this.fixtures    = new Fixtures(fixtures);
+		this.username    = username;
+		this.password    = password;
+		this.latency     = 0;
+		this.bandwidth   = 0;
+		this.lossRate    = 0.0;
+		this.packetSize  = 4096;
+		this.socket      = null;
+		this.connections = new ArrayList<MockConnection>();
+		this.executor    = Executors.newCachedThreadPool(new ThreadFactory(){
+			private int count = 0;
+			
+			public synchronized Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Mock-Thread-" + this.count++);
+				
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		});
+	}
+	
+	/**
+	 * Set the time to wait before answering a request.
+	 * 
+	 * @param latency Latency in ms.
+	 */
+	public void setLatency(long latency){
+		this.latency = latency;
+	}
+	
+	/**
+	 * Limit the rate at which each connection sends data.
+	 * 
+	 * @param bandwidth Bandwidth in bytes per second or 0 for no limit.
+	 */
+	public void setBandwidth(long bandwidth){
+		this.bandwidth = bandwidth;
+	}
+	
+	/**
+	 * Set the probability that a connection is dropped, instead
+	 * of sending a packet, e.g. to test reconnecting.
+	 * 
+	 * @param lossRate Probability between 0.0 and 1.0.
+	 */
+	public void setLossRate(double lossRate){
+		this.lossRate = lossRate;
+	}
+	
+	/**
+	 * Set the size of substream data packets. It needs to match the
+	 * chunk size used by {@link de.felixbruns.jotify.player.SpotifyInputStream}.
+	 * 
+	 * @param packetSize Packet size in bytes, a multiple of 1024.
+	 */
+	public void setPacketSize(int packetSize){
+		/* Check packet size. */
+		if(packetSize <= 0 || packetSize % 1024 != 0 || packetSize > 0xFFFF - 2){
+			throw new IllegalArgumentException("Packet size needs to be a multiple of 1024 and < 64 KiB.");
+		}
+		
+		this.packetSize = packetSize;
+	}
+	
+	/**
+	 * Start listening on the given address and accepting
+	 * connections on a background thread.
+	 * 
+	 * @param address The address to listen on, port 0 picks a free port.
+	 * 
+	 * @return The address actually listened on.
+	 * 
+	 * @throws IOException If the address can't be bound.
+	 */
+	public InetSocketAddress start(InetSocketAddress address) throws IOException {
+		this.socket = new ServerSocket();
+		
+		this.socket.setReuseAddress(true);
+		this.socket.bind(address);
+		
+		Thread thread = new Thread(this, "Mock-Accept-Thread");
+		
+		thread.setDaemon(true);
+		thread.start();
+		
+		return this.getAddress();
+	}
+	
+	/**
+	 * Start listening on a free port of the loopback interface.
+	 * 
+	 * @return The address actually listened on.
+	 * 
+	 * @throws IOException If no port can be bound.
+	 */
+	public InetSocketAddress start() throws IOException {
+		return this.start(new InetSocketAddress("127.0.0.1", 0));
+	}
+	
+	/**
+	 * Get the address this server listens on.
+	 * 
+	 * @return An {@link InetSocketAddress} or null if not started.
+	 */
+	public InetSocketAddress getAddress(){
+		if(this.socket == null){
+			return null;
+		}
+		
+		return new InetSocketAddress(this.socket.getInetAddress(), this.socket.getLocalPort());
+	}
+	
+	/**
+	 * Stop listening and close all connections.
+	 */
+	public void stop(){
+		try{
+			if(this.socket != null){
+				this.socket.close();
+			}
+		}
+		catch(IOException e){
+			/* Just don't care. */
+		}
+		
+		/* Drop all connections, like a restarting server. */
+		this.dropConnections();
+		
+		this.executor.shutdownNow();
+	}
+	
+	/**
+	 * Close all open connections, but keep accepting new ones.
+	 * Simulates a server restart.
+	 */
+	public void dropConnections(){
+		List<MockConnection> connections;
+		
+		synchronized(this.connections){
+			connections = new ArrayList<MockConnection>(this.connections);
+		}
+		
+		for(MockConnection connection : connections){
+			connection.close();
+		}
+	}
+	
+	/**
+	 * Get the number of open connections.
+	 * 
+	 * @return The number of connections.
+	 */
+	public int getConnectionCount(){
+		synchronized(this.connections){
+			return this.connections.size();
+		}
+	}
+	
+	/**
+	 * Accept connections until stopped.
+	 */
+	public void run(){
+		try{
+			while(true){
+				Socket socket = this.socket.accept();
+				
+				socket.setTcpNoDelay(true);
+				
+				MockConnection connection = new MockConnection(this, socket);
+				
+				synchronized(this.connections){
+					this.connections.add(connection);
+				}
+				
+				Thread thread = new Thread(connection, "Mock-Connection-Thread");
+				
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		catch(IOException e){
+			/* Server socket was closed. */
+		}
+	}
+	
+	/* Called by connections when they are closed. */
+	void removeConnection(MockConnection connection){
+		synchronized(this.connections){
+			this.connections.remove(connection);
+		}
+	}
+	
+	Fixtures getFixtures(){
+		return this.fixtures;
+	}
+	
+	String getUsername(){
+		return this.username;
+	}
+	
+	String getPassword(){
+		return this.password;
+	}
+	
+	long getLatency(){
+		return this.latency;
+	}
+	
+	long getBandwidth(){
+		return this.bandwidth;
+	}
+	
+	double getLossRate(){
+		return this.lossRate;
+	}
+	
+	int getPacketSize(){
+		return this.packetSize;
+	}
+	
+	ExecutorService getExecutor(){
+		return this.executor;
+	}
+	
+	/**
+	 * Run a mock server from the command line.
+	 * 
+	 * @param args Command line arguments, see usage.
+	 */
+	public static void main(String[] args){
+		Options       options = new Options();
+		CmdLineParser parser  = new CmdLineParser(options);
+		
+		try{
+			parser.parseArgument(args);
+			
+			if(options.arguments.size() != 1){
+				throw new CmdLineException(parser, "Exactly one fixture directory is required.");
+			}
+		}
+		catch(CmdLineException e){
+			System.err.println(e.getMessage());
+			System.err.println("Usage: MockServer [options] <fixture directory>");
+			
+			parser.printUsage(System.err);
+			
+			return;
+		}
+		
+		MockServer server = new MockServer(new File(options.arguments.get(0)), options.username, options.password);
+		
+		server.setLatency(options.latency);
+		server.setBandwidth(options.bandwidth);
+		server.setLossRate(options.lossRate);
+		server.setPacketSize(options.packetSize);
+		
+		try{
+			System.out.println("Listening on " + server.start(new InetSocketAddress(options.port)));
+		}
+		catch(IOException e){
+			System.err.println("Error starting server: " + e.getMessage());
+			
+			return;
+		}
+		
+		/* Serve until killed. */
+		synchronized(server){
+			while(true){
+				try{
+					server.wait();
+				}
+				catch(InterruptedException e){
+					break;
+				}
+			}
+		}
+		
+		server.stop();
+	}
+	
+	/* Command line options. */
+	private static class Options {
+		@Option(name="-port", metaVar="<port>", usage="Port to listen on (default: 4070)")
+		private int port = 4070;
+		
+		@Option(name="-user", metaVar="<username>", usage="Username of the only account (default: mock)")
+		private String username = "mock";
+		
+		@Option(name="-password", metaVar="<password>", usage="Password of the only account (default: mock)")
+		private String password = "mock";
+		
+		@Option(name="-latency", metaVar="<ms>", usage="Time to wait before answering a request (default: 0)")
+		private long latency = 0;
+		
+		@Option(name="-bandwidth", metaVar="<bytes/s>", usage="Bandwidth per connection, 0 for no limit (default: 0)")
+		private long bandwidth = 0;
+		
+		@Option(name="-loss", metaVar="<rate>", usage="Probability of dropping a connection per packet (default: 0.0)")
+		private double lossRate = 0.0;
+		
+		@Option(name="-packetsize", metaVar="<bytes>", usage="Size of substream data packets (default: 4096)")
+		private int packetSize = 4096;
+		
+		@Argument
+		private List<String> arguments = new ArrayList<String>();
+	}
+}
@@ -2,26 +2,21 @@ package de.felixbruns.jotify.player;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.math.BigInteger;
-
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.Key;
-import java.security.NoSuchAlgorithmException;
 
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
-import javax.crypto.Cipher;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-
+import de.felixbruns.jotify.crypto.AudioCipher;
 import de.felixbruns.jotify.exceptions.ProtocolException;
 import de.felixbruns.jotify.media.File;
 import de.felixbruns.jotify.media.Track;
@@ -29,6 +24,7 @@ import de.felixbruns.jotify.protocol.Protocol;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelCallback;
 import de.felixbruns.jotify.protocol.channel.ChannelListener;
+import de.felixbruns.jotify.util.Cancellable;
 import de.felixbruns.jotify.util.IntegerUtilities;
 
 public class SpotifyInputStream extends InputStream implements ChannelListener {
@@ -48,6 +44,9 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 	private Track    track;
 	private File     file;
 	
+	/* Priority of substream requests. */
+	private Channel.Priority priority;
+	
 	/* 
 	 * Map of data chunks which is used as a
 	 * sparse buffer.
@@ -70,17 +69,29 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 	private int streamOffset;
 	private int chunkIndex;
 	
-	/* 
-	 * Cipher implementation, key and IV
-	 * for decryption of audio stream.
+	/* Offset in Spotify stream of the data received next. */
+	private long dataOffset;
+	
+	/* Cipher for decryption of audio stream. */
+	private AudioCipher cipher;
+	
+	/*
+	 * Executor to decrypt data on in parallel or null, idle ciphers of
+	 * its threads, segments waiting to be published in order and end of
+	 * a substream that waits for its segments.
 	 */
-	private Cipher cipher;
-	private Key    key;
-	private byte[] iv;
+	private volatile Executor  executor;
+	private Queue<AudioCipher> ciphers;
+	private Queue<Segment>     segments;
+	private Runnable           ending;
 	
 	/* Status flags of this InputStream. */
 	private boolean isClosed;
 	private boolean isLoading;
+	private boolean isFailed;
+	
+	/* Listener of the substream request currently loading or null. */
+	private volatile Substream substream;
 	
 	/* Lock and Condition for signalling. */
 	private Lock      requestLock;
@@ -91,6 +102,7 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		this.protocol = protocol;
 		this.track    = track;
 		this.file     = track.getFile(bitrate);
+		this.priority = Channel.Priority.PRIORITY_PREFETCH;
 		this.CHUNK_SIZE = chunk_size;
 		this.SUBSTREAM_SIZE = substream_size;
 		
@@ -109,19 +121,16 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		this.streamLength = -1;
 		this.streamOffset =  0;
 		this.chunkIndex   =  0;
+		this.dataOffset   =  0;
 		
-		/* Get AES/CTR/NoPadding instance. */		
-		try{
-			this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
-			this.key    = null;
-			this.iv     = null;
-		}
-		catch(NoSuchAlgorithmException e){
-			throw new RuntimeException("AES/CTR is not available!", e);
-		}
-		catch(NoSuchPaddingException e){
-			throw new RuntimeException("NoPadding is not available!", e);
-		}
+		/* Cipher is created once the AES key is known. */
+		this.cipher = null;
+		
+		/* Decrypt on the thread receiving data by default. */
+		this.executor = null;
+		this.ciphers  = new ConcurrentLinkedQueue<AudioCipher>();
+		this.segments = new LinkedList<Segment>();
+		this.ending   = null;
 		
 		/* 
 		 * Request AES key for this track and file
@@ -132,6 +141,8 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		/* Set status flags. */
 		this.isClosed  = false;
 		this.isLoading = false;
+		this.isFailed  = false;
+		this.substream = null;
 		
 		/* Initialize Lock and Condition. */
 		this.requestLock      = new ReentrantLock();
@@ -177,7 +188,9 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 			if(key != null)
 				done=true;
 			else {
-				/* Send AES key request. */
+				/* Send AES key request, the channel of the last one expires. */
+				callback = new ChannelCallback();
+				
 				try{
 					this.protocol.sendAesKeyRequest(callback, this.track, this.file);
 				}
@@ -187,13 +200,13 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 			}
 		}
 			
-		/* Create SecretKeySpec from AES key bytes and set initial IV. */		
+		/* Create cipher from AES key bytes. */
 		boolean doneaes = false;
 		done=false;
 
 		while(!doneaes) {
 			try {
-				this.key = new SecretKeySpec(key, "AES");
+				this.cipher = new AudioCipher(key);
 				doneaes = true;
 			} catch(Exception e) {
 				System.out.print(":");
@@ -205,6 +218,8 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 				}
 				
 				/* Send AES key request. */
+				callback = new ChannelCallback();
+				
 				try{
 					this.protocol.sendAesKeyRequest(callback, this.track, this.file);
 				}
@@ -222,25 +237,6 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 				done=false;
 			}
 		}
-
-		
-		this.iv  = new byte[]{
-			(byte)0x72, (byte)0xe0, (byte)0x67, (byte)0xfb,
-			(byte)0xdd, (byte)0xcb, (byte)0xcf, (byte)0x77,
-			(byte)0xeb, (byte)0xe8, (byte)0xbc, (byte)0x64,
-			(byte)0x3f, (byte)0x63, (byte)0x0d, (byte)0x93
-		};
-		
-		/* Initialize cipher with key and IV in encrypt mode. */
-		try{
-			this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(this.iv));
-		}
-		catch(InvalidKeyException e){
-			throw new RuntimeException("Invalid key!", e);
-		}
-		catch(InvalidAlgorithmParameterException e){
-			throw new RuntimeException("Invalid IV!", e);
-		}
 	}
 	
 	/**
@@ -267,30 +263,15 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		/* Set loading flag. */
 		this.isLoading = true;
 		
-		/* Re-Initialize cipher with key and IV in encrypt mode. */
-		try{
-			/* Create BigInteger from IV. */
-			BigInteger counter = new BigInteger(this.iv);
-			
-			/* Add stream offset divided by 16 (16 byte blocks). */
-			counter = counter.add(BigInteger.valueOf(this.streamOffset / 16));
-			
-			/* Re-Initialize cipher. */
-			this.cipher.init(Cipher.ENCRYPT_MODE, this.key, new IvParameterSpec(counter.toByteArray()));
-		}
-		catch (InvalidKeyException e){
-			throw new RuntimeException("Invalid key!", e);
-		}
-		catch (InvalidAlgorithmParameterException e){
-			throw new RuntimeException("Invalid IV!", e);
-		}
-		
 		/* Request substream, if this fails reset loading flag. */
+		this.substream = new Substream();
+		
 		try{
-			this.protocol.sendSubstreamRequest(this, this.file, this.streamOffset, SUBSTREAM_SIZE);
+			this.substream.request = this.protocol.sendSubstreamRequest(this.substream, this.file, this.streamOffset, SUBSTREAM_SIZE, this.priority);
 		}
 		catch(ProtocolException e){
 			this.isLoading = false;
+			this.substream = null;
 			
 			return false;
 		}
@@ -303,6 +284,18 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		return this.file.getBitrate();
 	}
 	
+	/**
+	 * Set the priority of substream requests. Streams that are played
+	 * use {@link Channel.Priority#PRIORITY_PREFETCH} (the default), while
+	 * downloads should use {@link Channel.Priority#PRIORITY_BULK}, so they
+	 * don't delay other requests on the same connection.
+	 * 
+	 * @param priority The priority.
+	 */
+	public void setPriority(Channel.Priority priority){
+		this.priority = priority;
+	}
+	
 	/**
 	 * Returns the number of bytes that can be read (or skipped over)
 	 * from this input stream without blocking.
@@ -350,8 +343,33 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 	 * @throws IOException If an I/O error occurs.
 	 */
 	public void close() throws IOException {
-		this.chunks   = null;
-		this.isClosed = true;
+		Substream substream;
+		
+		this.requestLock.lock();
+		
+		/* Check if stream is closed already. */
+		if(this.isClosed){
+			this.requestLock.unlock();
+			
+			return;
+		}
+		
+		substream = this.substream;
+		
+		this.substream = null;
+		this.isClosed  = true;
+		this.isLoading = false;
+		
+		/* Wake up waiting readers. */
+		this.requestCondition.signalAll();
+		this.requestLock.unlock();
+		
+		/* Stop the server from sending data nobody reads. */
+		if(substream != null){
+			substream.abort();
+		}
+		
+		this.chunks = null;
 	}
 	
 	/**
@@ -392,25 +410,35 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 			return -1;
 		}
 		
-		/* Acquire request lock. */
+		/* Acquire request lock, released even if the stream was closed meanwhile. */
 		this.requestLock.lock();
 		
-		/* Request data. */
-		while(this.available() == 0){
-			/* Calculate stream offset for next data request. */
-			this.streamOffset = this.readIndex * CHUNK_SIZE;
-			
-			/* Try to request data, if this fails exit loop. */
-			if(!this.requestData()){
-				break;
+		try{
+			/* Request data. */
+			while(this.available() == 0){
+				/* Calculate stream offset for next data request. */
+				this.streamOffset = this.readIndex * CHUNK_SIZE;
+				
+				/* Try to request data, if this fails exit loop. */
+				if(!this.requestData()){
+					break;
+				}
+				
+				/* Wait until a chunk arrived. (TODO: Timeout, then throw IOException!?) */
+				this.requestCondition.awaitUninterruptibly();
+				
+				/* Loading failed, e.g. because the connection was lost for good. */
+				if(this.isFailed){
+					this.isFailed = false;
+					
+					throw new IOException("Error loading data!");
+				}
 			}
-			
-			/* Wait until a chunk arrived. (TODO: Timeout, then throw IOException!?) */
-			this.requestCondition.awaitUninterruptibly();
 		}
-		
-		/* Release request lock again. */
-		this.requestLock.unlock();
+		finally{
+			/* Release request lock again. */
+			this.requestLock.unlock();
+		}
 		
 		/* Get current chunk. */
 		byte[] chunk = this.chunks.get(this.readIndex);
@@ -489,25 +517,35 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 			return -1;
 		}
 		
-		/* Acquire request lock. */
+		/* Acquire request lock, released even if the stream was closed meanwhile. */
 		this.requestLock.lock();
 		
-		/* Request data. */
-		while(this.available() == 0){
-			/* Calculate stream offset for next data request. (TODO: Search next hole in data) */
-			this.streamOffset = this.readIndex * CHUNK_SIZE;
-			
-			/* Try to request data, if this fails exit loop. */
-			if(!this.requestData()){
-				break;
+		try{
+			/* Request data. */
+			while(this.available() == 0){
+				/* Calculate stream offset for next data request. (TODO: Search next hole in data) */
+				this.streamOffset = this.readIndex * CHUNK_SIZE;
+				
+				/* Try to request data, if this fails exit loop. */
+				if(!this.requestData()){
+					break;
+				}
+				
+				/* Wait until a chunk arrived. (TODO: Timeout, then throw IOException!?) */
+				this.requestCondition.awaitUninterruptibly();
+				
+				/* Loading failed, e.g. because the connection was lost for good. */
+				if(this.isFailed){
+					this.isFailed = false;
+					
+					throw new IOException("Error loading data!");
+				}
 			}
-			
-			/* Wait until a chunk arrived. (TODO: Timeout, then throw IOException!?) */
-			this.requestCondition.awaitUninterruptibly();
 		}
-		
-		/* Release request lock again. */
-		this.requestLock.unlock();
+		finally{
+			/* Release request lock again. */
+			this.requestLock.unlock();
+		}
 		
 		/* Determine number of bytes to copy. */
 		len = Math.min(len, this.available());
@@ -634,6 +672,8 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		/* Seek to requested offset. */
 		this.readIndex    = (int)(off / CHUNK_SIZE);
 		this.readPosition = (int)(off % CHUNK_SIZE);
+		
+		this.abortOutside(off);
 	}
 	
 	/**
@@ -670,13 +710,41 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 		this.readIndex    += (int)(n / CHUNK_SIZE);
 		this.readPosition += (int)(n % CHUNK_SIZE);
 		
+		this.abortOutside(this.tell());
+		
 		/* Return number of bytes skipped. */
 		return n;
 	}
 	
+	/*
+	 * Abort the substream currently loading, if the given offset is
+	 * outside of it, so the next read requests data at the new offset
+	 * right away, instead of waiting for data that may never be read.
+	 */
+	private void abortOutside(long offset){
+		Substream substream = null;
+		
+		this.requestLock.lock();
+		
+		if(this.isLoading && (offset < this.streamOffset || offset >= this.streamOffset + SUBSTREAM_SIZE)){
+			substream = this.substream;
+			
+			this.substream  = null;
+			this.isLoading  = false;
+			this.chunkIndex = 0;
+		}
+		
+		this.requestLock.unlock();
+		
+		if(substream != null){
+			substream.abort();
+		}
+	}
+	
 	public void channelHeader(Channel channel, byte[] header){
-		/* Calculate chunk index in sparse buffer. */
+		/* Calculate chunk index in sparse buffer and offset of data. */
 		this.chunkIndex = this.streamOffset / CHUNK_SIZE;
+		this.dataOffset = this.streamOffset;
 		
 		/* Get stream length. */
 		if(header[0] == 0x03){
@@ -685,75 +753,51 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 	}
 	
 	public void channelData(Channel channel, byte[] data){
-		/* Offsets needed for deinterleaving. */
-		int off, w, x, y, z;
-		
-		/* Allocate space for ciphertext. */
-        byte[] ciphertext;
-		ciphertext = new byte[data.length];
-		
-		/* Deinterleave 4x256 byte blocks. */
-		for(int block = 0; block < data.length / 1024; block++){
-			off = block * 1024;
-			w	= block * 1024 + 0 * 256;
-			x	= block * 1024 + 1 * 256;
-			y	= block * 1024 + 2 * 256;
-			z	= block * 1024 + 3 * 256;
-			
-			for(int i = 0; i < 1024 && (block * 1024 + i) < data.length; i += 4){
-				ciphertext[off++] = data[w++];
-				ciphertext[off++] = data[x++];
-				ciphertext[off++] = data[y++];
-				ciphertext[off++] = data[z++];
-			}
-		}
+		Executor executor = this.executor;
 		
-		/* We didn't know what to do with the last block before. it's usually smaller
-		 * than 1024 bytes, so the 4x256 deinterleaving scheme doesn't apply.
-		 * But as it turned out, we just have to divide this block into 4 parts of
-		 * equal size, and apply the same principle we used for the blocks
-		 * of size 1024. We verified that this method is correct by checking the
-		 * crc of the last ogg page of the file. 
-		 */
-		if (data.length % 1024 != 0) {
-			int block = (int)Math.ceil(data.length/1024);
-			off = block * 1024;
-			int lastblock_size = data.length - off;
-			int sub_block_size = lastblock_size / 4;
-			if (sub_block_size*4 != lastblock_size) {
-				System.out.println("subblock size doesn't add up: "+Integer.toString(sub_block_size*4));
-				System.out.println("last block size:" + Integer.toString(lastblock_size));
-			}
-			w	= block * 1024 + 0 * sub_block_size;
-			x	= block * 1024 + 1 * sub_block_size;
-			y	= block * 1024 + 2 * sub_block_size;
-			z	= block * 1024 + 3 * sub_block_size;
-				
-			for(int i = 0;  (block * 1024 + i) < data.length; i += 4){
-				ciphertext[off++] = data[w++];
-				ciphertext[off++] = data[x++];
-				ciphertext[off++] = data[y++];
-				ciphertext[off++] = data[z++];
-			}
+		/* Decrypt in parallel, segments are published in order. */
+		if(data.length > 0 && executor != null){
+			this.decrypt(executor, new Segment(this.chunkIndex++, this.dataOffset, data));
+			
+			this.dataOffset += data.length;
+			
+			return;
 		}
 		
-		
-		if (ciphertext.length>0) {
-			/* Decrypt data. */
-			byte[] plaintext = this.cipher.update(ciphertext);
-		
+		if(data.length > 0){
+			/* Deinterleave and decrypt data in place, it is not used elsewhere. */
+			this.cipher.decrypt(this.dataOffset, data, 0, data, 0, data.length);
+			
+			this.dataOffset += data.length;
+			
 			/* Put decrypted data into sparse buffer. */
-			this.chunks.put(this.chunkIndex++, plaintext);
+			this.chunks.put(this.chunkIndex++, data);
 		}
+		
 		/* Signal data arrival. */
 		this.requestLock.lock();
 		this.requestCondition.signal();
 		this.requestLock.unlock();
 	}
 	
-	public void channelEnd(Channel channel){
+	public void channelEnd(final Channel channel){
+		final Substream substream = this.substream;
+		
+		/* End once all segments of the substream are published. */
+		synchronized(this.segments){
+			if(!this.segments.isEmpty() && substream != null){
+				this.ending = new Runnable(){
+					public void run(){
+						substream.channelEnd(channel);
+					}
+				};
+				
+				return;
+			}
+		}
+		
 		/* Unregister finished channel. */
-		Channel.unregister(channel.getId());
+		channel.unregister();
 		
 		/* Reset chunk index and status flags. */
 		this.chunkIndex = 0;
@@ -766,6 +810,171 @@ public class SpotifyInputStream extends InputStream implements ChannelListener {
 	}
 	
 	public void channelError(Channel channel){
-		/* Just ignore channel errors. */
+		/* Reset chunk index and status flags, let reader fail. */
+		this.chunkIndex = 0;
+		this.isLoading  = false;
+		this.isFailed   = true;
+		
+		/* Signal error. */
+		this.requestLock.lock();
+		this.requestCondition.signal();
+		this.requestLock.unlock();
+	}
+	
+	/**
+	 * Decrypt received data on an executor, e.g. a thread pool with a
+	 * thread per core, instead of the thread receiving it. Data is split
+	 * into segments of one packet (usually {@code chunk_size} bytes), which
+	 * are decrypted in parallel and put into the buffer in order.
+	 * 
+	 * @param executor An {@link Executor} or null to decrypt on the receiving thread.
+	 */
+	public void setExecutor(Executor executor){
+		this.executor = executor;
+	}
+	
+	/* Queue a segment and decrypt it on the executor. */
+	private void decrypt(Executor executor, final Segment segment){
+		synchronized(this.segments){
+			this.segments.add(segment);
+		}
+		
+		try{
+			executor.execute(new Runnable(){
+				public void run(){
+					decrypt(segment);
+				}
+			});
+		}
+		catch(RejectedExecutionException e){
+			/* E.g. shut down, decrypt on this thread. */
+			this.decrypt(segment);
+		}
+	}
+	
+	/* Decrypt a segment with an idle cipher and publish it. */
+	private void decrypt(Segment segment){
+		AudioCipher cipher = this.ciphers.poll();
+		
+		/* Segments are at different offsets, every thread needs its own cipher. */
+		if(cipher == null){
+			cipher = this.cipher.copy();
+		}
+		
+		try{
+			cipher.decrypt(segment.offset, segment.data, 0, segment.data, 0, segment.data.length);
+		}
+		finally{
+			this.ciphers.offer(cipher);
+		}
+		
+		this.publish(segment);
+	}
+	
+	/* Put all decrypted segments up to the first one still being decrypted into the buffer. */
+	private void publish(Segment segment){
+		Runnable ending = null;
+		
+		synchronized(this.segments){
+			Map<Integer,byte[]> chunks = this.chunks;
+			
+			segment.done = true;
+			
+			while(!this.segments.isEmpty() && this.segments.peek().done){
+				segment = this.segments.poll();
+				
+				/* Closed meanwhile. */
+				if(chunks != null){
+					chunks.put(segment.index, segment.data);
+				}
+			}
+			
+			if(this.segments.isEmpty()){
+				ending      = this.ending;
+				this.ending = null;
+			}
+		}
+		
+		/* Signal data arrival. */
+		this.requestLock.lock();
+		this.requestCondition.signal();
+		this.requestLock.unlock();
+		
+		if(ending != null){
+			ending.run();
+		}
+	}
+	
+	/* Data of a packet and where it goes in the stream and buffer. */
+	private static class Segment {
+		private int     index;
+		private long    offset;
+		private byte[]  data;
+		private boolean done;
+		
+		public Segment(int index, long offset, byte[] data){
+			this.index  = index;
+			this.offset = offset;
+			this.data   = data;
+			this.done   = false;
+		}
+	}
+	
+	/*
+	 * Listener of a single substream request. Callbacks of requests that
+	 * are not loading anymore, after a seek or close, abort their channel
+	 * and are dropped, so they can't mix with data of a newer request.
+	 */
+	private class Substream implements ChannelListener {
+		/* Request sent to the protocol. */
+		private volatile Cancellable request;
+		
+		/*
+		 * Drop the request if it still waits to be sent, otherwise abort
+		 * its channel and don't request further slices of it. Callbacks
+		 * that are on their way abort their channel themselves.
+		 */
+		public void abort(){
+			Cancellable request = this.request;
+			
+			if(request != null){
+				request.cancel();
+			}
+		}
+		
+		/* Check if this request is still loading, abort its channel if not. */
+		private boolean isCurrent(Channel channel){
+			if(substream != this){
+				channel.abort();
+				
+				return false;
+			}
+			
+			return true;
+		}
+		
+		public void channelHeader(Channel channel, byte[] header){
+			if(this.isCurrent(channel)){
+				SpotifyInputStream.this.channelHeader(channel, header);
+			}
+		}
+		
+		public void channelData(Channel channel, byte[] data){
+			if(this.isCurrent(channel)){
+				SpotifyInputStream.this.channelData(channel, data);
+			}
+		}
+		
+		public void channelEnd(Channel channel){
+			if(this.isCurrent(channel)){
+				SpotifyInputStream.this.channelEnd(channel);
+			}
+		}
+		
+		public void channelError(Channel channel){
+			if(this.isCurrent(channel)){
+				SpotifyInputStream.this.channelError(channel);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
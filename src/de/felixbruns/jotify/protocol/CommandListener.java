@@ -1,5 +1,17 @@
 package de.felixbruns.jotify.protocol;
 
+import java.nio.ByteBuffer;
+
 public interface CommandListener {
-	public void commandReceived(int command, byte[] payload);
+	/**
+	 * Handle a received command.
+	 * 
+	 * The payload is a read-only view into the reusable receive buffer
+	 * of the {@link Protocol} and is only valid until this method returns.
+	 * Listeners that need to keep (parts of) the payload must copy it.
+	 * 
+	 * @param command The command.
+	 * @param payload A read-only view of the decrypted payload.
+	 */
+	public void commandReceived(int command, ByteBuffer payload);
 }
@@ -0,0 +1,11 @@
+package de.felixbruns.jotify.protocol;
+
+public interface ConnectionListener {
+	/**
+	 * Handle a lost connection, e.g. by reconnecting. Called on the
+	 * thread that noticed it, which must not be blocked for long.
+	 * 
+	 * @param protocol The {@link Protocol} that lost its connection.
+	 */
+	public void connectionLost(Protocol protocol);
+}
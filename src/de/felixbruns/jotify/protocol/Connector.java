@@ -0,0 +1,346 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import de.felixbruns.jotify.exceptions.ConnectionException;
+
+/**
+ * Connects to one of multiple servers by racing connects in parallel,
+ * similar to "Happy Eyeballs" (RFC 6555). A new attempt is started
+ * whenever the previous one didn't complete within a short delay or
+ * failed. Once connected, the initial packet is sent and the first
+ * server to respond wins, all other attempts are closed. Servers that
+ * close the connection instead of responding don't win.
+ */
+public class Connector {
+	/* Maximum number of attempts in flight. */
+	private int width;
+	
+	/* Delay before starting the next attempt, in ms. */
+	private long delay;
+	
+	/* Timeout for a single connect and handshake, in ms. */
+	private long timeout;
+	
+	/* Statistics to order servers by and record measurements in. */
+	private ServerStatistics statistics;
+	
+	/**
+	 * Create a new connector.
+	 * 
+	 * @param width      Maximum number of attempts in flight.
+	 * @param delay      Delay before starting the next attempt, in ms.
+	 * @param timeout    Timeout for a single connect and handshake, in ms.
+	 * @param statistics Statistics to order servers by and record measurements in.
+	 */
+	public Connector(int width, long delay, long timeout, ServerStatistics statistics){
+		/* Check width. */
+		if(width <= 0){
+			throw new IllegalArgumentException("Width needs to be > 0.");
+		}
+		
+		this.width      = width;
+		this.delay      = delay;
+		this.timeout    = timeout;
+		this.statistics = statistics;
+	}
+	
+	/**
+	 * Connect to the fastest responding server and send the initial
+	 * packet to it. The returned channel is in blocking mode and the
+	 * rest of the response can be read right away.
+	 * 
+	 * @param servers       The servers to try.
+	 * @param initialPacket The initial packet to send to each server.
+	 * @param response      Buffer to put the first byte of the response into,
+	 *                      it is read to make sure the server responded.
+	 * 
+	 * @return A connected {@link SocketChannel}.
+	 * 
+	 * @throws ConnectionException If no server responded.
+	 */
+	public SocketChannel connect(List<InetSocketAddress> servers, ByteBuffer initialPacket, ByteBuffer response) throws ConnectionException {
+		List<InetSocketAddress> candidates = this.statistics.sort(servers);
+		List<Attempt>           attempts   = new ArrayList<Attempt>();
+		Attempt                 winner     = null;
+		Selector                selector;
+		int                     next       = 0;
+		long                    start      = 0;
+		
+		try{
+			selector = Selector.open();
+		}
+		catch(IOException e){
+			throw new ConnectionException("Error opening selector!", e);
+		}
+		
+		try{
+			while(winner == null){
+				long now = System.currentTimeMillis();
+				
+				/* Start next attempt if the previous one is slow or failed. */
+				if(next < candidates.size() && attempts.size() < this.width && now >= start){
+					Attempt attempt = new Attempt(candidates.get(next++), initialPacket);
+					
+					if(attempt.start(selector, now)){
+						attempts.add(attempt);
+						
+						start = now + this.delay;
+					}
+					else{
+						this.statistics.recordFailure(attempt.server);
+					}
+					
+					continue;
+				}
+				
+				/* Give up if there's nothing left to try. */
+				if(attempts.isEmpty()){
+					if(next >= candidates.size()){
+						throw new ConnectionException("Error connecting to any server!");
+					}
+					
+					start = now;
+					
+					continue;
+				}
+				
+				/* Wait until the next attempt is due or one expires. */
+				long wait = Long.MAX_VALUE;
+				
+				if(next < candidates.size() && attempts.size() < this.width){
+					wait = start - now;
+				}
+				
+				for(Attempt attempt : attempts){
+					wait = Math.min(wait, attempt.deadline - now);
+				}
+				
+				selector.select(Math.max(1, wait));
+				
+				now = System.currentTimeMillis();
+				
+				/* Handle connected and responding servers. */
+				Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+				
+				while(iterator.hasNext() && winner == null){
+					SelectionKey key     = iterator.next();
+					Attempt      attempt = (Attempt)key.attachment();
+					
+					iterator.remove();
+					
+					if(!key.isValid()){
+						continue;
+					}
+					
+					try{
+						if(key.isConnectable()){
+							attempt.connected(now);
+						}
+						else if(key.isWritable()){
+							attempt.write();
+						}
+						else if(key.isReadable() && attempt.read()){
+							this.statistics.recordHandshake(attempt.server, now - attempt.connectTime);
+							
+							winner = attempt;
+						}
+					}
+					catch(IOException e){
+						System.err.println("Error connecting to '" + attempt.server + "': " + e.getMessage());
+						
+						this.statistics.recordFailure(attempt.server);
+						
+						attempt.close();
+						attempts.remove(attempt);
+						
+						start = now;
+					}
+				}
+				
+				/* Close attempts that took too long. */
+				Iterator<Attempt> expired = attempts.iterator();
+				
+				while(expired.hasNext() && winner == null){
+					Attempt attempt = expired.next();
+					
+					if(now >= attempt.deadline){
+						System.err.println("Timeout connecting to '" + attempt.server + "'.");
+						
+						this.statistics.recordFailure(attempt.server);
+						
+						attempt.close();
+						expired.remove();
+						
+						start = now;
+					}
+				}
+			}
+			
+			/*
+			 * Close all other attempts. They would have taken longer than
+			 * the winner, even if they started later. Record at least the
+			 * time the winner took, so they are not preferred later.
+			 */
+			long now   = System.currentTimeMillis();
+			long total = now - winner.startTime;
+			
+			for(Attempt attempt : attempts){
+				if(attempt != winner){
+					if(attempt.connectTime > 0){
+						this.statistics.recordHandshake(attempt.server, Math.max(now - attempt.connectTime, total));
+					}
+					else{
+						this.statistics.recordConnect(attempt.server, Math.max(now - attempt.startTime, total));
+					}
+					
+					attempt.close();
+				}
+			}
+		}
+		catch(ConnectionException e){
+			for(Attempt attempt : attempts){
+				attempt.close();
+			}
+			
+			throw e;
+		}
+		catch(IOException e){
+			for(Attempt attempt : attempts){
+				attempt.close();
+			}
+			
+			throw new ConnectionException("Error connecting to any server!", e);
+		}
+		finally{
+			/* Closing the selector deregisters all channels. */
+			try{
+				selector.close();
+			}
+			catch(IOException e){
+				/* Just don't care. */
+			}
+		}
+		
+		/* Switch winner back to blocking mode. */
+		try{
+			winner.channel.configureBlocking(true);
+		}
+		catch(IOException e){
+			winner.close();
+			
+			throw new ConnectionException("Error connecting to '" + winner.server + "'!", e);
+		}
+		
+		/* Hand over the byte read from the response. */
+		winner.response.flip();
+		
+		response.put(winner.response);
+		
+		return winner.channel;
+	}
+	
+	/* A single connect attempt. */
+	private class Attempt {
+		private InetSocketAddress server;
+		private SocketChannel     channel;
+		private SelectionKey      key;
+		private ByteBuffer        packet;
+		private ByteBuffer        response;
+		private long              startTime;
+		private long              connectTime;
+		private long              deadline;
+		
+		public Attempt(InetSocketAddress server, ByteBuffer packet){
+			this.server      = server;
+			this.channel     = null;
+			this.key         = null;
+			this.packet      = packet.duplicate();
+			this.response    = ByteBuffer.allocate(1);
+			this.startTime   = 0;
+			this.connectTime = 0;
+			this.deadline    = 0;
+		}
+		
+		/* Start connecting. Returns false if that failed immediately. */
+		public boolean start(Selector selector, long now){
+			this.startTime = now;
+			this.deadline  = now + timeout;
+			
+			try{
+				this.channel = SocketChannel.open();
+				this.channel.configureBlocking(false);
+				
+				if(this.channel.connect(this.server)){
+					this.key = this.channel.register(selector, 0, this);
+					
+					this.connected(now);
+				}
+				else{
+					this.key = this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+				}
+				
+				return true;
+			}
+			catch(Exception e){
+				/* Also catches unresolved addresses. */
+				System.err.println("Error connecting to '" + this.server + "': " + e.getMessage());
+				
+				this.close();
+				
+				return false;
+			}
+		}
+		
+		/* Finish connecting and start sending the initial packet. */
+		public void connected(long now) throws IOException {
+			this.channel.finishConnect();
+			
+			this.connectTime = now;
+			
+			statistics.recordConnect(this.server, this.connectTime - this.startTime);
+			
+			this.write();
+		}
+		
+		/* Write (the rest of) the initial packet, then wait for a response. */
+		public void write() throws IOException {
+			this.channel.write(this.packet);
+			
+			if(this.packet.hasRemaining()){
+				this.key.interestOps(SelectionKey.OP_WRITE);
+			}
+			else{
+				this.key.interestOps(SelectionKey.OP_READ);
+			}
+		}
+		
+		/* Read the first byte of the response. Returns false if there was none yet. */
+		public boolean read() throws IOException {
+			if(this.channel.read(this.response) == -1){
+				throw new IOException("Connection closed by server.");
+			}
+			
+			return !this.response.hasRemaining();
+		}
+		
+		public void close(){
+			try{
+				if(this.channel != null){
+					this.channel.close();
+				}
+			}
+			catch(IOException e){
+				/* Just don't care. */
+			}
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package de.felixbruns.jotify.protocol;
+
+import de.felixbruns.jotify.protocol.channel.Channel;
+
+public interface MetricsListener {
+	/**
+	 * Handle a round-trip time measured with ping/pong. Called on
+	 * the I/O thread, which must not be blocked for long.
+	 * 
+	 * @param protocol The {@link Protocol} the time was measured on.
+	 * @param rtt      The round-trip time in ms.
+	 */
+	public void rttMeasured(Protocol protocol, long rtt);
+	
+	/**
+	 * Handle a channel that was unregistered, after it ended, failed
+	 * or was aborted (see {@link Channel#getState()}). Called on the
+	 * thread that unregistered it, which must not be blocked for long.
+	 * 
+	 * @param protocol        The {@link Protocol} the channel was registered on.
+	 * @param channel         The channel.
+	 * @param timeToFirstByte Time from registering to the first data in ms, -1 if nothing was received.
+	 * @param duration        Time from registering to unregistering in ms.
+	 */
+	public void channelClosed(Protocol protocol, Channel channel, long timeToFirstByte, long duration);
+}
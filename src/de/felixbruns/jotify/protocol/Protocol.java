@@ -3,6 +3,8 @@ package de.felixbruns.jotify.protocol;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
@@ -12,6 +14,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -24,31 +33,128 @@ import de.felixbruns.jotify.media.PlaylistContainer;
 import de.felixbruns.jotify.media.Track;
 import de.felixbruns.jotify.protocol.channel.Channel;
 import de.felixbruns.jotify.protocol.channel.ChannelListener;
+import de.felixbruns.jotify.protocol.channel.ChannelTable;
+import de.felixbruns.jotify.protocol.channel.CreditScheduler;
+import de.felixbruns.jotify.util.Cancellable;
 import de.felixbruns.jotify.util.DNS;
 import de.felixbruns.jotify.util.Hex;
-import de.felixbruns.jotify.util.IntegerUtilities;
 
 public class Protocol {
+	/*
+	 * Races connects to up to 3 servers, starting the next one after
+	 * 250 ms, and gives each one 3 seconds to respond. Measurements
+	 * are shared by all sessions, so later connects try fast servers first.
+	 */
+	private static final ServerStatistics STATISTICS = new ServerStatistics();
+	private static final Connector        CONNECTOR  = new Connector(3, 250, 3000, STATISTICS);
+	
+	/* Size of the slices bulk substreams are requested in. */
+	private static final int BULK_SLICE_SIZE = 256 * 1024;
+	
 	/* Socket connection to Spotify server. */
 	private SocketChannel channel;
 	
 	/* Current server and port */
 	private InetSocketAddress server;
 	
+	/* Bytes of the initial server packet read while connecting. */
+	private ByteBuffer initialResponse;
+	
+	/* Servers to connect to instead of the ones found via DNS, or null. */
+	private List<InetSocketAddress> servers;
+	
 	/* Spotify session of this protocol instance. */
 	private Session session;
 	
-	/* Protocol listeners. */
-	private List<CommandListener> listeners;
+	/* Protocol and connection listeners. */
+	private List<CommandListener>    listeners;
+	private List<ConnectionListener> connectionListeners;
+	
+	/* Set once authenticated, cleared when (re)connecting. */
+	private volatile boolean authenticated;
+	
+	/* Recorder capturing decrypted commands or null. */
+	private volatile Recorder recorder;
+	
+	/* Round-trip time, traffic and channel metrics. */
+	private ProtocolMetrics metrics;
+	
+	/* Time after which channels other than substreams expire, in ms, or 0. */
+	private volatile long channelTimeout;
+	
+	/* Channels registered on this connection. */
+	private ChannelTable channels;
+	
+	/* 
+	 * Reusable receive buffer and decoder state. Large enough
+	 * to hold a complete packet (header, payload and MAC).
+	 */
+	private ByteBuffer receiveBuffer;
+	private int        receiveCommand;
+	private int        receiveLength;
+	
+	/*
+	 * Packets waiting to be encrypted and written, one queue for control
+	 * packets and one per channel priority, the writer lock and the
+	 * buffers of the gathering write currently in progress.
+	 */
+	private List<Queue<byte[]>> outbound;
+	private Lock                writeLock;
+	private ByteBuffer[]        writeBuffers;
+	private int                 writeCount;
+	
+	/* Reactor and selection key, if registered for non-blocking mode. */
+	private Reactor      reactor;
+	private SelectionKey key;
 	
 	/* Create a new protocol object. */
 	public Protocol(Session session){
-		this.session   = session;
-		this.listeners = new ArrayList<CommandListener>();
+		this.session             = session;
+		this.servers             = null;
+		this.listeners           = new ArrayList<CommandListener>();
+		this.connectionListeners = new CopyOnWriteArrayList<ConnectionListener>();
+		this.authenticated       = false;
+		this.recorder            = null;
+		this.metrics             = new ProtocolMetrics(this);
+		this.channelTimeout      = 0;
+		this.channels            = new ChannelTable(){
+			protected void aborted(Channel channel){
+				channelAborted(channel);
+			}
+			
+			protected void unregistered(Channel channel){
+				metrics.channelClosed(channel);
+			}
+		};
+		this.initialResponse     = ByteBuffer.allocate(1);
+		this.receiveBuffer       = ByteBuffer.allocate(3 + 0xffff + 4);
+		this.receiveCommand      = -1;
+		this.receiveLength       = 0;
+		this.outbound            = new ArrayList<Queue<byte[]>>();
+		this.writeLock           = new ReentrantLock();
+		this.writeBuffers        = new ByteBuffer[64];
+		this.writeCount          = 0;
+		this.reactor             = null;
+		this.key                 = null;
+		
+		/* Control packets first, then by channel priority. */
+		for(int i = 0; i <= Channel.Priority.values().length; i++){
+			this.outbound.add(new ConcurrentLinkedQueue<byte[]>());
+		}
+		
+		/* Nothing was read yet. */
+		this.initialResponse.flip();
 	}
 	
-	/* Connect to one of the spotify servers. */
+	/* Connect to one of the spotify servers and send the initial packet. */
 	public void connect() throws ConnectionException {
+		/* Use configured servers, e.g. a local mock server. */
+		if(this.servers != null){
+			this.connect(this.servers);
+			
+			return;
+		}
+		
 		/* Lookup servers via DNS SRV query. */
 		List<InetSocketAddress> servers = DNS.lookupSRV("_spotify-client._tcp.spotify.com");
 		
@@ -57,31 +163,98 @@ public class Protocol {
 		servers.add(new InetSocketAddress("ap.spotify.com", 80));
 		servers.add(new InetSocketAddress("ap.spotify.com", 443));
 		
-		/* Try to connect to each server, stop trying when connected. */
-		for(InetSocketAddress server : servers){
+		this.connect(servers);
+	}
+	
+	/*
+	 * Connect to one of the given servers and send the initial packet.
+	 * Connects are raced, the first server to respond is used. The
+	 * initial packet needs to be received afterwards.
+	 */
+	public void connect(List<InetSocketAddress> servers) throws ConnectionException {
+		/* Close previous connection, e.g. when retrying. */
+		if(this.channel != null){
 			try{
-				/* Try to connect to current server with a timeout of 1 second. */
-				this.channel = SocketChannel.open();
-				this.channel.socket().connect(server, 1000);
-				
-				/* Save server for later use. */
-				this.server = server;
-				
-				break;
+				this.channel.close();
+			}
+			catch(IOException e){
+				/* Just don't care. */
 			}
-			catch(Exception e){
-				System.err.println("Error connecting to '" + server + "': " + e.getMessage());
+		}
+		
+		/* Stop sending and drop queued packets. */
+		synchronized(this.outbound){
+			this.authenticated = false;
+			
+			for(Queue<byte[]> queue : this.outbound){
+				queue.clear();
 			}
+			
+			this.session.keyRecvIv = 0;
 		}
 		
-		/* If connection was not established, return false. */
-		if(!this.channel.isConnected()){
-			throw new ConnectionException("Error connecting to any server!");
+		/* Drop packets encrypted with the old keys. New connection, new keys and IVs. */
+		this.writeLock.lock();
+		
+		try{
+			Arrays.fill(this.writeBuffers, null);
+			
+			this.writeCount        = 0;
+			this.session.keySendIv = 0;
+		}
+		finally{
+			this.writeLock.unlock();
 		}
 		
+		/* Start with an empty receive buffer and in blocking mode. */
+		this.receiveBuffer.clear();
+		
+		this.receiveCommand = -1;
+		this.receiveLength  = 0;
+		this.reactor        = null;
+		this.key            = null;
+		
+		/* Connect to the fastest responding server. */
+		this.initialResponse.clear();
+		
+		this.channel = CONNECTOR.connect(servers, this.createInitialPacket(), this.initialResponse);
+		
+		this.initialResponse.flip();
+		
+		/* Save server for later use. */
+		this.server = (InetSocketAddress)this.channel.socket().getRemoteSocketAddress();
+		
 		// System.out.format("Connected to '%s'\n", this.server);
 	}
 	
+	/* Set servers to connect to instead of looking them up, or null to use DNS. */
+	public void setServers(List<InetSocketAddress> servers){
+		this.servers = (servers != null) ? new ArrayList<InetSocketAddress>(servers) : null;
+	}
+	
+	/* Capture decrypted commands with a recorder, or stop capturing if null. */
+	public void setRecorder(Recorder recorder){
+		this.recorder = recorder;
+	}
+	
+	/*
+	 * Notify channel listeners on an executor, in order per channel,
+	 * so the I/O thread only reads and decrypts packets. If null,
+	 * listeners are notified on the I/O thread.
+	 */
+	public void setExecutor(Executor executor){
+		this.channels.setExecutor(executor);
+	}
+	
+	/*
+	 * Let channels expire, if they don't end in time, so channels nobody
+	 * waits for are reclaimed. Substreams stream as long as they are read,
+	 * they have no deadline. A timeout of 0 disables deadlines.
+	 */
+	public void setChannelTimeout(long timeout, TimeUnit unit){
+		this.channelTimeout = unit.toMillis(timeout);
+	}
+	
 	/* Disconnect from server */
 	public void disconnect() throws ConnectionException {
 		try{
@@ -95,12 +268,104 @@ public class Protocol {
 		}
 	}
 	
+	/*
+	 * Switch the connection to non-blocking mode and register it for
+	 * reading with the given selector of a reactor. Packets then need to
+	 * be received using 'receivePackets' whenever the channel is readable
+	 * and queued packets written using 'flush' whenever it is writable.
+	 */
+	SelectionKey register(Reactor reactor, Selector selector) throws ProtocolException {
+		/* Start with an empty receive buffer. */
+		this.receiveBuffer.clear();
+		
+		this.receiveCommand = -1;
+		this.receiveLength  = 0;
+		
+		try{
+			this.channel.configureBlocking(false);
+			
+			this.reactor = reactor;
+			this.key     = this.channel.register(selector, SelectionKey.OP_READ, this);
+			
+			/* Packets might have been queued in the meantime. */
+			if(this.hasOutbound()){
+				this.reactor.requestWrite(this.key);
+			}
+			
+			return this.key;
+		}
+		catch(IOException e){
+			throw new ProtocolException("Error registering channel with selector!", e);
+		}
+	}
+	
+	/* Get round-trip times measured for servers. */
+	public static ServerStatistics getServerStatistics(){
+		return STATISTICS;
+	}
+	
+	/* Check if the connection to the server is still open. */
+	public boolean isConnected(){
+		return this.channel != null && this.channel.isOpen() && this.channel.isConnected();
+	}
+	
 	public void addListener(CommandListener listener){
 		this.listeners.add(listener);
 	}
 	
-	/* Send initial packet (key exchange). */
+	public void addConnectionListener(ConnectionListener listener){
+		this.connectionListeners.add(listener);
+	}
+	
+	/* Notify connection listeners that the connection was lost. */
+	void connectionLost(){
+		for(ConnectionListener listener : this.connectionListeners){
+			listener.connectionLost(this);
+		}
+	}
+	
+	/* Check if authenticated on the current connection. */
+	public boolean isAuthenticated(){
+		return this.authenticated;
+	}
+	
+	/* Get the server currently connected to or null. */
+	public InetSocketAddress getServer(){
+		return this.server;
+	}
+	
+	/* Get round-trip time, traffic and channel metrics of this connection. */
+	public ProtocolMetrics getMetrics(){
+		return this.metrics;
+	}
+	
+	/* Get the channels registered on this connection. */
+	public ChannelTable getChannels(){
+		return this.channels;
+	}
+	
+	/* Create a channel and register it, so it gets an id. */
+	private Channel registerChannel(String name, Channel.Type type, ChannelListener listener){
+		Channel channel = new Channel(name, type, listener);
+		
+		this.channels.register(channel);
+		
+		if(this.channelTimeout > 0 && !type.equals(Channel.Type.TYPE_SUBSTREAM)){
+			this.channels.setDeadline(channel, this.channelTimeout, TimeUnit.MILLISECONDS);
+		}
+		
+		this.metrics.channelOpened(channel);
+		
+		return channel;
+	}
+	
+	/* Send initial packet (key exchange). Already done by 'connect'. */
 	public void sendInitialPacket() throws ProtocolException {
+		this.send(this.createInitialPacket());
+	}
+	
+	/* Create initial packet (key exchange). */
+	private ByteBuffer createInitialPacket(){
 		ByteBuffer buffer = ByteBuffer.allocate(
 			2 + 2 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 16 + 96 + 128 + 1 + 1 + 2 + 0 + this.session.username.length + 1
 		);
@@ -135,8 +400,7 @@ public class Protocol {
 		buffer.get(this.session.initialClientPacket);
 		buffer.flip();
 		
-		/* Send it. */
-		this.send(buffer);
+		return buffer;
 	}
 	
 	/* Receive initial packet (key exchange). */
@@ -384,37 +648,226 @@ public class Protocol {
 		if(this.receive(buffer, payloadLength) != payloadLength){
 			throw new ProtocolException("Failed to read payload.");
 		}
+		
+		/* Stream cipher keys are set, allow sending packets. */
+		this.authenticated = true;
+	}
+	
+	/*
+	 * Send command with payload (will be encrypted with stream cipher).
+	 * 
+	 * Commands without a channel are queued ahead of channel requests.
+	 * The queues are drained by whichever thread gets the writer lock,
+	 * so a burst of packets goes out with one gathering write.
+	 */
+	public void sendPacket(int command, ByteBuffer payload) throws ProtocolException {
+		this.sendPacket(command, payload, 0);
+	}
+	
+	/* Send a channel request, queued by priority. */
+	private void sendPacket(int command, ByteBuffer payload, Channel.Priority priority) throws ProtocolException {
+		this.sendPacket(command, payload, priority.ordinal() + 1);
 	}
 	
-	/* Send command with payload (will be encrypted with stream cipher). */
-	public synchronized void sendPacket(int command, ByteBuffer payload) throws ProtocolException {
-		ByteBuffer buffer = ByteBuffer.allocate(1 + 2 + payload.remaining());
+	/* Queue a packet for encryption and write it. */
+	private void sendPacket(int command, ByteBuffer payload, int queue) throws ProtocolException {
+		int length = payload.remaining(), headerLength = 3, macLength = 4;
 		
-		/* Set IV. */
-		this.session.shannonSend.nonce(IntegerUtilities.toBytes(this.session.keySendIv));
+		/* Build packet with room for the MAC. */
+		byte[] bytes = new byte[headerLength + length + macLength];
 		
-		/* Build packet. */
-		buffer.put((byte)command);
-		buffer.putShort((short)payload.remaining());
-		buffer.put(payload);
+		bytes[0] = (byte)command;
+		bytes[1] = (byte)(length >> 8);
+		bytes[2] = (byte)(length);
 		
-		byte[] bytes = buffer.array();
-		byte[] mac   = new byte[4];
+		payload.get(bytes, headerLength, length);
 		
-		/* Encrypt packet and get MAC. */
-		this.session.shannonSend.encrypt(bytes);
-		this.session.shannonSend.finish(mac);
+		synchronized(this.outbound){
+			/* Don't send while (re)connecting. */
+			if(!this.authenticated){
+				throw new ProtocolException("Not authenticated!");
+			}
+			
+			this.outbound.get(queue).add(bytes);
+		}
 		
-		buffer = ByteBuffer.allocate(buffer.position() + 4);
-		buffer.put(bytes);
-		buffer.put(mac);
-		buffer.flip();
+		/* Write queued packets. */
+		this.flush();
+	}
+	
+	/* Check if packets are waiting to be written. */
+	private boolean hasOutbound(){
+		for(Queue<byte[]> queue : this.outbound){
+			if(!queue.isEmpty()){
+				return true;
+			}
+		}
 		
-		/* Send encrypted packet. */
-		this.send(buffer);
+		return false;
+	}
+	
+	/*
+	 * Take the next packet in priority order and encrypt it. Packets
+	 * are encrypted in the order they are written, since every packet
+	 * has its own IV. Must hold writer lock.
+	 */
+	private ByteBuffer encryptNext(){
+		int    headerLength = 3, macLength = 4;
+		byte[] bytes        = null;
+		
+		for(Queue<byte[]> queue : this.outbound){
+			if((bytes = queue.poll()) != null){
+				break;
+			}
+		}
+		
+		if(bytes == null){
+			return null;
+		}
+		
+		int length = bytes.length - headerLength - macLength;
+		
+		/* Capture command in sending order, before encrypting it. */
+		Recorder recorder = this.recorder;
+		
+		if(recorder != null){
+			recorder.record(Recorder.DIRECTION_SENT, bytes[0] & 0xff, bytes, headerLength, length);
+		}
+		
+		this.metrics.packetSent(bytes[0] & 0xff, bytes.length);
+		
+		/* Set IV. */
+		this.session.shannonSend.nonce(this.session.keySendIv);
+		
+		/* Encrypt packet and append MAC. */
+		this.session.shannonSend.encrypt(bytes, headerLength + length);
+		this.session.shannonSend.finish(bytes, headerLength + length, macLength);
 		
 		/* Increment IV. */
 		this.session.keySendIv++;
+		
+		return ByteBuffer.wrap(bytes);
+	}
+	
+	/*
+	 * Write queued packets to the socket. Returns true if the queue was
+	 * drained, false if another thread is writing or the (non-blocking)
+	 * socket didn't accept all bytes. In the latter case, the reactor
+	 * calls this again once the socket is writable.
+	 */
+	public boolean flush() throws ProtocolException {
+		boolean drained = true;
+		
+		while(this.hasOutbound() || this.writeCount > 0){
+			/* Another thread is writing and will pick up our packets. */
+			if(!this.writeLock.tryLock()){
+				return false;
+			}
+			
+			try{
+				drained = this.write();
+			}
+			catch(IOException e){
+				throw new ProtocolException("Error writing data to socket!", e);
+			}
+			finally{
+				this.writeLock.unlock();
+			}
+			
+			/* Socket is full, wait for reactor. */
+			if(!drained){
+				this.reactor.requestWrite(this.key);
+				
+				return false;
+			}
+		}
+		
+		return drained;
+	}
+	
+	/* Gather queued packets and write them. Must hold writer lock. */
+	private boolean write() throws IOException {
+		ByteBuffer buffer;
+		
+		while(true){
+			/* Encrypt packets and fill up buffers for a gathering write. */
+			while(this.writeCount < this.writeBuffers.length && (buffer = this.encryptNext()) != null){
+				this.writeBuffers[this.writeCount++] = buffer;
+			}
+			
+			if(this.writeCount == 0){
+				return true;
+			}
+			
+			/* Write as much as possible in one call. */
+			this.channel.write(this.writeBuffers, 0, this.writeCount);
+			
+			/* Remove completely written buffers. */
+			int written = 0;
+			
+			while(written < this.writeCount && !this.writeBuffers[written].hasRemaining()){
+				written++;
+			}
+			
+			System.arraycopy(this.writeBuffers, written, this.writeBuffers, 0, this.writeCount - written);
+			Arrays.fill(this.writeBuffers, this.writeCount - written, this.writeCount, null);
+			
+			this.writeCount -= written;
+			
+			/* Socket didn't accept everything (non-blocking mode). */
+			if(this.writeCount > 0 && !this.channel.isBlocking()){
+				return false;
+			}
+		}
+	}
+	
+	/*
+	 * Send an idempotent channel request, which may be sent
+	 * again after a reconnect.
+	 */
+	private void sendPacket(Channel channel, int command, ByteBuffer payload) throws ProtocolException {
+		this.sendPacket(channel, command, payload, true);
+	}
+	
+	/* Send a channel request. Unregisters the channel if sending fails. */
+	private void sendPacket(Channel channel, int command, ByteBuffer payload, boolean idempotent) throws ProtocolException {
+		channel.setRequest(command, payload, idempotent);
+		
+		try{
+			this.sendPacket(command, payload, channel.getPriority());
+		}
+		catch(ProtocolException e){
+			channel.unregister();
+			
+			throw e;
+		}
+	}
+	
+	/*
+	 * Send the requests of all open channels again, after reconnecting.
+	 * Substreams continue after the data received so far. Channels that
+	 * can't be resumed safely fail instead.
+	 */
+	public void replayChannels() throws ProtocolException {
+		for(Channel channel : this.channels.list()){
+			/* Listener will unregister it. */
+			if(channel.getState().equals(Channel.State.STATE_END)){
+				continue;
+			}
+			
+			ByteBuffer request = this.channels.replay(channel);
+			
+			if(request == null){
+				continue;
+			}
+			
+			/* Advance substream offset (at byte 38, in 4-byte words). */
+			if(channel.getType().equals(Channel.Type.TYPE_SUBSTREAM)){
+				request.putInt(38, request.getInt(38) + channel.getDataLength() / 4);
+			}
+			
+			this.sendPacket(channel.getCommand(), request, channel.getPriority());
+		}
 	}
 	
 	/* Send a command without payload. */
@@ -422,67 +875,143 @@ public class Protocol {
 		this.sendPacket(command, ByteBuffer.allocate(0));
 	}
 	
-	/* Receive a packet (will be decrypted with stream cipher). */
+	/*
+	 * Receive a packet (will be decrypted with stream cipher).
+	 * 
+	 * The packet is read into and decrypted in place in a reusable
+	 * receive buffer. Listeners get a read-only view of the payload,
+	 * see 'CommandListener' for its lifetime.
+	 */
 	public void receivePacket() throws ProtocolException {
-		byte[] header = new byte[3];
-		int command, payloadLength, headerLength = 3, macLength = 4;
+		ByteBuffer buffer = this.receiveBuffer;
+		int headerLength = 3, macLength = 4;
 		
 		/* Read header. */
-		if(this.receive(header, headerLength) != headerLength){
+		buffer.clear();
+		buffer.limit(headerLength);
+		
+		if(this.receive(buffer) != headerLength){
 			throw new ProtocolException("Failed to read header.");
 		}
 		
-		/* Set IV. */
-		this.session.shannonRecv.nonce(IntegerUtilities.toBytes(this.session.keyRecvIv));
+		/* Decrypt header and get command and payload length. */
+		buffer.flip();
 		
-		/* Decrypt header. */
-		this.session.shannonRecv.decrypt(header);
+		this.decodeHeader(buffer);
 		
-		/* Get command and payload length from header. */
-		ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+		/* Read payload and MAC behind the header. */
+		buffer.limit(headerLength + this.receiveLength + macLength);
 		
-		command       = headerBuffer.get()      & 0xff;
-		payloadLength = headerBuffer.getShort() & 0xffff;
+		if(this.receive(buffer) != this.receiveLength + macLength){
+			throw new ProtocolException("Failed to read payload!");
+		}
 		
-		/* Allocate buffer. Account for MAC. */
-		byte[]     bytes  = new byte[payloadLength + macLength];
-		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		/* Decrypt payload and fire events. */
+		buffer.position(headerLength);
 		
-		/* Limit buffer to payload length, so we can read the payload. */
-		buffer.limit(payloadLength);
+		this.decodePayload(buffer);
+	}
+	
+	/*
+	 * Receive all packets currently available without blocking
+	 * (will be decrypted with stream cipher). Partial packets are
+	 * buffered until the rest of their bytes arrive.
+	 */
+	public void receivePackets() throws ProtocolException {
+		int n, headerLength = 3, macLength = 4;
 		
+		/* Read whatever is available. */
 		try{
-			for(int n = payloadLength, r; n > 0 && (r = this.channel.read(buffer)) > 0; n -= r);
+			n = this.channel.read(this.receiveBuffer);
 		}
 		catch(IOException e){
-			throw new ProtocolException("Failed to read payload!", e);
+			throw new ProtocolException("Error reading data from socket!", e);
 		}
 		
-		/* Extend it again to payload and mac length. */
-		buffer.limit(payloadLength + macLength);
-		
-		try{
-			for(int n = macLength, r; n > 0 && (r = this.channel.read(buffer)) > 0; n -= r);
+		if(n == -1){
+			throw new ProtocolException("Connection closed by server.");
 		}
-		catch(IOException e){
-			throw new ProtocolException("Failed to read MAC!", e);
+		
+		/* Decode all complete packets and keep the rest for later. */
+		this.receiveBuffer.flip();
+		
+		while(true){
+			/* Decode header first. */
+			if(this.receiveCommand == -1){
+				if(this.receiveBuffer.remaining() < headerLength){
+					break;
+				}
+				
+				this.decodeHeader(this.receiveBuffer);
+			}
+			
+			/* Wait for payload and MAC. */
+			if(this.receiveBuffer.remaining() < this.receiveLength + macLength){
+				break;
+			}
+			
+			this.decodePayload(this.receiveBuffer);
 		}
 		
+		this.receiveBuffer.compact();
+	}
+	
+	/* Decrypt a packet header in place and consume it. */
+	private void decodeHeader(ByteBuffer buffer){
+		int headerLength = 3;
+		
+		/* Set IV. */
+		this.session.shannonRecv.nonce(this.session.keyRecvIv);
+		
+		/* Decrypt header. */
+		this.session.shannonRecv.decrypt(
+			buffer.array(), buffer.arrayOffset() + buffer.position(), headerLength
+		);
+		
+		/* Get command and payload length from header. */
+		this.receiveCommand = buffer.get()      & 0xff;
+		this.receiveLength  = buffer.getShort() & 0xffff;
+	}
+	
+	/* Decrypt payload and MAC in place, consume them and fire events. */
+	private void decodePayload(ByteBuffer buffer){
+		int command = this.receiveCommand, payloadLength = this.receiveLength, macLength = 4;
+		int offset  = buffer.position();
+		
 		/* Decrypt payload. */
-		this.session.shannonRecv.decrypt(bytes);
+		this.session.shannonRecv.decrypt(
+			buffer.array(), buffer.arrayOffset() + offset, payloadLength + macLength
+		);
 		
-		/* Get payload bytes from buffer (throw away MAC). */
-		byte[] payload = new byte[payloadLength];
+		/* Create a read-only view of the payload (throw away MAC). */
+		ByteBuffer payload = buffer.duplicate();
 		
-		buffer.flip();
-		buffer.get(payload);
+		payload.limit(offset + payloadLength);
+		payload = payload.slice().asReadOnlyBuffer();
+		
+		/* Consume payload and MAC. */
+		buffer.position(offset + payloadLength + macLength);
+		
+		/* Reset decoder state and increment IV. */
+		this.receiveCommand = -1;
+		this.receiveLength  = 0;
 		
-		/* Increment IV. */
 		this.session.keyRecvIv++;
 		
-		/* Fire events. */
+		/* Capture decrypted command. */
+		Recorder recorder = this.recorder;
+		
+		if(recorder != null){
+			recorder.record(
+				Recorder.DIRECTION_RECEIVED, command, buffer.array(), buffer.arrayOffset() + offset, payloadLength
+			);
+		}
+		
+		this.metrics.packetReceived(command, 3 + payloadLength + macLength);
+		
+		/* Fire events. Every listener gets its own view. */
 		for(CommandListener listener : this.listeners){
-			listener.commandReceived(command, payload);
+			listener.commandReceived(command, payload.duplicate());
 		}
 	}
 	
@@ -499,7 +1028,7 @@ public class Protocol {
 	/* Request ads. The response is GZIP compressed XML. */
 	public void sendAdRequest(ChannelListener listener, int type) throws ProtocolException {
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Ad-Channel", Channel.Type.TYPE_AD, listener);
+		Channel    channel = this.registerChannel("Ad-Channel", Channel.Type.TYPE_AD, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 1);
 		
 		/* Append channel id and ad type. */
@@ -507,11 +1036,8 @@ public class Protocol {
 		buffer.put((byte)type); /* 0: audio, 1: banner, 2: fullscreen-banner, 3: unknown.  */
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_REQUESTAD, buffer);
+		this.sendPacket(channel, Command.COMMAND_REQUESTAD, buffer);
 	}
 	
 	/* Get a toplist. The response comes as GZIP compressed XML. */
@@ -539,7 +1065,7 @@ public class Protocol {
 		}
 		
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Toplist-Channel", Channel.Type.TYPE_TOPLIST, listener);
+		Channel    channel = this.registerChannel("Toplist-Channel", Channel.Type.TYPE_TOPLIST, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 2 + parametersLength);
 		
 		/* Append channel id, some values, query length and query. */
@@ -558,44 +1084,34 @@ public class Protocol {
 		
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_GETTOPLIST, buffer);
+		this.sendPacket(channel, Command.COMMAND_GETTOPLIST, buffer);
 	}
 	
 	/* Request image using a 20 byte id. The response is a JPG. */
 	public void sendImageRequest(ChannelListener listener, String id) throws ProtocolException {
-		/* Create channel and buffer. */
-		Channel    channel = new Channel("Image-Channel", Channel.Type.TYPE_IMAGE, listener);
-		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 20);
-		
 		/* Check length of id. */
 		if(id.length() != 40){
 			throw new IllegalArgumentException("Image id needs to have a length of 40.");
 		}
 		
+		
+		/* Create channel and buffer. */
+		Channel    channel = this.registerChannel("Image-Channel", Channel.Type.TYPE_IMAGE, listener);
+		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 20);
+		
 		/* Append channel id and image hash. */
 		buffer.putShort((short)channel.getId());
 		buffer.putShort((short)0x0000);
 		buffer.put(Hex.toBytes(id));
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_IMAGE, buffer);
+		this.sendPacket(channel, Command.COMMAND_IMAGE, buffer);
 	}
 	
 	/* Search music. The response comes as GZIP compressed XML. */
 	public void sendSearchQuery(ChannelListener listener, String query, int offset, int limit) throws ProtocolException {
-		/* Create channel and buffer. */
-		byte[]     queryBytes = query.getBytes(Charset.forName("UTF-8"));
-		Channel    channel    = new Channel("Search-Channel", Channel.Type.TYPE_SEARCH, listener);
-		ByteBuffer buffer     = ByteBuffer.allocate(2 + 2 + 6 * 4 + 2 + 1 + queryBytes.length);
-		
 		/* Check offset and limit. */
 		if(offset < 0){
 			throw new IllegalArgumentException("Offset needs to be >= 0");
@@ -604,6 +1120,12 @@ public class Protocol {
 			throw new IllegalArgumentException("Limit needs to be either -1 for no limit or > 0");
 		}
 		
+		
+		/* Create channel and buffer. */
+		byte[]     queryBytes = query.getBytes(Charset.forName("UTF-8"));
+		Channel    channel    = this.registerChannel("Search-Channel", Channel.Type.TYPE_SEARCH, listener);
+		ByteBuffer buffer     = ByteBuffer.allocate(2 + 2 + 6 * 4 + 2 + 1 + queryBytes.length);
+		
 		/* Append channel id, some unknown values, query length and query. */
 		buffer.putShort((short)channel.getId());
 		buffer.putShort((short)0x0000); /* Unknown. */
@@ -618,11 +1140,8 @@ public class Protocol {
 		buffer.put(queryBytes);
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_SEARCH, buffer);
+		this.sendPacket(channel, Command.COMMAND_SEARCH, buffer);
 	}
 	
 	/* Search music. The response comes as GZIP compressed XML. */
@@ -633,7 +1152,7 @@ public class Protocol {
 	/* Request AES key for a track. */
 	public void sendAesKeyRequest(ChannelListener listener, Track track, File file) throws ProtocolException {
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("AES-Key-Channel", Channel.Type.TYPE_AESKEY, listener);
+		Channel    channel = this.registerChannel("AES-Key-Channel", Channel.Type.TYPE_AESKEY, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(20 + 16 + 2 + 2 + 2);
 		
 		/* Request the AES key for this file by sending the file id and track id. */
@@ -644,11 +1163,8 @@ public class Protocol {
 		buffer.putShort((short)0x0000);
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_REQKEY, buffer);
+		this.sendPacket(channel, Command.COMMAND_REQKEY, buffer);
 	}
 	
 	/* Notify server we're going to play. */
@@ -670,12 +1186,64 @@ public class Protocol {
 	 * The data should be decrypted using AES key in CTR mode
 	 * with AES key provided and a static IV, incremented for
 	 * each 16 byte data processed.
+	 * 
+	 * The request waits in the channel table's credit scheduler, if too
+	 * many substream bytes are outstanding. It is then sent when data
+	 * arrives, or the listener gets a channel error if that fails.
+	 * Cancelling the returned request drops it, if it is still waiting,
+	 * or aborts its channel.
+	 */
+	public Cancellable sendSubstreamRequest(ChannelListener listener, File file, int offset, int length) throws ProtocolException {
+		return this.sendSubstreamRequest(listener, file, offset, length, Channel.Priority.PRIORITY_PREFETCH);
+	}
+	
+	/*
+	 * Request a part of the encrypted file with the given priority.
+	 * 
+	 * Bulk substreams are requested in slices, one after another, so
+	 * higher priority responses get in between. The listener sees them
+	 * as one substream: headers of the first slice, all data and the
+	 * end of the last slice. Cancelling the returned request also stops
+	 * requesting further slices.
 	 */
-	public void sendSubstreamRequest(ChannelListener listener, File file, int offset, int length) throws ProtocolException {
+	public Cancellable sendSubstreamRequest(ChannelListener listener, File file, int offset, int length, Channel.Priority priority) throws ProtocolException {
+		/* Check offset and length. */
+		if(offset % 4096 != 0 || length % 4096 != 0){
+			throw new IllegalArgumentException("Offset and length need to be a multiple of 4096.");
+		}
+		
+		if(priority.equals(Channel.Priority.PRIORITY_BULK) && length > BULK_SLICE_SIZE){
+			SliceListener slicer = new SliceListener(listener, file, offset, length);
+			
+			slicer.next();
+			
+			return slicer;
+		}
+		else{
+			return this.submitSubstreamRequest(listener, file, offset, length, priority);
+		}
+	}
+	
+	/* Send a substream request when there is credit. */
+	private SubstreamRequest submitSubstreamRequest(ChannelListener listener, File file, int offset, int length, Channel.Priority priority) throws ProtocolException {
+		SubstreamRequest request = new SubstreamRequest(listener, file, offset, length, priority);
+		
+		this.channels.getScheduler().submit(request);
+		
+		return request;
+	}
+	
+	/* Send a substream request right away and return its channel. */
+	private Channel sendSubstreamRequestNow(ChannelListener listener, File file, int offset, int length, Channel.Priority priority) throws ProtocolException {
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Substream-Channel", Channel.Type.TYPE_SUBSTREAM, listener);
+		Channel    channel = this.registerChannel("Substream-Channel", Channel.Type.TYPE_SUBSTREAM, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 2 + 2 + 2 + 2 + 2 + 4 + 20 + 4 + 4);
 		
+		channel.setPriority(priority);
+		
+		/* Account requested bytes until they are received. */
+		this.channels.expect(channel, length);
+		
 		/* Append channel id. */
 		buffer.putShort((short)channel.getId());
 		
@@ -693,10 +1261,6 @@ public class Protocol {
 		/* 20 bytes file id. */
 		buffer.put(Hex.toBytes(file.getId()));
 		
-		if(offset % 4096 != 0 || length % 4096 != 0){
-			throw new IllegalArgumentException("Offset and length need to be a multiple of 4096.");
-		}
-		
 		offset >>= 2;
 		length >>= 2;
 		
@@ -705,34 +1269,49 @@ public class Protocol {
 		buffer.putInt(offset + length);
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_GETSUBSTREAM, buffer);
+		this.sendPacket(channel, Command.COMMAND_GETSUBSTREAM, buffer);
+		
+		return channel;
 	}
 	
-	/* TODO: untested. */
+	/*
+	 * Tell the server to stop sending on a channel. Use 'Channel.abort'
+	 * instead, which also unregisters the channel, so late packets
+	 * are dropped.
+	 */
 	public void sendChannelAbort(int id) throws ProtocolException {
-		/* Create channel and buffer. */
-		ByteBuffer buffer  = ByteBuffer.allocate(2);
+		/* Create buffer. */
+		ByteBuffer buffer = ByteBuffer.allocate(2);
 		
 		/* Append channel id. */
 		buffer.putShort((short)id);
+		buffer.flip();
 		
 		/* Send packet. */
 		this.sendPacket(Command.COMMAND_CHANNELABRT, buffer);
 	}
 	
+	/* Called by the channel table after a channel was aborted. */
+	private void channelAborted(Channel channel){
+		/* Don't request further slices of a bulk substream. */
+		if(channel.getListener() instanceof SliceListener){
+			((SliceListener)channel.getListener()).cancel();
+		}
+		
+		try{
+			this.sendChannelAbort(channel.getId());
+		}
+		catch(ProtocolException e){
+			/* Not connected, so the server doesn't send anymore anyway. */
+		}
+	}
+	
 	/*
 	 * Get metadata for an artist (type = 1), album (type = 2) or a
 	 * list of tracks (type = 3). The response comes as compressed XML.
 	 */
 	public void sendBrowseRequest(ChannelListener listener, int type, Collection<String> ids) throws ProtocolException {
-		/* Create channel and buffer. */
-		Channel    channel = new Channel("Browse-Channel", Channel.Type.TYPE_BROWSE, listener);
-		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 1 + ids.size() * 16 + ((type == 1 || type == 2)?4:0));
-		
 		/* Check arguments. */
 		if(type != 1 && type != 2 && type != 3){
 			throw new IllegalArgumentException("Type needs to be 1, 2 or 3.");
@@ -741,6 +1320,11 @@ public class Protocol {
 			throw new IllegalArgumentException("Types 1 and 2 only accept a single id.");
 		}
 		
+		
+		/* Create channel and buffer. */
+		Channel    channel = this.registerChannel("Browse-Channel", Channel.Type.TYPE_BROWSE, listener);
+		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 1 + ids.size() * 16 + ((type == 1 || type == 2)?4:0));
+		
 		/* Append channel id and type. */
 		buffer.putShort((short)channel.getId());
 		buffer.putShort((short)0x0000); /* Unknown. */
@@ -763,11 +1347,8 @@ public class Protocol {
 		
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_BROWSE, buffer);
+		this.sendPacket(channel, Command.COMMAND_BROWSE, buffer);
 	}
 	
 	/* Browse with only one id. */
@@ -805,7 +1386,7 @@ public class Protocol {
 		}
 		
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Browse-Channel", Channel.Type.TYPE_BROWSE, listener);
+		Channel    channel = this.registerChannel("Browse-Channel", Channel.Type.TYPE_BROWSE, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 2 + 1 + dataLength);
 		
 		/* Append channel id and type. */
@@ -842,24 +1423,22 @@ public class Protocol {
 		
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_BROWSE, buffer);
+		this.sendPacket(channel, Command.COMMAND_BROWSE, buffer);
 	}
 	
 	/* Request playlist details. The response comes as plain XML. */
 	public void sendPlaylistRequest(ChannelListener listener, String id) throws ProtocolException {
-		/* Create channel and buffer. */
-		Channel    channel = new Channel("Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
-		ByteBuffer buffer  = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1);
-		
 		/* Check length of id. */
 		if(id != null && id.length() != 32){
 			throw new IllegalArgumentException("Playlist id needs to have a length of 32.");
 		}
 		
+		
+		/* Create channel and buffer. */
+		Channel    channel = this.registerChannel("Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
+		ByteBuffer buffer  = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1);
+		
 		/* Append channel id, playlist id and some bytes... */
 		buffer.putShort((short)channel.getId());
 		
@@ -884,17 +1463,14 @@ public class Protocol {
 		buffer.put((byte)0x00); /* Collaborative. */
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_GETPLAYLIST, buffer);
+		this.sendPacket(channel, Command.COMMAND_GETPLAYLIST, buffer);
 	}
 	
 	/* Change playlist container. The response comes as plain XML. */
 	public void sendChangePlaylistContainer(ChannelListener listener, PlaylistContainer playlistContainer, String xml) throws ProtocolException {
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Change-Playlist-Container-Channel", Channel.Type.TYPE_PLAYLIST, listener);
+		Channel    channel = this.registerChannel("Change-Playlist-Container-Channel", Channel.Type.TYPE_PLAYLIST, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1 + 1 + xml.getBytes().length);
 		
 		/* Append channel id, playlist id and some bytes... */
@@ -909,17 +1485,14 @@ public class Protocol {
 		buffer.put(xml.getBytes());
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_CHANGEPLAYLIST, buffer);
+		this.sendPacket(channel, Command.COMMAND_CHANGEPLAYLIST, buffer, false);
 	}
 	
 	/* Change playlist. The response comes as plain XML. */
 	public void sendChangePlaylist(ChannelListener listener, Playlist playlist, String xml) throws ProtocolException {
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Change-Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
+		Channel    channel = this.registerChannel("Change-Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1 + 1 + xml.getBytes().length);
 		
 		/* Append channel id, playlist id and some bytes... */
@@ -934,17 +1507,14 @@ public class Protocol {
 		buffer.put(xml.getBytes());
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_CHANGEPLAYLIST, buffer);
+		this.sendPacket(channel, Command.COMMAND_CHANGEPLAYLIST, buffer, false);
 	}
 	
 	/* Create playlist. The response comes as plain XML. */
 	public void sendCreatePlaylist(ChannelListener listener, Playlist playlist, String xml) throws ProtocolException {
 		/* Create channel and buffer. */
-		Channel    channel = new Channel("Change-Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
+		Channel    channel = this.registerChannel("Change-Playlist-Channel", Channel.Type.TYPE_PLAYLIST, listener);
 		ByteBuffer buffer  = ByteBuffer.allocate(2 + 16 + 1 + 4 + 4 + 4 + 1 + 1 + xml.getBytes().length);
 		
 		/* Append channel id, playlist id and some bytes... */
@@ -959,11 +1529,8 @@ public class Protocol {
 		buffer.put(xml.getBytes());
 		buffer.flip();
 		
-		/* Register channel. */
-		Channel.register(channel);
-		
 		/* Send packet. */
-		this.sendPacket(Command.COMMAND_CHANGEPLAYLIST, buffer);
+		this.sendPacket(channel, Command.COMMAND_CHANGEPLAYLIST, buffer, false);
 	}
 	
 	/* Ping reply (pong). */
@@ -1011,11 +1578,22 @@ public class Protocol {
 	
 	/* Receive bytes. */
 	private int receive(byte[] bytes, int off, int len) throws ProtocolException {
-		ByteBuffer buffer = ByteBuffer.wrap(bytes, off, len);
+		return this.receive(ByteBuffer.wrap(bytes, off, len));
+	}
+	
+	/* Receive bytes until the buffer is full. */
+	private int receive(ByteBuffer buffer) throws ProtocolException {
 		int n = 0;
 		
+		/* Bytes the connector read already come first. */
+		while(this.initialResponse.hasRemaining() && buffer.hasRemaining()){
+			buffer.put(this.initialResponse.get());
+			
+			n++;
+		}
+		
 		try{
-			for(int r; n < len && (r = this.channel.read(buffer)) > 0; n += r);
+			for(int r; buffer.hasRemaining() && (r = this.channel.read(buffer)) > 0; n += r);
 		}
 		catch(IOException e){
 			throw new ProtocolException("Error reading data from socket!", e);
@@ -1023,4 +1601,163 @@ public class Protocol {
 		
 		return n;
 	}
+	
+	/* A substream request waiting for credit in the scheduler, then its channel. */
+	private class SubstreamRequest extends CreditScheduler.Request implements Cancellable {
+		private ChannelListener  listener;
+		private File             file;
+		private int              offset;
+		private int              length;
+		private Channel.Priority priority;
+		
+		/* Channel once sent and whether the request was cancelled. */
+		private Channel channel;
+		private boolean cancelled;
+		
+		public SubstreamRequest(ChannelListener listener, File file, int offset, int length, Channel.Priority priority){
+			super(length, priority);
+			
+			this.listener  = listener;
+			this.file      = file;
+			this.offset    = offset;
+			this.length    = length;
+			this.priority  = priority;
+			this.channel   = null;
+			this.cancelled = false;
+		}
+		
+		protected synchronized void send() throws ProtocolException {
+			/* Cancelled while the scheduler was about to send it. */
+			if(this.cancelled){
+				return;
+			}
+			
+			this.channel = sendSubstreamRequestNow(this.listener, this.file, this.offset, this.length, this.priority);
+		}
+		
+		protected void fail(){
+			synchronized(this){
+				if(this.cancelled){
+					return;
+				}
+			}
+			
+			channels.fail(new Channel("Substream-Channel", Channel.Type.TYPE_SUBSTREAM, this.listener));
+		}
+		
+		/* Drop the request if it is still waiting for credit, otherwise abort its channel. */
+		public void cancel(){
+			Channel channel;
+			
+			synchronized(this){
+				this.cancelled = true;
+				
+				channel = this.channel;
+			}
+			
+			channels.getScheduler().cancel(this);
+			
+			if(channel != null){
+				channel.abort();
+			}
+		}
+	}
+	
+	/*
+	 * Requests a bulk substream in slices, one after another, and
+	 * forwards them to a listener as if they were one substream.
+	 */
+	private class SliceListener implements ChannelListener, Cancellable {
+		private ChannelListener listener;
+		private File            file;
+		
+		/* Offset and length of the current slice and end of the substream. */
+		private int offset;
+		private int length;
+		private int end;
+		
+		/* Set once the first slice is done and when aborted. */
+		private boolean          started;
+		private volatile boolean cancelled;
+		
+		/* Request of the current slice. */
+		private volatile SubstreamRequest request;
+		
+		public SliceListener(ChannelListener listener, File file, int offset, int length){
+			this.listener  = listener;
+			this.file      = file;
+			this.offset    = offset;
+			this.length    = 0;
+			this.end       = offset + length;
+			this.started   = false;
+			this.cancelled = false;
+			this.request   = null;
+		}
+		
+		/* Stop requesting slices and drop or abort the current one. */
+		public void cancel(){
+			SubstreamRequest request;
+			
+			/* Set before reading the request, next() does it the other way round. */
+			this.cancelled = true;
+			
+			request = this.request;
+			
+			if(request != null){
+				request.cancel();
+			}
+		}
+		
+		/* Request the next slice. */
+		public void next() throws ProtocolException {
+			this.length = Math.min(BULK_SLICE_SIZE, this.end - this.offset);
+			
+			this.request = submitSubstreamRequest(this, this.file, this.offset, this.length, Channel.Priority.PRIORITY_BULK);
+			
+			/* Cancelled while submitting. */
+			if(this.cancelled){
+				this.request.cancel();
+			}
+		}
+		
+		public void channelHeader(Channel channel, byte[] header){
+			/* Only the first slice's headers describe the substream. */
+			if(!this.started){
+				this.listener.channelHeader(channel, header);
+			}
+		}
+		
+		public void channelData(Channel channel, byte[] data){
+			this.listener.channelData(channel, data);
+		}
+		
+		public void channelError(Channel channel){
+			this.listener.channelError(channel);
+		}
+		
+		public void channelEnd(Channel channel){
+			this.offset  += this.length;
+			this.started  = true;
+			
+			/* Done, or a short slice hit the end of the file. */
+			if(this.offset >= this.end || channel.getDataLength() < this.length){
+				this.listener.channelEnd(channel);
+				
+				return;
+			}
+			
+			channel.unregister();
+			
+			if(this.cancelled){
+				return;
+			}
+			
+			try{
+				this.next();
+			}
+			catch(ProtocolException e){
+				this.listener.channelError(channel);
+			}
+		}
+	}
 }
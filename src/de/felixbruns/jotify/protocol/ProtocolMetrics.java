@@ -0,0 +1,432 @@
+package de.felixbruns.jotify.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import de.felixbruns.jotify.protocol.channel.Channel;
+
+/**
+ * Telemetry of a {@link Protocol}: the round-trip time measured from a
+ * pong to its acknowledgement, packets and bytes sent and received per
+ * command, channels opened per type and the time to first byte and
+ * duration of channels. Counters are kept across reconnects.
+ * 
+ * Measured round-trip times and closed channels are reported to
+ * {@link MetricsListener}s, e.g. to alert on slow access points. All
+ * values can also be read via JMX, after {@link #registerMBean(String)}.
+ */
+public class ProtocolMetrics implements ProtocolMetricsMBean {
+	/* Domain of registered MBeans. */
+	public static final String DOMAIN = "de.felixbruns.jotify";
+	
+	/* Number of possible commands. */
+	private static final int COMMANDS = 256;
+	
+	/* Minimum length of a throughput sample, in ns. */
+	private static final long RATE_INTERVAL = 1000 * 1000 * 1000;
+	
+	/* Protocol these metrics belong to and listeners. */
+	private Protocol              protocol;
+	private List<MetricsListener> listeners;
+	
+	/* Packets and bytes per command. */
+	private AtomicLongArray packetsSent;
+	private AtomicLongArray packetsReceived;
+	private AtomicLongArray bytesSent;
+	private AtomicLongArray bytesReceived;
+	
+	/* Throughput samples. */
+	private Rate sendRate;
+	private Rate receiveRate;
+	
+	/*
+	 * Channels opened and closed per type, channels that received data,
+	 * sums of their time to first byte and duration, in ns.
+	 */
+	private AtomicLongArray channelsOpened;
+	private AtomicLongArray channelsClosed;
+	private AtomicLongArray channelsReceived;
+	private AtomicLongArray firstByteTotal;
+	private AtomicLongArray durationTotal;
+	
+	/* Time the last pong was written or 0, last and smoothed round-trip time in ns. */
+	private volatile long pongSent;
+	private volatile long rtt;
+	private volatile long smoothedRtt;
+	
+	/* Name this object is registered with as MBean or null. */
+	private ObjectName name;
+	
+	/**
+	 * Create new metrics for a protocol.
+	 * 
+	 * @param protocol The {@link Protocol}.
+	 */
+	public ProtocolMetrics(Protocol protocol){
+		int types = Channel.Type.values().length;
+		
+		this.protocol         = protocol;
+		this.listeners        = new CopyOnWriteArrayList<MetricsListener>();
+		this.packetsSent      = new AtomicLongArray(COMMANDS);
+		this.packetsReceived  = new AtomicLongArray(COMMANDS);
+		this.bytesSent        = new AtomicLongArray(COMMANDS);
+		this.bytesReceived    = new AtomicLongArray(COMMANDS);
+		this.sendRate         = new Rate();
+		this.receiveRate      = new Rate();
+		this.channelsOpened   = new AtomicLongArray(types);
+		this.channelsClosed   = new AtomicLongArray(types);
+		this.channelsReceived = new AtomicLongArray(types);
+		this.firstByteTotal   = new AtomicLongArray(types);
+		this.durationTotal    = new AtomicLongArray(types);
+		this.pongSent         = 0;
+		this.rtt              = 0;
+		this.smoothedRtt      = 0;
+		this.name             = null;
+	}
+	
+	/**
+	 * Add a listener for measured round-trip times and closed channels.
+	 * 
+	 * @param listener A {@link MetricsListener}.
+	 */
+	public void addListener(MetricsListener listener){
+		this.listeners.add(listener);
+	}
+	
+	/**
+	 * Remove a listener.
+	 * 
+	 * @param listener A {@link MetricsListener}.
+	 */
+	public void removeListener(MetricsListener listener){
+		this.listeners.remove(listener);
+	}
+	
+	/**
+	 * Register these metrics with the platform MBean server, with the
+	 * name "de.felixbruns.jotify:type=Protocol,name=&lt;name&gt;".
+	 * Registering again replaces the previous registration.
+	 * 
+	 * @param name A name unique among registered protocols, e.g. the username.
+	 * 
+	 * @throws JMException If the name is invalid or already registered.
+	 */
+	public synchronized void registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName(DOMAIN + ":type=Protocol,name=" + ObjectName.quote(name));
+		
+		this.unregisterMBean();
+		
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		
+		this.name = objectName;
+	}
+	
+	/**
+	 * Unregister these metrics from the platform MBean server,
+	 * if they were registered.
+	 */
+	public synchronized void unregisterMBean(){
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		
+		if(this.name == null){
+			return;
+		}
+		
+		try{
+			server.unregisterMBean(this.name);
+		}
+		catch(JMException e){
+			/* Just don't care. */
+		}
+		
+		this.name = null;
+	}
+	
+	/* Called by the protocol when a packet is written, before encrypting it. */
+	void packetSent(int command, int length){
+		long now = System.nanoTime();
+		
+		this.packetsSent.incrementAndGet(command);
+		this.bytesSent.addAndGet(command, length);
+		this.sendRate.add(now, length);
+		
+		/* The server acknowledges pongs, which gives the round-trip time. */
+		if(command == Command.COMMAND_PONG){
+			this.pongSent = now;
+		}
+	}
+	
+	/* Called by the protocol when a packet was decrypted. */
+	void packetReceived(int command, int length){
+		long now = System.nanoTime();
+		long sent;
+		
+		this.packetsReceived.incrementAndGet(command);
+		this.bytesReceived.addAndGet(command, length);
+		this.receiveRate.add(now, length);
+		
+		if(command == Command.COMMAND_PONGACK && (sent = this.pongSent) != 0){
+			this.pongSent    = 0;
+			this.rtt         = now - sent;
+			this.smoothedRtt = (this.smoothedRtt == 0) ? this.rtt : this.smoothedRtt + (this.rtt - this.smoothedRtt) / 8;
+			
+			for(MetricsListener listener : this.listeners){
+				listener.rttMeasured(this.protocol, this.rtt / 1000000);
+			}
+		}
+	}
+	
+	/* Called by the protocol when a channel was registered. */
+	void channelOpened(Channel channel){
+		this.channelsOpened.incrementAndGet(channel.getType().ordinal());
+	}
+	
+	/* Called by the protocol when a channel was unregistered. */
+	void channelClosed(Channel channel){
+		int  type      = channel.getType().ordinal();
+		long duration  = System.nanoTime() - channel.getOpenTime();
+		long firstByte = -1;
+		
+		this.channelsClosed.incrementAndGet(type);
+		this.durationTotal.addAndGet(type, duration);
+		
+		if(channel.getFirstByteTime() != 0){
+			firstByte = channel.getFirstByteTime() - channel.getOpenTime();
+			
+			this.channelsReceived.incrementAndGet(type);
+			this.firstByteTotal.addAndGet(type, firstByte);
+		}
+		
+		for(MetricsListener listener : this.listeners){
+			listener.channelClosed(
+				this.protocol, channel, (firstByte < 0) ? -1 : firstByte / 1000000, duration / 1000000
+			);
+		}
+	}
+	
+	public String getServer(){
+		InetSocketAddress server = this.protocol.getServer();
+		
+		if(server == null){
+			return null;
+		}
+		
+		return server.getHostName() + ":" + server.getPort();
+	}
+	
+	public long getRtt(){
+		return this.rtt / 1000000;
+	}
+	
+	public long getSmoothedRtt(){
+		return this.smoothedRtt / 1000000;
+	}
+	
+	/**
+	 * Get the number of packets sent with a command.
+	 * 
+	 * @param command The command (see {@link Command}).
+	 * 
+	 * @return The number of packets.
+	 */
+	public long getPacketsSent(int command){
+		return this.packetsSent.get(command);
+	}
+	
+	/**
+	 * Get the number of packets received with a command.
+	 * 
+	 * @param command The command (see {@link Command}).
+	 * 
+	 * @return The number of packets.
+	 */
+	public long getPacketsReceived(int command){
+		return this.packetsReceived.get(command);
+	}
+	
+	/**
+	 * Get the number of bytes sent with a command.
+	 * 
+	 * @param command The command (see {@link Command}).
+	 * 
+	 * @return The number of bytes, including header and MAC.
+	 */
+	public long getBytesSent(int command){
+		return this.bytesSent.get(command);
+	}
+	
+	/**
+	 * Get the number of bytes received with a command.
+	 * 
+	 * @param command The command (see {@link Command}).
+	 * 
+	 * @return The number of bytes, including header and MAC.
+	 */
+	public long getBytesReceived(int command){
+		return this.bytesReceived.get(command);
+	}
+	
+	public long getPacketsSent(){
+		return sum(this.packetsSent);
+	}
+	
+	public long getPacketsReceived(){
+		return sum(this.packetsReceived);
+	}
+	
+	public long getBytesSent(){
+		return sum(this.bytesSent);
+	}
+	
+	public long getBytesReceived(){
+		return sum(this.bytesReceived);
+	}
+	
+	public long getSendRate(){
+		return this.sendRate.get(System.nanoTime());
+	}
+	
+	public long getReceiveRate(){
+		return this.receiveRate.get(System.nanoTime());
+	}
+	
+	/**
+	 * Get the number of channels opened of a type.
+	 * 
+	 * @param type The channel type.
+	 * 
+	 * @return The number of channels.
+	 */
+	public long getChannelsOpened(Channel.Type type){
+		return this.channelsOpened.get(type.ordinal());
+	}
+	
+	/**
+	 * Get the average time to first byte of closed channels of a type.
+	 * 
+	 * @param type The channel type.
+	 * 
+	 * @return The time in ms or 0 if no channel of the type received data.
+	 */
+	public long getAverageTimeToFirstByte(Channel.Type type){
+		return average(this.firstByteTotal.get(type.ordinal()), this.channelsReceived.get(type.ordinal()));
+	}
+	
+	/**
+	 * Get the average duration of closed channels of a type.
+	 * 
+	 * @param type The channel type.
+	 * 
+	 * @return The duration in ms or 0 if no channel of the type was closed.
+	 */
+	public long getAverageDuration(Channel.Type type){
+		return average(this.durationTotal.get(type.ordinal()), this.channelsClosed.get(type.ordinal()));
+	}
+	
+	public long getChannelsOpened(){
+		return sum(this.channelsOpened);
+	}
+	
+	public long getChannelsOpen(){
+		return sum(this.channelsOpened) - sum(this.channelsClosed);
+	}
+	
+	public long getChannelTimeouts(){
+		return this.protocol.getChannels().getTimeouts();
+	}
+	
+	public long getPacketsDropped(){
+		return this.protocol.getChannels().getDropped();
+	}
+	
+	public String[] getCommandCounters(){
+		List<String> counters = new ArrayList<String>();
+		
+		for(int command = 0; command < COMMANDS; command++){
+			if(this.packetsSent.get(command) == 0 && this.packetsReceived.get(command) == 0){
+				continue;
+			}
+			
+			counters.add(String.format(
+				"0x%02x: %d packets (%d bytes) sent, %d packets (%d bytes) received", command,
+				this.packetsSent.get(command), this.bytesSent.get(command),
+				this.packetsReceived.get(command), this.bytesReceived.get(command)
+			));
+		}
+		
+		return counters.toArray(new String[counters.size()]);
+	}
+	
+	public String[] getChannelCounters(){
+		List<String> counters = new ArrayList<String>();
+		
+		for(Channel.Type type : Channel.Type.values()){
+			if(this.getChannelsOpened(type) == 0){
+				continue;
+			}
+			
+			counters.add(String.format(
+				"%s: %d opened, %d closed, %d ms to first byte, %d ms duration (average)", type,
+				this.getChannelsOpened(type), this.channelsClosed.get(type.ordinal()),
+				this.getAverageTimeToFirstByte(type), this.getAverageDuration(type)
+			));
+		}
+		
+		return counters.toArray(new String[counters.size()]);
+	}
+	
+	/* Sum of all counters in an array. */
+	private static long sum(AtomicLongArray array){
+		long sum = 0;
+		
+		for(int i = 0; i < array.length(); i++){
+			sum += array.get(i);
+		}
+		
+		return sum;
+	}
+	
+	/* Average of a total in ns, in ms. */
+	private static long average(long total, long count){
+		return (count == 0) ? 0 : total / count / 1000000;
+	}
+	
+	/* Throughput of a direction, sampled over at least one interval. */
+	private static class Rate {
+		/* Start of the current sample, bytes since and rate of the last sample. */
+		private long start;
+		private long bytes;
+		private long rate;
+		
+		public synchronized void add(long now, int length){
+			if(this.start == 0){
+				this.start = now;
+			}
+			
+			this.bytes += length;
+			
+			if(now - this.start >= RATE_INTERVAL){
+				this.rate  = this.bytes * 1000000000L / (now - this.start);
+				this.start = now;
+				this.bytes = 0;
+			}
+		}
+		
+		public synchronized long get(long now){
+			/* Nothing arrived for a while, let the rate decay. */
+			if(this.start != 0 && now - this.start >= 2 * RATE_INTERVAL){
+				return this.bytes * 1000000000L / (now - this.start);
+			}
+			
+			return this.rate;
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package de.felixbruns.jotify.protocol;
+
+/**
+ * Management interface of {@link ProtocolMetrics}. Times are in ms,
+ * bytes include packet header and MAC.
+ */
+public interface ProtocolMetricsMBean {
+	/* Server currently connected to, as "host:port", or null. */
+	public String getServer();
+	
+	/* Last and smoothed round-trip time measured with ping/pong, 0 if unknown. */
+	public long getRtt();
+	public long getSmoothedRtt();
+	
+	/* Totals over all commands. */
+	public long getPacketsSent();
+	public long getPacketsReceived();
+	public long getBytesSent();
+	public long getBytesReceived();
+	
+	/* Throughput in bytes per second. */
+	public long getSendRate();
+	public long getReceiveRate();
+	
+	/* Channels opened and channels still registered. */
+	public long getChannelsOpened();
+	public long getChannelsOpen();
+	
+	/* Channels that expired and packets for unknown (e.g. expired) channels that were dropped. */
+	public long getChannelTimeouts();
+	public long getPacketsDropped();
+	
+	/* Counters of every command that was sent or received, one line each. */
+	public String[] getCommandCounters();
+	
+	/* Counters and average times of every channel type, one line each. */
+	public String[] getChannelCounters();
+}
@@ -0,0 +1,266 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.felixbruns.jotify.exceptions.ConnectionException;
+import de.felixbruns.jotify.exceptions.ProtocolException;
+
+/**
+ * Non-blocking I/O reactor that multiplexes the socket channels of
+ * many {@link Protocol} instances on a small, fixed number of
+ * event-loop threads, instead of using one blocking thread per session.
+ * 
+ * Packets are decoded incrementally as bytes arrive, see
+ * {@link Protocol#receivePackets()}. Queued outgoing packets that
+ * didn't fit into the socket buffer are written once it is writable
+ * again, see {@link Protocol#flush()}.
+ */
+public class Reactor {
+	/* Event loops, each with its own selector and thread. */
+	private EventLoop[] loops;
+	
+	/* Round-robin counter for assigning protocols to event loops. */
+	private AtomicInteger next;
+	
+	/* Status of this reactor. */
+	private volatile boolean running;
+	
+	/**
+	 * Create a new reactor and start its event-loop threads.
+	 * 
+	 * @param threads Number of event-loop threads to use.
+	 * 
+	 * @throws IOException If a selector could not be opened.
+	 */
+	public Reactor(int threads) throws IOException {
+		/* Check number of threads. */
+		if(threads <= 0){
+			throw new IllegalArgumentException("Number of threads needs to be > 0.");
+		}
+		
+		this.loops   = new EventLoop[threads];
+		this.next    = new AtomicInteger(0);
+		this.running = true;
+		
+		/* Create and start event loops. */
+		for(int i = 0; i < threads; i++){
+			this.loops[i] = new EventLoop(Selector.open());
+			
+			Thread thread = new Thread(this.loops[i], "Reactor-Thread-" + i);
+			
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+	
+	/**
+	 * Create a new reactor using one event-loop thread
+	 * per available processor.
+	 * 
+	 * @throws IOException If a selector could not be opened.
+	 */
+	public Reactor() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	/**
+	 * Register an authenticated {@link Protocol} with this reactor.
+	 * Its socket channel will be switched to non-blocking mode and
+	 * all further packets are received on one of the event-loop threads.
+	 * 
+	 * @param protocol The protocol to register.
+	 * 
+	 * @throws ConnectionException If the reactor was shut down.
+	 */
+	public void register(Protocol protocol) throws ConnectionException {
+		/* Check if reactor is still running. */
+		if(!this.running){
+			throw new ConnectionException("Reactor was shut down!");
+		}
+		
+		/* Pick next event loop. */
+		EventLoop loop = this.loops[(this.next.getAndIncrement() & 0x7FFFFFFF) % this.loops.length];
+		
+		/* Let the event-loop thread do the actual registration. */
+		loop.pending.add(protocol);
+		loop.selector.wakeup();
+	}
+	
+	/*
+	 * Request a write readiness notification for a registered
+	 * protocol. Interest ops are only changed on the event-loop
+	 * thread, so this never blocks on a running select.
+	 */
+	void requestWrite(SelectionKey key){
+		for(EventLoop loop : this.loops){
+			if(loop.selector == key.selector()){
+				loop.writers.add(key);
+				loop.selector.wakeup();
+				
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Stop all event-loop threads. Registered connections are
+	 * not closed, but no more packets will be received.
+	 */
+	public void shutdown(){
+		this.running = false;
+		
+		for(EventLoop loop : this.loops){
+			loop.selector.wakeup();
+		}
+	}
+	
+	/**
+	 * Check if this reactor is running.
+	 * 
+	 * @return true if running, false otherwise.
+	 */
+	public boolean isRunning(){
+		return this.running;
+	}
+	
+	/* Single event loop, serving all protocols registered with its selector. */
+	private class EventLoop implements Runnable {
+		/* Selector for this event loop. */
+		private Selector selector;
+		
+		/* Protocols waiting to be registered with the selector. */
+		private Queue<Protocol> pending;
+		
+		/* Keys waiting for write interest to be set. */
+		private Queue<SelectionKey> writers;
+		
+		public EventLoop(Selector selector){
+			this.selector = selector;
+			this.pending  = new ConcurrentLinkedQueue<Protocol>();
+			this.writers  = new ConcurrentLinkedQueue<SelectionKey>();
+		}
+		
+		public void run(){
+			try{
+				while(running){
+					/* Wait for readable or writable channels. */
+					this.selector.select();
+					
+					/* Register pending protocols and set write interest. */
+					this.registerPending();
+					this.registerWriters();
+					
+					/* Handle ready channels. */
+					Iterator<SelectionKey> iterator = this.selector.selectedKeys().iterator();
+					
+					while(iterator.hasNext()){
+						SelectionKey key      = iterator.next();
+						Protocol     protocol = (Protocol)key.attachment();
+						
+						iterator.remove();
+						
+						if(!key.isValid()){
+							continue;
+						}
+						
+						/* Write queued packets and receive and dispatch all packets available. */
+						try{
+							if(key.isWritable()){
+								key.interestOps(SelectionKey.OP_READ);
+								
+								protocol.flush();
+							}
+							
+							if(key.isReadable()){
+								protocol.receivePackets();
+							}
+						}
+						catch(ProtocolException e){
+							/* Connection was closed. */
+							this.close(key, protocol);
+						}
+						catch(CancelledKeyException e){
+							/* Channel was closed by another thread meanwhile. */
+							this.close(key, protocol);
+						}
+						catch(RuntimeException e){
+							/* E.g. a failing listener, the stream can't be decoded any further. */
+							System.err.println("Error handling connection: " + e);
+							
+							this.close(key, protocol);
+						}
+					}
+				}
+			}
+			catch(IOException e){
+				System.err.println("Reactor failed: " + e.getMessage());
+			}
+			finally{
+				try{
+					this.selector.close();
+				}
+				catch(IOException e){
+					/* Just don't care. */
+				}
+			}
+		}
+		
+		/* Register protocols that were added since the last select. */
+		private void registerPending(){
+			Protocol protocol;
+			
+			while((protocol = this.pending.poll()) != null){
+				try{
+					protocol.register(Reactor.this, this.selector);
+				}
+				catch(ProtocolException e){
+					System.err.println("Error registering protocol: " + e.getMessage());
+				}
+				catch(RuntimeException e){
+					System.err.println("Error registering protocol: " + e);
+				}
+			}
+		}
+		
+		/* Add write interest for keys that requested it. */
+		private void registerWriters(){
+			SelectionKey key;
+			
+			while((key = this.writers.poll()) != null){
+				try{
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				}
+				catch(CancelledKeyException e){
+					/* Channel was closed meanwhile. */
+					this.close(key, (Protocol)key.attachment());
+				}
+			}
+		}
+		
+		/* Cancel key, close connection and notify listeners, once per key. */
+		private void close(SelectionKey key, Protocol protocol){
+			/* A key may still be queued for writing after it was closed. */
+			if(key.attach(null) == null){
+				return;
+			}
+			
+			key.cancel();
+			
+			try{
+				protocol.disconnect();
+			}
+			catch(ConnectionException e){
+				/* Just don't care. */
+			}
+			
+			protocol.connectionLost();
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Captures the decrypted commands a {@link Protocol} sends and receives
+ * into a compact binary log, which can be fed back through command
+ * listeners by a {@link Replayer}, e.g. for repeatable benchmarks
+ * without an account or network. The handshake (and with it the
+ * credentials) is not captured.
+ * 
+ * The log starts with the magic "JREC" and a version byte, followed by
+ * one record per command:
+ * 
+ * <pre>
+ * direction  1 byte   0 if received, 1 if sent.
+ * delay      4 bytes  Microseconds since the previous record.
+ * command    1 byte   The command.
+ * length     2 bytes  Length of the payload.
+ * payload    n bytes  The decrypted payload.
+ * </pre>
+ * 
+ * All values are big-endian.
+ */
+public class Recorder {
+	/* Header of a capture log. */
+	public static final int MAGIC   = 0x4A524543;
+	public static final int VERSION = 1;
+	
+	/* Record directions. */
+	public static final int DIRECTION_RECEIVED = 0;
+	public static final int DIRECTION_SENT     = 1;
+	
+	/* Stream to write records to. */
+	private DataOutputStream output;
+	
+	/* Time of the previous record, in ns. */
+	private long last;
+	
+	/* Set after a write error, recording stops then. */
+	private boolean failed;
+	
+	/**
+	 * Create a new recorder writing to a stream.
+	 * 
+	 * @param output The stream to write the log to.
+	 * 
+	 * @throws IOException If writing the header fails.
+	 */
+	public Recorder(OutputStream output) throws IOException {
+		this.output = new DataOutputStream(new BufferedOutputStream(output, 64 * 1024));
+		this.last   = System.nanoTime();
+		this.failed = false;
+		
+		/* Write header. */
+		this.output.writeInt(MAGIC);
+		this.output.writeByte(VERSION);
+	}
+	
+	/**
+	 * Create a new recorder writing to a file.
+	 * 
+	 * @param file The file to write the log to.
+	 * 
+	 * @throws IOException If the file can't be created.
+	 */
+	public Recorder(File file) throws IOException {
+		this(new FileOutputStream(file));
+	}
+	
+	/**
+	 * Record a command. Write errors are reported once and stop
+	 * recording, so they never interrupt the connection.
+	 * 
+	 * @param direction {@link #DIRECTION_RECEIVED} or {@link #DIRECTION_SENT}.
+	 * @param command   The command.
+	 * @param bytes     Array holding the decrypted payload.
+	 * @param off       Offset of the payload in the array.
+	 * @param len       Length of the payload.
+	 */
+	public synchronized void record(int direction, int command, byte[] bytes, int off, int len){
+		if(this.failed){
+			return;
+		}
+		
+		long now   = System.nanoTime();
+		long delay = (now - this.last) / 1000;
+		
+		this.last = now;
+		
+		try{
+			this.output.writeByte(direction);
+			this.output.writeInt((int)Math.min(delay, Integer.MAX_VALUE));
+			this.output.writeByte(command);
+			this.output.writeShort(len);
+			this.output.write(bytes, off, len);
+		}
+		catch(IOException e){
+			System.err.println("Error recording command: " + e.getMessage());
+			
+			this.failed = true;
+		}
+	}
+	
+	/**
+	 * Flush buffered records to the underlying stream.
+	 * 
+	 * @throws IOException If writing fails.
+	 */
+	public synchronized void flush() throws IOException {
+		this.output.flush();
+	}
+	
+	/**
+	 * Flush buffered records and close the underlying stream.
+	 * Commands recorded afterwards are ignored.
+	 * 
+	 * @throws IOException If writing fails.
+	 */
+	public synchronized void close() throws IOException {
+		this.failed = true;
+		
+		this.output.close();
+	}
+}
@@ -0,0 +1,189 @@
+package de.felixbruns.jotify.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.BufferUnderflowException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Feeds a log captured by a {@link Recorder} back through command
+ * listeners, at the recorded speed, faster or as fast as possible.
+ * 
+ * Received commands go to the listeners added with
+ * {@link #addListener(CommandListener)}, like they would from a
+ * {@link Protocol}. Sent commands go to the listeners added with
+ * {@link #addSendListener(CommandListener)}, so a benchmark can open
+ * channels when the recorded session requested them. Channel ids are
+ * handed out in order by a fresh {@link de.felixbruns.jotify.protocol.channel.ChannelTable},
+ * so channels registered in the recorded order get the recorded ids.
+ * 
+ * The whole log is read into memory up front, so replaying doesn't
+ * touch the disk and can be repeated.
+ */
+public class Replayer {
+	/* The log, without header. */
+	private byte[] log;
+	
+	/* Listeners for received and sent commands. */
+	private List<CommandListener> listeners;
+	private List<CommandListener> sendListeners;
+	
+	/**
+	 * Create a new replayer reading a log from a stream.
+	 * 
+	 * @param input The stream to read the log from. It is read completely, but not closed.
+	 * 
+	 * @throws IOException If reading fails or the stream doesn't contain a log.
+	 */
+	public Replayer(InputStream input) throws IOException {
+		this(read(input));
+	}
+	
+	/**
+	 * Create a new replayer reading a log from a file.
+	 * 
+	 * @param file The file to read the log from.
+	 * 
+	 * @throws IOException If reading fails or the file doesn't contain a log.
+	 */
+	public Replayer(File file) throws IOException {
+		this(read(file));
+	}
+	
+	/* Create a new replayer from the bytes of a log. */
+	private Replayer(byte[] bytes) throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(bytes);
+		
+		/* Check header. */
+		if(bytes.length < 5 || header.getInt() != Recorder.MAGIC){
+			throw new IOException("Not a capture log!");
+		}
+		
+		if(header.get() != Recorder.VERSION){
+			throw new IOException("Unsupported capture log version!");
+		}
+		
+		this.log           = Arrays.copyOfRange(bytes, 5, bytes.length);
+		this.listeners     = new CopyOnWriteArrayList<CommandListener>();
+		this.sendListeners = new CopyOnWriteArrayList<CommandListener>();
+	}
+	
+	/* Read a whole stream. */
+	private static byte[] read(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte[]                buffer = new byte[64 * 1024];
+		
+		for(int n; (n = input.read(buffer)) != -1; ){
+			output.write(buffer, 0, n);
+		}
+		
+		return output.toByteArray();
+	}
+	
+	/* Read a whole file. */
+	private static byte[] read(File file) throws IOException {
+		InputStream input = new FileInputStream(file);
+		
+		try{
+			return read(input);
+		}
+		finally{
+			input.close();
+		}
+	}
+	
+	/**
+	 * Add a listener for received commands.
+	 * 
+	 * @param listener A {@link CommandListener}.
+	 */
+	public void addListener(CommandListener listener){
+		this.listeners.add(listener);
+	}
+	
+	/**
+	 * Add a listener for sent commands.
+	 * 
+	 * @param listener A {@link CommandListener}.
+	 */
+	public void addSendListener(CommandListener listener){
+		this.sendListeners.add(listener);
+	}
+	
+	/**
+	 * Replay the log on the calling thread. Payloads are read-only
+	 * views, valid until the listener returns, as with a {@link Protocol}.
+	 * 
+	 * @param speed Factor to speed up the recorded timing by, e.g. 1.0
+	 *              for the recorded speed, or 0 to not wait at all.
+	 * 
+	 * @return The number of commands replayed.
+	 * 
+	 * @throws IOException If the log is truncated or corrupt.
+	 */
+	public int replay(double speed) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(this.log).asReadOnlyBuffer();
+		long       start  = System.nanoTime();
+		long       time   = 0;
+		int        count  = 0;
+		
+		try{
+			while(buffer.hasRemaining()){
+				int direction = buffer.get()      & 0xff;
+				int delay     = buffer.getInt();
+				int command   = buffer.get()      & 0xff;
+				int length    = buffer.getShort() & 0xffff;
+				
+				if(length > buffer.remaining()){
+					throw new IOException("Truncated capture log!");
+				}
+				
+				/* Create a view of the payload. */
+				ByteBuffer payload = buffer.slice();
+				
+				payload.limit(length);
+				
+				buffer.position(buffer.position() + length);
+				
+				/* Wait until the command is due, relative to the start, so delays don't add up. */
+				if(speed > 0){
+					time += delay * 1000L;
+					
+					long wait = start + (long)(time / speed) - System.nanoTime();
+					
+					if(wait > 0){
+						try{
+							Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+						}
+						catch(InterruptedException e){
+							Thread.currentThread().interrupt();
+							
+							return count;
+						}
+					}
+				}
+				
+				/* Fire events. Every listener gets its own view. */
+				List<CommandListener> listeners =
+					(direction == Recorder.DIRECTION_SENT) ? this.sendListeners : this.listeners;
+				
+				for(CommandListener listener : listeners){
+					listener.commandReceived(command, payload.duplicate());
+				}
+				
+				count++;
+			}
+		}
+		catch(BufferUnderflowException e){
+			throw new IOException("Truncated capture log!");
+		}
+		
+		return count;
+	}
+}
@@ -0,0 +1,124 @@
+package de.felixbruns.jotify.protocol;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Round-trip times measured for access points. Used to try the
+ * fastest known servers first on later connects.
+ * 
+ * Times are smoothed like the TCP round-trip time estimate, so a
+ * single slow connect doesn't demote an otherwise fast server.
+ */
+public class ServerStatistics {
+	/* Estimated round-trip time of servers without measurements, in ms. */
+	public static final long DEFAULT_RTT = 500;
+	
+	/* Round-trip time recorded for failed attempts, in ms. */
+	public static final long FAILURE_RTT = 10000;
+	
+	/* Smoothed connect and handshake round-trip times, in ms. */
+	private Map<InetSocketAddress, Long> connectRtts;
+	private Map<InetSocketAddress, Long> handshakeRtts;
+	
+	/**
+	 * Create a new, empty statistics object.
+	 */
+	public ServerStatistics(){
+		this.connectRtts   = new HashMap<InetSocketAddress, Long>();
+		this.handshakeRtts = new HashMap<InetSocketAddress, Long>();
+	}
+	
+	/**
+	 * Record the time a TCP connect to a server took.
+	 * 
+	 * @param server The server.
+	 * @param rtt    The time in ms.
+	 */
+	public synchronized void recordConnect(InetSocketAddress server, long rtt){
+		this.record(this.connectRtts, server, rtt);
+	}
+	
+	/**
+	 * Record the time a server took to respond to the initial packet.
+	 * 
+	 * @param server The server.
+	 * @param rtt    The time in ms.
+	 */
+	public synchronized void recordHandshake(InetSocketAddress server, long rtt){
+		this.record(this.handshakeRtts, server, rtt);
+	}
+	
+	/**
+	 * Record a failed connect or handshake.
+	 * 
+	 * @param server The server.
+	 */
+	public synchronized void recordFailure(InetSocketAddress server){
+		this.record(this.connectRtts, server, FAILURE_RTT);
+	}
+	
+	/**
+	 * Get the estimated time to connect to a server and complete
+	 * the initial handshake with it.
+	 * 
+	 * @param server The server.
+	 * 
+	 * @return The estimated time in ms.
+	 */
+	public synchronized long getEstimate(InetSocketAddress server){
+		Long connect   = this.connectRtts.get(server);
+		Long handshake = this.handshakeRtts.get(server);
+		
+		/* Use default estimate for unknown servers. */
+		if(connect == null && handshake == null){
+			return DEFAULT_RTT;
+		}
+		
+		return (connect != null ? connect : 0) + (handshake != null ? handshake : 0);
+	}
+	
+	/**
+	 * Sort servers by their estimated time, fastest first. Servers
+	 * with equal estimates (e.g. unknown ones) keep their order.
+	 * 
+	 * @param servers A list of servers.
+	 * 
+	 * @return A new, sorted list.
+	 */
+	public List<InetSocketAddress> sort(List<InetSocketAddress> servers){
+		final Map<InetSocketAddress, Long> estimates = new HashMap<InetSocketAddress, Long>();
+		
+		for(InetSocketAddress server : servers){
+			estimates.put(server, this.getEstimate(server));
+		}
+		
+		List<InetSocketAddress> sorted = new ArrayList<InetSocketAddress>(servers);
+		
+		/* Collections.sort is stable. */
+		Collections.sort(sorted, new Comparator<InetSocketAddress>(){
+			public int compare(InetSocketAddress a, InetSocketAddress b){
+				return estimates.get(a).compareTo(estimates.get(b));
+			}
+		});
+		
+		return sorted;
+	}
+	
+	/* Update smoothed value with a gain of 1/8. */
+	private void record(Map<InetSocketAddress, Long> rtts, InetSocketAddress server, long rtt){
+		Long smoothed = rtts.get(server);
+		
+		if(smoothed == null){
+			rtts.put(server, rtt);
+		}
+		else{
+			rtts.put(server, smoothed + (rtt - smoothed) / 8);
+		}
+	}
+}
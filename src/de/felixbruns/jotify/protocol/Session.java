@@ -1,15 +1,20 @@
 package de.felixbruns.jotify.protocol;
 
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.security.interfaces.RSAPublicKey;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.interfaces.DHPublicKey;
 
 import de.felixbruns.jotify.crypto.DH;
 import de.felixbruns.jotify.crypto.Hash;
-import de.felixbruns.jotify.crypto.RSA;
+import de.felixbruns.jotify.crypto.HmacSha1;
+import de.felixbruns.jotify.crypto.KeyPool;
 import de.felixbruns.jotify.crypto.RandomBytes;
 import de.felixbruns.jotify.crypto.Shannon;
 import de.felixbruns.jotify.crypto.DH.*;
@@ -22,6 +27,9 @@ public class Session {
 	/* Spotify protocol to send and receive data. */
 	private Protocol protocol;
 	
+	/* Pool to take key pairs from, also when reauthenticating. */
+	private KeyPool keyPool;
+	
 	/* Client identification */
 	protected int clientId;
 	protected int clientOs;
@@ -94,10 +102,16 @@ public class Session {
 	protected static final int CLIENT_ID       = 0x01040101; /* 0x010B0029 */
 	protected static final int CLIENT_REVISION = 99999;
 	
-	/* Constructor for a new spotify session. */
+	/* Constructor for a new spotify session, using the default key pool. */
 	public Session(){
+		this(KeyPool.getDefault());
+	}
+	
+	/* Constructor for a new spotify session, taking key pairs from a pool. */
+	public Session(KeyPool keyPool){
 		/* Initialize protocol with this session. */
 		this.protocol = new Protocol(this);
+		this.keyPool  = keyPool;
 		
 		/* Set client properties. */
 		this.clientId       = CLIENT_ID;
@@ -125,11 +139,11 @@ public class Session {
 		 * to securely agree on a session key for the Shannon stream
 		 * cipher.
 		 */
-		this.dhClientKeyPair = DH.generateKeyPair(768);
+		this.dhClientKeyPair = keyPool.takeDHKeyPair();
 		this.dhSharedKey     = new byte[96];
 		
-		/* Generate RSA key pair. */
-		this.rsaClientKeyPair = RSA.generateKeyPair(1024);
+		/* Take RSA key pair. */
+		this.rsaClientKeyPair = keyPool.takeRSAKeyPair();
 		
 		/* Allocate buffers for HMAC and Shannon stream cipher keys. */
 		this.keyHmac   = new byte[20];
@@ -163,6 +177,31 @@ public class Session {
 		this.initialServerPacket = null;
 	}
 	
+	/* Set servers to connect to instead of looking them up, or null to use DNS. */
+	public void setServers(List<InetSocketAddress> servers){
+		this.protocol.setServers(servers);
+	}
+	
+	/* Capture decrypted commands with a recorder, or stop capturing if null. */
+	public void setRecorder(Recorder recorder){
+		this.protocol.setRecorder(recorder);
+	}
+	
+	/* Notify channel listeners on an executor or, if null, on the I/O thread. */
+	public void setExecutor(Executor executor){
+		this.protocol.setExecutor(executor);
+	}
+	
+	/* Let channels expire, if they don't end in time. */
+	public void setChannelTimeout(long timeout, TimeUnit unit){
+		this.protocol.setChannelTimeout(timeout, unit);
+	}
+	
+	/* Get round-trip time, traffic and channel metrics of the connection. */
+	public ProtocolMetrics getMetrics(){
+		return this.protocol.getMetrics();
+	}
+	
 	public String getUsername(){
 		return new String(this.username);
 	}
@@ -172,20 +211,41 @@ public class Session {
 	}
 	
 	public Protocol authenticate(String username, String password) throws ConnectionException, AuthenticationException {
-		/* Number of authentication tries. */
-		int tries = 3;
-		
 		/* Set username and password. */
 		this.username = username.getBytes();
 		this.password = password.getBytes();
 		
+		return this.authenticate();
+	}
+	
+	/*
+	 * Authenticate again with the same username and password, after the
+	 * connection was lost. Uses new random bytes and a new DH key pair,
+	 * so the new connection gets new stream cipher keys.
+	 */
+	public Protocol reauthenticate() throws ConnectionException, AuthenticationException {
+		/* Check if we authenticated before. */
+		if(this.username == null || this.password == null){
+			throw new IllegalStateException("Not authenticated yet!");
+		}
+		
+		RandomBytes.randomBytes(this.clientRandom);
+		
+		this.dhClientKeyPair = this.keyPool.takeDHKeyPair();
+		
+		return this.authenticate();
+	}
+	
+	private Protocol authenticate() throws ConnectionException, AuthenticationException {
+		/* Number of authentication tries. */
+		int tries = 3;
+		
 		while(true){
-			/* Connect to a spotify server. */
+			/* Connect to a spotify server and send initial packet. */
 			this.protocol.connect();
 			
-			/* Send and receive initial packets. */
+			/* Receive initial packet. */
 			try{
-				this.protocol.sendInitialPacket();
 				this.protocol.receiveInitialPacket();
 				
 				break;
@@ -227,13 +287,16 @@ public class Session {
 		
 		buffer.get(bytes);
 		
+		/* Key pads of the shared key are only computed once. */
+		HmacSha1 hmacSha1 = new HmacSha1(this.dhSharedKey);
+		
 		/* Run HMAC SHA-1 over message. 5 times. */
 		for(int i = 1; i <= 5; i++){
 			/* Change last byte (53) of message. */
 			bytes[bytes.length - 1] = (byte)i;
 			
 			/* Compute HMAC SHA-1 using the shared key. */
-			Hash.hmacSha1(bytes, this.dhSharedKey, hmac, offset);
+			hmacSha1.hmac(bytes, hmac, offset);
 			
 			/* Overwrite first 20 bytes of message with output from this round. */
 			for(int j = 0; j < 20; j++){
@@ -1,37 +1,77 @@
 package de.felixbruns.jotify.protocol.channel;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
 
-import de.felixbruns.jotify.util.ShortUtilities;
+import de.felixbruns.jotify.util.BufferUtilities;
 
 public class Channel {
-	/* Static channel id counter. */
-	private static int nextId = 0;
-	private static Map<Integer, Channel> channels;
+	/* Listener events. */
+	private static final int EVENT_HEADER = 0;
+	private static final int EVENT_DATA   = 1;
+	private static final int EVENT_END    = 2;
+	private static final int EVENT_ERROR  = 3;
 	
-	static {
-		Channel.channels = new HashMap<Integer, Channel>();
-	}
+	/*
+	 * Channel variables. The state is also changed by the reaper of the
+	 * table (see ChannelTable), transitions go through setState(State).
+	 */
+	private int              id;
+	private String           name;
+	private volatile State   state;
+	private Type             type;
+	private Priority         priority;
+	private int              headerLength;
+	private int              dataLength;
+	private ChannelListener  listener;
+	
+	/* Table this channel is registered with. */
+	private ChannelTable     table;
+	
+	/* Executor the listener is notified on, in order, or null to notify it directly. */
+	private Executor         executor;
+	
+	/* Bytes expected, but not received yet (see ChannelTable). */
+	int                      expected;
+	
+	/* Request that opened this channel, to send it again after a reconnect. */
+	private int              command;
+	private ByteBuffer       request;
+	private boolean          idempotent;
+	
+	/* Set once anything was received and after resuming a substream. */
+	private volatile boolean received;
+	private boolean          resumed;
 	
-	/* Channel variables. */
-	private int             id;
-	private String          name;
-	private State           state;
-	private Type            type;
-	private int             headerLength;
-	private int             dataLength;
-	private ChannelListener listener;
+	/* Time this channel was registered and received its first data, in ns, or 0. */
+	private long             opened;
+	private long             firstByte;
+	
+	/* Time this channel expires, in ns, or 0, and whether it expired (see ChannelTable). */
+	private volatile long    deadline;
+	private volatile boolean expired;
 	
 	public Channel(String name, Type type, ChannelListener listener){
-		this.id           = Channel.nextId++;
-		this.name         = name + "-" + this.id;
+		this.id           = -1;
+		this.name         = name;
 		this.state        = State.STATE_HEADER;
 		this.type         = type;
+		this.priority     = Priority.forType(type);
 		this.headerLength = 0;
 		this.dataLength   = 0;
 		this.listener     = listener;
+		this.table        = null;
+		this.executor     = null;
+		this.expected     = 0;
+		this.command      = -1;
+		this.request      = null;
+		this.idempotent   = false;
+		this.received     = false;
+		this.resumed      = false;
+		this.opened       = 0;
+		this.firstByte    = 0;
+		this.deadline     = 0;
+		this.expired      = false;
 		
 		/* Force data state for AES key channel. */
 		if(this.type.equals(Type.TYPE_AESKEY)){
@@ -39,6 +79,15 @@ public class Channel {
 		}
 	}
 	
+	/* Called by the table when this channel gets registered. */
+	void attach(ChannelTable table, int id, Executor executor){
+		this.table    = table;
+		this.id       = id;
+		this.name     = this.name + "-" + id;
+		this.executor = executor;
+		this.opened   = System.nanoTime();
+	}
+	
 	public int getId(){
 		return this.id;
 	}
@@ -55,6 +104,15 @@ public class Channel {
 		return this.type;
 	}
 	
+	public Priority getPriority(){
+		return this.priority;
+	}
+	
+	/* Set the priority, before sending the request of this channel. */
+	public void setPriority(Priority priority){
+		this.priority = priority;
+	}
+	
 	public int getHeaderLength(){
 		return this.headerLength;
 	}
@@ -63,31 +121,80 @@ public class Channel {
 		return this.dataLength;
 	}
 	
-	public static void register(Channel channel){
-		Channel.channels.put(channel.getId(), channel);
+	public ChannelListener getListener(){
+		return this.listener;
+	}
+	
+	/* Time this channel was registered, in ns (see System.nanoTime()). */
+	public long getOpenTime(){
+		return this.opened;
+	}
+	
+	/* Time this channel received its first data, in ns, or 0. */
+	public long getFirstByteTime(){
+		return this.firstByte;
+	}
+	
+	/* Time this channel expires, in ns, or 0 if it has no deadline. */
+	public long getDeadline(){
+		return this.deadline;
+	}
+	
+	/* Called by the table when a deadline is set. */
+	void setDeadline(long deadline){
+		this.deadline = deadline;
+	}
+	
+	/* Check if this channel failed, because its deadline passed. */
+	public boolean isExpired(){
+		return this.expired;
 	}
 	
-	public static void unregister(int id){
-		Channel.channels.remove(id);
+	public int getCommand(){
+		return this.command;
 	}
 	
-	public static void process(byte[] payload){
-		Channel channel;
-		int     offset         = 0;
-		int     length         = payload.length;
-		int     headerLength   = 0;
-		int     consumedLength = 0;
+	/*
+	 * Remember the request that opened this channel. Only idempotent
+	 * requests are sent again after a reconnect.
+	 */
+	public void setRequest(int command, ByteBuffer request, boolean idempotent){
+		this.command    = command;
+		this.request    = request.duplicate();
+		this.idempotent = idempotent;
+	}
+	
+	/* Unregister this channel from its table, freeing its id. */
+	public void unregister(){
+		if(this.table != null){
+			this.table.unregister(this);
+		}
+	}
+	
+	/* Unregister this channel and tell the server to stop sending (see ChannelTable). */
+	public void abort(){
+		if(this.table != null){
+			this.table.abort(this);
+		}
+	}
+	
+	/*
+	 * Process channel data (without channel id). The payload is only
+	 * read and may be a view into a reusable buffer, listeners get copies.
+	 * The state is updated right away, listeners may be notified later
+	 * (see ChannelTable#setExecutor(Executor)).
+	 */
+	void process(ByteBuffer payload, int offset, int length){
+		int headerLength   = 0;
+		int consumedLength = 0;
 		
-		/* Get Channel by id from payload. */
-		if((channel = Channel.channels.get(ShortUtilities.bytesToUnsignedShort(payload))) == null){
-			/* Just return if channel is not registered. */
-			return;
-		};
+		if(!this.received){
+			this.firstByte = System.nanoTime();
+		}
 		
-		offset += 2;
-		length -= 2;
+		this.received = true;
 		
-		if(channel.state.equals(State.STATE_HEADER)){
+		if(this.state.equals(State.STATE_HEADER)){
 			if(length < 2){
 				System.err.println("Length is smaller than 2!");
 				
@@ -96,7 +203,7 @@ public class Channel {
 			
 			while(consumedLength < length){
 				/* Extract length of next data. */
-				headerLength = ShortUtilities.bytesToUnsignedShort(payload, offset);
+				headerLength = payload.getShort(offset) & 0xFFFF;
 				
 				offset         += 2;
 				consumedLength += 2;
@@ -111,16 +218,17 @@ public class Channel {
 					return;
 				}
 				
-				if(channel.listener != null){
-					channel.listener.channelHeader(channel,
-						Arrays.copyOfRange(payload, offset, offset + headerLength)
-					);
+				/* Listeners already got the headers, if this is a resumed substream. */
+				if(this.listener != null && !this.resumed){
+					this.fire(EVENT_HEADER, BufferUtilities.toBytes(payload, offset, headerLength));
 				}
 				
 				offset         += headerLength;
 				consumedLength += headerLength;
 				
-				channel.headerLength += headerLength;
+				if(!this.resumed){
+					this.headerLength += headerLength;
+				}
 			}
 			
 			if(consumedLength != length){
@@ -131,7 +239,7 @@ public class Channel {
 			
 			/* Upgrade state if this was the last (zero size) header. */
 			if(headerLength == 0){
-				channel.state = State.STATE_DATA;
+				this.setState(State.STATE_DATA);
 			}
 			
 			return;
@@ -143,47 +251,151 @@ public class Channel {
 		 * thus letting the callback routine know this is the last packet.
 		 */
 		if(length == 0){
-			channel.state = State.STATE_END;
-			
-			if(channel.listener != null){
-				channel.listener.channelEnd(channel);
+			if(this.setState(State.STATE_END)){
+				this.fire(EVENT_END, null);
 			}
 		}
 		else{
-			if(channel.listener != null){
-				channel.listener.channelData(channel,
-					Arrays.copyOfRange(payload, offset, offset + length)
-				);
-			}
+			this.fire(EVENT_DATA, BufferUtilities.toBytes(payload, offset, length));
 		}
 		
-		channel.dataLength += length;
+		this.dataLength += length;
 		
 		/* If this is an AES key channel, force end state. */
-		if(channel.type.equals(Type.TYPE_AESKEY)){
-			channel.state = State.STATE_END;
+		if(this.type.equals(Type.TYPE_AESKEY) && this.setState(State.STATE_END)){
+			this.fire(EVENT_END, null);
+		}
+	}
+	
+	/* Notify the listener, on the executor of this channel if there is one. */
+	private void fire(final int event, final byte[] bytes){
+		if(this.executor == null){
+			this.deliver(event, bytes);
 			
-			if(channel.listener != null){
-				channel.listener.channelEnd(channel);
+			return;
+		}
+		
+		this.executor.execute(new Runnable(){
+			public void run(){
+				deliver(event, bytes);
+			}
+		});
+	}
+	
+	/*
+	 * Notify the listener of an event. Data counts as received
+	 * (see ChannelTable) once the listener got it, so data waiting
+	 * for a busy listener limits further substream requests.
+	 */
+	private void deliver(int event, byte[] bytes){
+		if(this.listener != null){
+			switch(event){
+				case EVENT_HEADER: {
+					this.listener.channelHeader(this, bytes);
+					
+					break;
+				}
+				case EVENT_DATA: {
+					this.listener.channelData(this, bytes);
+					
+					break;
+				}
+				case EVENT_END: {
+					this.listener.channelEnd(this);
+					
+					break;
+				}
+				case EVENT_ERROR: {
+					this.listener.channelError(this);
+					
+					break;
+				}
 			}
 		}
+		
+		if(event == EVENT_DATA && this.table != null){
+			this.table.delivered(this, bytes.length);
+		}
 	}
 	
-	public static void error(byte[] payload){
-		Channel channel;
+	/*
+	 * Get a copy of the request of this channel, to send it again on a
+	 * new connection, or null if that isn't safe. Substreams continue
+	 * after the data received so far, so they can't have stopped within
+	 * the headers or a 4-byte word. Other requests are only repeated if
+	 * nothing was received yet, since listeners already got that.
+	 */
+	ByteBuffer replay(){
+		if(this.request == null || !this.idempotent || this.state.equals(State.STATE_ERROR)){
+			return null;
+		}
 		
-		/* Get Channel by id from payload. */
-		if((channel = Channel.channels.get(ShortUtilities.bytesToUnsignedShort(payload))) == null){
-			System.err.println("Channel not found!");
+		if(this.type.equals(Type.TYPE_SUBSTREAM)){
+			if(this.received && !this.resumed && this.state.equals(State.STATE_HEADER)){
+				return null;
+			}
 			
-			return;
-		};
+			if(this.dataLength % 4 != 0){
+				return null;
+			}
+			
+			/* Failed meanwhile, e.g. expired. */
+			if(!this.setState(State.STATE_HEADER)){
+				return null;
+			}
+			
+			/* Skip headers of the new response, if we got them already. */
+			this.resumed = this.resumed || this.received;
+		}
+		else if(this.received){
+			return null;
+		}
 		
-		if(channel.listener != null){
-			channel.listener.channelError(channel);
+		ByteBuffer request = ByteBuffer.allocate(this.request.remaining());
+		
+		request.put(this.request.duplicate());
+		request.flip();
+		
+		return request;
+	}
+	
+	/*
+	 * Called by the table when the deadline passed. Listeners get an error,
+	 * unless the channel ended or failed already. Returns true if it expired.
+	 */
+	boolean expire(){
+		synchronized(this){
+			if(!this.setState(State.STATE_ERROR)){
+				return false;
+			}
+			
+			this.expired = true;
+		}
+		
+		this.fire(EVENT_ERROR, null);
+		
+		return true;
+	}
+	
+	/* Process a channel error, unless the channel ended or failed already. */
+	void error(){
+		if(this.setState(State.STATE_ERROR)){
+			this.fire(EVENT_ERROR, null);
+		}
+	}
+	
+	/*
+	 * Change the state, unless the channel ended or failed already, so
+	 * listeners get either an end or an error, once. Returns true if changed.
+	 */
+	private synchronized boolean setState(State state){
+		if(this.state.equals(State.STATE_END) || this.state.equals(State.STATE_ERROR)){
+			return false;
 		}
 		
-		Channel.channels.remove(channel.getId());
+		this.state = state;
+		
+		return true;
 	}
 	
 	public enum State {
@@ -203,4 +415,28 @@ public class Channel {
 		TYPE_BROWSE,
 		TYPE_PLAYLIST
 	}
+	
+	/*
+	 * Priority classes of channel requests, highest first. Requests are
+	 * sent in this order and bulk substreams are split into slices, so
+	 * metadata doesn't wait behind audio data.
+	 */
+	public enum Priority {
+		PRIORITY_INTERACTIVE,
+		PRIORITY_AESKEY,
+		PRIORITY_PREFETCH,
+		PRIORITY_BULK;
+		
+		/* Default priority of a channel type. */
+		public static Priority forType(Type type){
+			if(type.equals(Type.TYPE_AESKEY)){
+				return PRIORITY_AESKEY;
+			}
+			else if(type.equals(Type.TYPE_SUBSTREAM)){
+				return PRIORITY_PREFETCH;
+			}
+			
+			return PRIORITY_INTERACTIVE;
+		}
+	}
 }
@@ -35,7 +35,7 @@ public class ChannelCallback implements ChannelListener {
 	}
 	
 	public void channelEnd(Channel channel){
-		Channel.unregister(channel.getId());
+		channel.unregister();
 		
 		this.done.release();
 	}
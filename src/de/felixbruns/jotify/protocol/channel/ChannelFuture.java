@@ -0,0 +1,126 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+
+import de.felixbruns.jotify.exceptions.ProtocolException;
+import de.felixbruns.jotify.util.JotifyFuture;
+
+/**
+ * A {@link JotifyFuture} that collects the data of a channel and, once
+ * the channel ends, parses it on an {@link Executor}, so neither the
+ * caller nor the I/O thread is blocked.
+ * 
+ * @param <T> The result type.
+ */
+public abstract class ChannelFuture<T> extends JotifyFuture<T> implements ChannelListener {
+	/* Callback collecting the channel data. */
+	private ChannelCallback callback;
+	
+	/* Executor to parse the data on. */
+	private Executor executor;
+	
+	/* Channel this future receives data on, once known. */
+	private volatile Channel channel;
+	
+	/**
+	 * Create a new channel future.
+	 * 
+	 * @param executor The {@link Executor} to run {@link #parse(byte[])} on.
+	 */
+	public ChannelFuture(Executor executor){
+		this.callback = new ChannelCallback();
+		this.executor = executor;
+		this.channel  = null;
+	}
+	
+	/**
+	 * Parse the data received on the channel.
+	 * 
+	 * @param data The (inflated) channel data.
+	 * 
+	 * @return The result.
+	 * 
+	 * @throws Exception If the data could not be parsed.
+	 */
+	protected abstract T parse(byte[] data) throws Exception;
+	
+	/**
+	 * Cancel this future and abort its channel, so the server stops
+	 * sending. If no data arrived yet, the channel is aborted once it does.
+	 * 
+	 * @param mayInterruptIfRunning Ignored.
+	 * 
+	 * @return true if this future was cancelled, false if it was already done.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning){
+		if(!super.cancel(mayInterruptIfRunning)){
+			return false;
+		}
+		
+		Channel channel = this.channel;
+		
+		if(channel != null){
+			channel.abort();
+		}
+		
+		return true;
+	}
+	
+	public void channelHeader(Channel channel, byte[] header){
+		this.channel = channel;
+		
+		/* Drop the channel, if nobody is interested anymore. */
+		if(this.isCancelled()){
+			channel.abort();
+		}
+	}
+	
+	public void channelData(Channel channel, byte[] data){
+		this.channel = channel;
+		
+		if(this.isCancelled()){
+			channel.abort();
+			
+			return;
+		}
+		
+		this.callback.channelData(channel, data);
+	}
+	
+	public void channelEnd(Channel channel){
+		this.callback.channelEnd(channel);
+		
+		if(this.isCancelled()){
+			return;
+		}
+		
+		/* Parse data on executor. */
+		try{
+			this.executor.execute(new Runnable(){
+				public void run(){
+					try{
+						complete(parse(callback.get()));
+					}
+					catch(Exception e){
+						fail(e);
+					}
+				}
+			});
+		}
+		catch(RuntimeException e){
+			this.fail(e);
+		}
+	}
+	
+	public void channelError(Channel channel){
+		this.callback.channelError(channel);
+		
+		if(channel.isExpired()){
+			this.fail(new TimeoutException("Channel '" + channel.getName() + "' timed out!"));
+		}
+		else{
+			this.fail(new ProtocolException("Channel error on '" + channel.getName() + "'!"));
+		}
+	}
+}
@@ -0,0 +1,545 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.felixbruns.jotify.util.SerialExecutor;
+
+/**
+ * Table of the channels registered on a single connection.
+ * 
+ * Channel ids are 16-bit values, so the table is a fixed array with one
+ * slot per possible id and lookups need neither boxing nor locking. Free
+ * ids are handed out in FIFO order, so an id is only reused after all
+ * other ids were used, which keeps late packets of a finished channel
+ * from reaching a new one.
+ * 
+ * Channel data is parsed on the thread that processes it, usually the
+ * I/O thread. Listeners are notified on that thread too, unless an
+ * executor is set (see {@link #setExecutor(Executor)}).
+ * 
+ * Channels can have a deadline (see {@link #setDeadline(Channel, long, TimeUnit)}),
+ * so channels nobody waits for anymore don't stay registered forever.
+ * A reaper thread shared by all tables expires them.
+ */
+public class ChannelTable {
+	/* Number of possible channel ids. */
+	public static final int SIZE = 0x10000;
+	
+	/* Interval the reaper checks deadlines in, in ms. */
+	private static final long REAP_INTERVAL = 250;
+	
+	/* Thread expiring channels of all tables. */
+	private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(
+		new ThreadFactory(){
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Channel-Reaper-Thread");
+				
+				thread.setDaemon(true);
+				
+				return thread;
+			}
+		}
+	);
+	
+	/* Registered channels, indexed by id. */
+	private AtomicReferenceArray<Channel> channels;
+	
+	/* Ring buffer of free ids. */
+	private int[] free;
+	private int   freeHead;
+	private int   freeCount;
+	
+	/* Number of bytes requested, but not received yet. */
+	private AtomicLong outstanding;
+	
+	/* Scheduler of substream requests, limiting the outstanding bytes. */
+	private CreditScheduler scheduler;
+	
+	/* Executor channel listeners are notified on or null. */
+	private volatile Executor executor;
+	
+	/* Registered channels with a deadline and whether the reaper is scheduled. */
+	private Set<Channel>  deadlines;
+	private AtomicBoolean reaping;
+	
+	/* Number of channels that expired and of packets for unknown channels. */
+	private AtomicLong timeouts;
+	private AtomicLong dropped;
+	
+	/**
+	 * Create a new, empty channel table.
+	 */
+	public ChannelTable(){
+		this.channels    = new AtomicReferenceArray<Channel>(SIZE);
+		this.free        = new int[SIZE];
+		this.freeHead    = 0;
+		this.freeCount   = SIZE;
+		this.outstanding = new AtomicLong(0);
+		this.scheduler   = new CreditScheduler(this);
+		this.executor    = null;
+		this.deadlines   = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+		this.reaping     = new AtomicBoolean(false);
+		this.timeouts    = new AtomicLong(0);
+		this.dropped     = new AtomicLong(0);
+		
+		/* Initially, all ids are free. */
+		for(int i = 0; i < SIZE; i++){
+			this.free[i] = i;
+		}
+	}
+	
+	/**
+	 * Set the executor channel listeners are notified on, so a slow
+	 * listener doesn't hold up the thread that processes channel data.
+	 * Each channel gets its own {@link SerialExecutor} on top of it, so
+	 * the events of a channel stay in order. Applies to channels
+	 * registered afterwards.
+	 * 
+	 * @param executor An {@link Executor} or null to notify listeners
+	 *                 on the processing thread.
+	 */
+	public void setExecutor(Executor executor){
+		this.executor = executor;
+	}
+	
+	/**
+	 * Assign a free id to a channel and register it.
+	 * 
+	 * @param channel The channel to register.
+	 * 
+	 * @return The id of the channel.
+	 * 
+	 * @throws IllegalStateException If all ids are in use.
+	 */
+	public int register(Channel channel){
+		int id;
+		
+		/* Take next free id. */
+		synchronized(this.free){
+			if(this.freeCount == 0){
+				throw new IllegalStateException("No free channel ids left!");
+			}
+			
+			id = this.free[this.freeHead];
+			
+			this.freeHead = (this.freeHead + 1) & (SIZE - 1);
+			this.freeCount--;
+		}
+		
+		Executor executor = this.executor;
+		
+		channel.attach(this, id, (executor != null) ? new SerialExecutor(executor) : null);
+		
+		this.channels.set(id, channel);
+		
+		return id;
+	}
+	
+	/**
+	 * Unregister a channel and free its id. Does nothing if
+	 * the channel is not registered (anymore).
+	 * 
+	 * @param channel The channel to unregister.
+	 * 
+	 * @return true if the channel was unregistered by this call.
+	 */
+	public boolean unregister(Channel channel){
+		int id = channel.getId();
+		
+		/* Only the first unregister frees the id. */
+		if(id < 0 || !this.channels.compareAndSet(id, channel, null)){
+			return false;
+		}
+		
+		synchronized(this.free){
+			this.free[(this.freeHead + this.freeCount) & (SIZE - 1)] = id;
+			this.freeCount++;
+		}
+		
+		if(channel.getDeadline() != 0){
+			this.deadlines.remove(channel);
+		}
+		
+		/* Bytes that didn't arrive are not outstanding anymore. */
+		if(this.consume(channel, Integer.MAX_VALUE) > 0){
+			this.scheduler.released();
+		}
+		
+		this.unregistered(channel);
+		
+		return true;
+	}
+	
+	/**
+	 * Abort a channel nobody is interested in anymore. It is unregistered,
+	 * so late packets are dropped, and, unless it finished already, the
+	 * server is told to stop sending (see {@link #aborted(Channel)}).
+	 * Does nothing if the channel is not registered (anymore).
+	 * 
+	 * @param channel The channel to abort.
+	 */
+	public void abort(Channel channel){
+		Channel.State state = channel.getState();
+		
+		if(this.unregister(channel) && !state.equals(Channel.State.STATE_END) && !state.equals(Channel.State.STATE_ERROR)){
+			this.aborted(channel);
+		}
+	}
+	
+	/**
+	 * Set a deadline for a registered channel. If it didn't end or fail
+	 * until then, it expires: it is unregistered, the server is told to
+	 * stop sending and its listener gets an error (see {@link Channel#isExpired()}).
+	 * 
+	 * @param channel The channel.
+	 * @param timeout Time until the deadline.
+	 * @param unit    Unit of the timeout.
+	 */
+	public void setDeadline(Channel channel, long timeout, TimeUnit unit){
+		channel.setDeadline(System.nanoTime() + unit.toNanos(timeout));
+		
+		this.deadlines.add(channel);
+		
+		/* Unregistered meanwhile. */
+		if(this.get(channel.getId()) != channel){
+			this.deadlines.remove(channel);
+			
+			return;
+		}
+		
+		this.schedule();
+	}
+	
+	/**
+	 * Let a channel expire now, unless it ended or failed already.
+	 * Does nothing if the channel is not registered (anymore).
+	 * 
+	 * @param channel The channel.
+	 */
+	public void expire(Channel channel){
+		if(!this.unregister(channel)){
+			return;
+		}
+		
+		/* Just reclaim channels that ended, but whose listener didn't unregister them. */
+		if(!channel.expire()){
+			return;
+		}
+		
+		this.timeouts.incrementAndGet();
+		
+		this.aborted(channel);
+	}
+	
+	/**
+	 * Get the number of channels that expired.
+	 * 
+	 * @return The number of channels.
+	 */
+	public long getTimeouts(){
+		return this.timeouts.get();
+	}
+	
+	/**
+	 * Get the number of packets dropped, because their channel was
+	 * not registered (anymore), e.g. late packets of expired channels.
+	 * 
+	 * @return The number of packets.
+	 */
+	public long getDropped(){
+		return this.dropped.get();
+	}
+	
+	/* Schedule the reaper, unless it is scheduled already. */
+	private void schedule(){
+		if(this.reaping.compareAndSet(false, true)){
+			REAPER.schedule(new Reaper(this), REAP_INTERVAL, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/* Expire channels whose deadline passed. Returns true if channels with a deadline are left. */
+	private boolean reap(){
+		long now = System.nanoTime();
+		
+		for(Channel channel : this.deadlines){
+			if(now - channel.getDeadline() >= 0){
+				this.expire(channel);
+			}
+		}
+		
+		return !this.deadlines.isEmpty();
+	}
+	
+	/**
+	 * Called after a channel was aborted, to tell the server. Does
+	 * nothing by default, the {@link de.felixbruns.jotify.protocol.Protocol}
+	 * owning the table sends a channel abort command.
+	 * 
+	 * @param channel The aborted (and unregistered) channel.
+	 */
+	protected void aborted(Channel channel){
+		/* No connection to tell. */
+	}
+	
+	/**
+	 * Called after a channel was unregistered, after it ended, failed
+	 * or was aborted. Does nothing by default, the
+	 * {@link de.felixbruns.jotify.protocol.Protocol} owning the table
+	 * updates its metrics.
+	 * 
+	 * @param channel The unregistered channel.
+	 */
+	protected void unregistered(Channel channel){
+		/* Nobody to tell. */
+	}
+	
+	/**
+	 * Add to the number of bytes expected on a channel, e.g.
+	 * the requested length of a substream.
+	 * 
+	 * @param channel The channel.
+	 * @param bytes   Number of bytes expected.
+	 */
+	public void expect(Channel channel, int bytes){
+		synchronized(channel){
+			channel.expected += bytes;
+		}
+		
+		this.outstanding.addAndGet(bytes);
+	}
+	
+	/**
+	 * Get the number of bytes expected on registered
+	 * channels, which were not received yet.
+	 * 
+	 * @return The number of outstanding bytes.
+	 */
+	public long getOutstanding(){
+		return this.outstanding.get();
+	}
+	
+	/**
+	 * Get the scheduler that limits the bytes outstanding
+	 * on substream channels.
+	 * 
+	 * @return The {@link CreditScheduler} of this table.
+	 */
+	public CreditScheduler getScheduler(){
+		return this.scheduler;
+	}
+	
+	/*
+	 * Account received bytes against the bytes expected on a channel.
+	 * Returns the number of bytes that were outstanding.
+	 */
+	private int consume(Channel channel, int bytes){
+		synchronized(channel){
+			bytes = Math.min(bytes, channel.expected);
+			
+			channel.expected -= bytes;
+		}
+		
+		if(bytes > 0){
+			this.outstanding.addAndGet(-bytes);
+		}
+		
+		return bytes;
+	}
+	
+	/**
+	 * Get a registered channel by id.
+	 * 
+	 * @param id The channel id.
+	 * 
+	 * @return A {@link Channel} or null if no channel is registered with that id.
+	 */
+	public Channel get(int id){
+		return this.channels.get(id & (SIZE - 1));
+	}
+	
+	/**
+	 * Get all registered channels.
+	 * 
+	 * @return A {@link List} of {@link Channel} objects, ordered by id.
+	 */
+	public List<Channel> list(){
+		List<Channel> channels = new ArrayList<Channel>();
+		Channel       channel;
+		
+		for(int id = 0; id < SIZE; id++){
+			if((channel = this.channels.get(id)) != null){
+				channels.add(channel);
+			}
+		}
+		
+		return channels;
+	}
+	
+	/**
+	 * Get the number of registered channels.
+	 * 
+	 * @return The number of registered channels.
+	 */
+	public int size(){
+		synchronized(this.free){
+			return SIZE - this.freeCount;
+		}
+	}
+	
+	/**
+	 * Process channel data. The channel id is taken from the first two
+	 * bytes of the payload. Data for unknown channels is dropped.
+	 * 
+	 * @param payload The payload, starting with the channel id.
+	 */
+	public void process(ByteBuffer payload){
+		Channel channel;
+		int     offset = payload.position();
+		int     length = payload.remaining();
+		
+		/* Check length of payload. */
+		if(length < 2){
+			return;
+		}
+		
+		/* Get Channel by id from payload. Just return if it is not registered. */
+		if((channel = this.get(payload.getShort(offset))) == null){
+			this.dropped.incrementAndGet();
+			
+			return;
+		}
+		
+		channel.process(payload, offset + 2, length - 2);
+	}
+	
+	/* Called by a channel when its listener got data. */
+	void delivered(Channel channel, int bytes){
+		/* Give credit to waiting substream requests. */
+		if((bytes = this.consume(channel, bytes)) > 0){
+			this.scheduler.received(bytes);
+		}
+	}
+	
+	/**
+	 * Process a channel error and unregister the channel.
+	 * 
+	 * @param payload The payload, starting with the channel id.
+	 */
+	public void error(ByteBuffer payload){
+		Channel channel;
+		
+		/* Get Channel by id from payload. */
+		if(payload.remaining() < 2 || (channel = this.get(payload.getShort(payload.position()))) == null){
+			System.err.println("Channel not found!");
+			
+			this.dropped.incrementAndGet();
+			
+			return;
+		}
+		
+		this.fail(channel);
+	}
+	
+	/**
+	 * Let a channel fail, as if a channel error was received,
+	 * and unregister it.
+	 * 
+	 * @param channel The channel.
+	 */
+	public void fail(Channel channel){
+		channel.error();
+		
+		this.unregister(channel);
+	}
+	
+	/**
+	 * Let all registered channels and queued substream requests
+	 * fail, that didn't end yet. Used when a connection is lost
+	 * for good.
+	 */
+	public void failAll(){
+		this.scheduler.failAll();
+		
+		for(Channel channel : this.list()){
+			if(!channel.getState().equals(Channel.State.STATE_END)){
+				this.fail(channel);
+			}
+		}
+	}
+	
+	/**
+	 * Get the request of a channel to send it again on a new connection.
+	 * If that isn't safe, the channel fails and null is returned.
+	 * 
+	 * @param channel The channel.
+	 * 
+	 * @return A copy of the request payload or null.
+	 */
+	public ByteBuffer replay(Channel channel){
+		ByteBuffer request = channel.replay();
+		
+		if(request == null){
+			this.fail(channel);
+		}
+		
+		return request;
+	}
+	
+	/*
+	 * Checks the deadlines of a table periodically, while it has channels
+	 * with a deadline. Only keeps a weak reference, so tables of closed
+	 * connections can be collected.
+	 */
+	private static class Reaper implements Runnable {
+		private WeakReference<ChannelTable> table;
+		
+		public Reaper(ChannelTable table){
+			this.table = new WeakReference<ChannelTable>(table);
+		}
+		
+		public void run(){
+			ChannelTable table = this.table.get();
+			
+			if(table == null){
+				return;
+			}
+			
+			try{
+				if(table.reap()){
+					REAPER.schedule(this, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+					
+					return;
+				}
+			}
+			catch(RuntimeException e){
+				/* Don't let a failing listener stop the reaper. */
+				e.printStackTrace();
+				
+				REAPER.schedule(this, REAP_INTERVAL, TimeUnit.MILLISECONDS);
+				
+				return;
+			}
+			
+			table.reaping.set(false);
+			
+			/* A deadline may have been set meanwhile. */
+			if(!table.deadlines.isEmpty()){
+				table.schedule();
+			}
+		}
+	}
+}
@@ -0,0 +1,331 @@
+package de.felixbruns.jotify.protocol.channel;
+
+import java.util.PriorityQueue;
+import java.util.Queue;
+
+import de.felixbruns.jotify.exceptions.ProtocolException;
+
+/**
+ * Limits the number of substream bytes outstanding on a connection, so
+ * parallel downloads don't flood the socket and other requests don't
+ * queue up behind audio data.
+ * 
+ * Requests are sent while the outstanding bytes (see
+ * {@link ChannelTable#getOutstanding()}) are below a window, otherwise
+ * they are queued and sent as data arrives, by priority and then in the
+ * order they were submitted. The window follows
+ * the bandwidth-delay product of the connection: the round-trip time is
+ * measured from requests sent on an idle connection to their first data,
+ * the bandwidth from the rate at which data arrives while requests are
+ * waiting for credit.
+ */
+public class CreditScheduler {
+	/* Bounds and initial value of the window, in bytes. */
+	public static final long MIN_WINDOW     = 256 * 1024;
+	public static final long MAX_WINDOW     = 8 * 1024 * 1024;
+	public static final long INITIAL_WINDOW = 1024 * 1024;
+	
+	/* Factor to multiply the bandwidth-delay product by, to keep the link busy. */
+	private static final int GAIN = 2;
+	
+	/* Minimum length of a bandwidth sample, in ns. */
+	private static final long SAMPLE_INTERVAL = 100 * 1000 * 1000;
+	
+	/* Table with the outstanding bytes of the connection. */
+	private ChannelTable table;
+	
+	/* Requests waiting for credit and number of requests submitted. */
+	private Queue<Request> queue;
+	private long           submitted;
+	
+	/* Bytes of requests being sent, not yet accounted by the table. */
+	private long reserved;
+	
+	/* Current window, in bytes. */
+	private long window;
+	
+	/* Smoothed round-trip time in ns and bandwidth in bytes/s, 0 if unknown. */
+	private long rtt;
+	private long bandwidth;
+	
+	/* Time a request was sent on an idle connection, or 0. */
+	private long idleSent;
+	
+	/* Start of the current bandwidth sample and bytes received since. */
+	private long sampleStart;
+	private long sampleBytes;
+	
+	/**
+	 * Create a new scheduler.
+	 * 
+	 * @param table The table of the connection.
+	 */
+	public CreditScheduler(ChannelTable table){
+		this.table       = table;
+		this.queue       = new PriorityQueue<Request>();
+		this.submitted   = 0;
+		this.reserved    = 0;
+		this.window      = INITIAL_WINDOW;
+		this.rtt         = 0;
+		this.bandwidth   = 0;
+		this.idleSent    = 0;
+		this.sampleStart = 0;
+		this.sampleBytes = 0;
+	}
+	
+	/**
+	 * Send a request now, if there is credit left, or queue it.
+	 * 
+	 * @param request The request.
+	 * 
+	 * @throws ProtocolException If the request was sent right away and sending failed.
+	 */
+	public void submit(Request request) throws ProtocolException {
+		synchronized(this){
+			request.sequence = this.submitted++;
+			
+			/* Keep requests in order. */
+			if(!this.queue.isEmpty() || !this.hasCredit()){
+				this.queue.add(request);
+				
+				return;
+			}
+			
+			this.reserve(request);
+		}
+		
+		try{
+			request.send();
+		}
+		finally{
+			this.unreserve(request);
+			
+			/* Credit may have been released while this request was reserved. */
+			this.drain();
+		}
+	}
+	
+	/**
+	 * Drop a queued request, so it is never sent.
+	 * 
+	 * @param request The request.
+	 * 
+	 * @return true if the request was dropped, false if it was sent already or not submitted.
+	 */
+	public synchronized boolean cancel(Request request){
+		return this.queue.remove(request);
+	}
+	
+	/**
+	 * Let all queued requests fail, e.g. when the connection
+	 * was lost for good.
+	 */
+	public void failAll(){
+		Queue<Request> requests;
+		
+		synchronized(this){
+			requests   = this.queue;
+			this.queue = new PriorityQueue<Request>();
+		}
+		
+		for(Request request : requests){
+			request.fail();
+		}
+	}
+	
+	/**
+	 * Get the current window.
+	 * 
+	 * @return The window in bytes.
+	 */
+	public synchronized long getWindow(){
+		return this.window;
+	}
+	
+	/**
+	 * Get the measured round-trip time.
+	 * 
+	 * @return The round-trip time in ms or 0 if unknown.
+	 */
+	public synchronized long getRtt(){
+		return this.rtt / 1000000;
+	}
+	
+	/**
+	 * Get the measured bandwidth.
+	 * 
+	 * @return The bandwidth in bytes per second or 0 if unknown.
+	 */
+	public synchronized long getBandwidth(){
+		return this.bandwidth;
+	}
+	
+	/**
+	 * Get the number of requests waiting for credit.
+	 * 
+	 * @return The number of queued requests.
+	 */
+	public synchronized int getQueued(){
+		return this.queue.size();
+	}
+	
+	/* Called by the table when data arrived. */
+	void received(int bytes){
+		long now = System.nanoTime();
+		
+		synchronized(this){
+			/* First data after sending on an idle connection. */
+			if(this.idleSent != 0){
+				this.rtt      = smooth(this.rtt, now - this.idleSent);
+				this.idleSent = 0;
+				
+				this.resize();
+			}
+			
+			/*
+			 * Only measure the bandwidth while requests are waiting,
+			 * otherwise the rate is limited by the application.
+			 */
+			if(this.queue.isEmpty()){
+				this.sampleStart = 0;
+			}
+			else if(this.sampleStart == 0){
+				this.sampleStart = now;
+				this.sampleBytes = 0;
+			}
+			else{
+				this.sampleBytes += bytes;
+				
+				if(now - this.sampleStart >= SAMPLE_INTERVAL){
+					long rate = this.sampleBytes * 1000000000L / (now - this.sampleStart);
+					
+					/* Follow increases right away, decreases slowly. */
+					this.bandwidth   = (rate > this.bandwidth) ? rate : smooth(this.bandwidth, rate);
+					this.sampleStart = now;
+					this.sampleBytes = 0;
+					
+					this.resize();
+				}
+			}
+		}
+		
+		this.drain();
+	}
+	
+	/* Called by the table when bytes are not expected anymore. */
+	void released(){
+		this.drain();
+	}
+	
+	/* Send queued requests while there is credit. */
+	private void drain(){
+		Request request;
+		
+		while(true){
+			synchronized(this){
+				if(this.queue.isEmpty() || !this.hasCredit()){
+					return;
+				}
+				
+				request = this.queue.poll();
+				
+				this.reserve(request);
+			}
+			
+			try{
+				request.send();
+			}
+			catch(ProtocolException e){
+				request.fail();
+			}
+			catch(RuntimeException e){
+				request.fail();
+			}
+			finally{
+				this.unreserve(request);
+			}
+		}
+	}
+	
+	/* Check if there is credit left. Must hold lock. */
+	private boolean hasCredit(){
+		return this.table.getOutstanding() + this.reserved < this.window;
+	}
+	
+	/* Reserve credit for a request about to be sent. Must hold lock. */
+	private void reserve(Request request){
+		/* Measure round-trip time, if the connection was idle. */
+		if(this.table.getOutstanding() + this.reserved == 0){
+			this.idleSent = System.nanoTime();
+		}
+		
+		this.reserved += request.length;
+	}
+	
+	/* Give back reserved credit, the table accounts the request after sending. */
+	private synchronized void unreserve(Request request){
+		this.reserved -= request.length;
+	}
+	
+	/* Set window to the bandwidth-delay product. Must hold lock. */
+	private void resize(){
+		if(this.rtt == 0 || this.bandwidth == 0){
+			return;
+		}
+		
+		long bdp = this.bandwidth * this.rtt / 1000000000L;
+		
+		this.window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, GAIN * bdp));
+	}
+	
+	/* Exponentially weighted moving average with a gain of 1/8, like TCP. */
+	private static long smooth(long average, long sample){
+		return (average == 0) ? sample : average + (sample - average) / 8;
+	}
+	
+	/**
+	 * A request waiting for credit.
+	 */
+	public static abstract class Request implements Comparable<Request> {
+		/* Number of bytes requested and priority. */
+		private int              length;
+		private Channel.Priority priority;
+		
+		/* Order of submission, to keep requests of the same priority in order. */
+		private long sequence;
+		
+		/**
+		 * Create a new request.
+		 * 
+		 * @param length   Number of bytes requested.
+		 * @param priority Priority of the request.
+		 */
+		public Request(int length, Channel.Priority priority){
+			this.length   = length;
+			this.priority = priority;
+			this.sequence = 0;
+		}
+		
+		/* Order by priority, then by submission. */
+		public int compareTo(Request other){
+			if(this.priority != other.priority){
+				return this.priority.compareTo(other.priority);
+			}
+			
+			return (this.sequence < other.sequence) ? -1 : ((this.sequence > other.sequence) ? 1 : 0);
+		}
+		
+		/**
+		 * Send the request. Needs to expect the requested bytes on
+		 * the table (see {@link ChannelTable#expect(Channel, int)}).
+		 * 
+		 * @throws ProtocolException If sending fails.
+		 */
+		protected abstract void send() throws ProtocolException;
+		
+		/**
+		 * Notify the requester that the request failed.
+		 */
+		protected abstract void fail();
+	}
+}
@@ -0,0 +1,47 @@
+package de.felixbruns.jotify.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Class providing convenience methods for copying data out of byte buffers.
+ */
+public class BufferUtilities {
+	/**
+	 * Copy the remaining bytes of a buffer into a new byte array.
+	 * The position of the buffer is not changed.
+	 * 
+	 * @param buffer The buffer.
+	 * 
+	 * @return A byte array holding a copy of the remaining bytes.
+	 */
+	public static byte[] toBytes(ByteBuffer buffer){
+		return toBytes(buffer, buffer.position(), buffer.remaining());
+	}
+	
+	/**
+	 * Copy a range of bytes of a buffer into a new byte array.
+	 * The position of the buffer is not changed.
+	 * 
+	 * @param buffer The buffer.
+	 * @param off    The absolute offset in the buffer.
+	 * @param len    The number of bytes to copy.
+	 * 
+	 * @return A byte array with a length of {@code len}.
+	 */
+	public static byte[] toBytes(ByteBuffer buffer, int off, int len){
+		/* Check offset and length. */
+		if(off < 0 || len < 0 || off + len > buffer.limit()){
+			throw new IllegalArgumentException("Not enough bytes in buffer!");
+		}
+		
+		byte[] bytes = new byte[len];
+		
+		/* Use a duplicate, so the position of the buffer stays untouched. */
+		ByteBuffer view = buffer.duplicate();
+		
+		view.position(off);
+		view.get(bytes);
+		
+		return bytes;
+	}
+}
@@ -0,0 +1,11 @@
+package de.felixbruns.jotify.util;
+
+/**
+ * A request that can be cancelled before or while it is processed.
+ */
+public interface Cancellable {
+	/**
+	 * Cancel the request. Does nothing if it is done or was cancelled already.
+	 */
+	public void cancel();
+}
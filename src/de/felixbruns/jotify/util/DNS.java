@@ -1,15 +1,9 @@
 package de.felixbruns.jotify.util;
 
+import java.io.File;
 import java.net.InetSocketAddress;
-import java.util.ArrayList;
 import java.util.List;
 
-import javax.naming.NamingEnumeration;
-import javax.naming.NamingException;
-import javax.naming.directory.Attributes;
-import javax.naming.directory.DirContext;
-import javax.naming.directory.InitialDirContext;
-
 /**
  * Class providing convenience methods for looking up DNS entries.
  * Currently only supports the DNS SRV entry.
@@ -18,54 +12,44 @@ import javax.naming.directory.InitialDirContext;
  */
 public class DNS {
 	/**
-	 * Perform a DNS SRV lookup for the specified name.
+	 * TTL assigned to SRV records, since JNDI doesn't expose it (1 hour).
+	 */
+	public static final long DEFAULT_TTL = 3600;
+	
+	/**
+	 * Cache used for SRV lookups. Persisted to the user's home directory by
+	 * default, since other users could plant answers in a shared directory.
+	 */
+	private static SRVCache cache = new SRVCache(
+		new JNDIResolver(DEFAULT_TTL),
+		new File(System.getProperty("user.home"), ".jotify" + File.separator + "srv.cache")
+	);
+	
+	/**
+	 * Set the cache used for SRV lookups, e.g. to use
+	 * a different {@link SRVResolver} or cache file.
+	 * 
+	 * @param cache A {@link SRVCache}.
+	 */
+	public static synchronized void setCache(SRVCache cache){
+		DNS.cache = cache;
+	}
+	
+	/**
+	 * Perform a DNS SRV lookup for the specified name. Answers
+	 * are cached and ordered by priority and weight.
 	 * 
 	 * @param name The name to lookup.
 	 * 
 	 * @return A {@link List} of {@link InetSocketAddress} objects.
 	 */
 	public static List<InetSocketAddress> lookupSRV(String name){
-		/* Create list to return later. */
-		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		SRVCache cache;
 		
-		/* Perform DNS SRV lookup and fill list with responses. */
-		try{
-			/* Create directory context. */
-			DirContext context = new InitialDirContext();
-			
-			/* Actually perform DNS SRV lookup. */
-			Attributes attributes = context.getAttributes("dns:/" + name, new String[]{"SRV"});
-			
-			/* Enumeration of records. */
-			NamingEnumeration<?> enumeration = null;
-			
-			/* Get all SRV records returned. */
-			if(attributes.get("SRV") != null){
-				enumeration = attributes.get("SRV").getAll();
-			}
-			
-			/* Loop over records, parse them and add them to our list. */
-			while(enumeration != null && enumeration.hasMoreElements()){
-				/* Get record and cast it to a string. */
-				String record = (String)enumeration.nextElement();
-				
-				/* Format: <Priority> <Weight> <Port> <Host> */
-				String[] parts = record.split(" ");
-				
-				/* Create socket adress from host and port. */
-				InetSocketAddress address = new InetSocketAddress(
-					parts[3], Integer.parseInt(parts[2])
-				);
-				
-				/* Add address to list. */
-				addresses.add(address);
-			}
-		}
-		catch(NamingException e){
-			/* Ignore and just return possibly empty list. */
+		synchronized(DNS.class){
+			cache = DNS.cache;
 		}
 		
-		/* Return list of addresses. */
-		return addresses;
+		return cache.lookup(name);
 	}
 }
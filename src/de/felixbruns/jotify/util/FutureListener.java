@@ -0,0 +1,15 @@
+package de.felixbruns.jotify.util;
+
+/**
+ * Listener that is notified once a {@link JotifyFuture} is done.
+ * 
+ * @param <T> The result type.
+ */
+public interface FutureListener<T> {
+	/**
+	 * Called once the future was completed, failed or was cancelled.
+	 * 
+	 * @param future The future.
+	 */
+	public void futureDone(JotifyFuture<T> future);
+}
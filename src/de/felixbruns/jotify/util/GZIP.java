@@ -1,11 +1,13 @@
 package de.felixbruns.jotify.util;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Class providing convenience methods for handling GZIP compressed data.
@@ -78,4 +80,28 @@ public class GZIP {
 		
 		return data;
 	}
+	
+	/**
+	 * Compress a buffer of data using GZIP.
+	 * 
+	 * @param bytes A buffer containing uncompressed data.
+	 * 
+	 * @return A buffer containing GZIP compressed data.
+	 */
+	public static byte[] deflate(byte[] bytes){
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		
+		try{
+			GZIPOutputStream gzipOutputStream = new GZIPOutputStream(byteArrayOutputStream, GZIP.BUFFER_SIZE);
+			
+			gzipOutputStream.write(bytes);
+			gzipOutputStream.close();
+		}
+		catch(IOException e){
+			/* Can't happen when writing to memory. */
+			throw new RuntimeException("Error compressing data!", e);
+		}
+		
+		return byteArrayOutputStream.toByteArray();
+	}
 }
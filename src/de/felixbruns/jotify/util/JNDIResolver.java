@@ -0,0 +1,70 @@
+package de.felixbruns.jotify.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Resolves DNS SRV records using JNDI. The directory context is created
+ * once and reused. JNDI doesn't expose record TTLs, so all records get
+ * the same, configurable TTL.
+ */
+public class JNDIResolver implements SRVResolver {
+	/* Directory context, created on first use. */
+	private DirContext context;
+	
+	/* TTL to assign to records, in seconds. */
+	private long ttl;
+	
+	/**
+	 * Create a new JNDI resolver.
+	 * 
+	 * @param ttl TTL to assign to records, in seconds.
+	 */
+	public JNDIResolver(long ttl){
+		this.context = null;
+		this.ttl     = ttl;
+	}
+	
+	public synchronized List<SRVRecord> resolve(String name) throws IOException {
+		/* Create list to return later. */
+		List<SRVRecord> records = new ArrayList<SRVRecord>();
+		
+		try{
+			/* Create directory context. */
+			if(this.context == null){
+				this.context = new InitialDirContext();
+			}
+			
+			/* Actually perform DNS SRV lookup. */
+			Attributes attributes = this.context.getAttributes("dns:/" + name, new String[]{"SRV"});
+			
+			/* Enumeration of records. */
+			NamingEnumeration<?> enumeration = null;
+			
+			/* Get all SRV records returned. */
+			if(attributes.get("SRV") != null){
+				enumeration = attributes.get("SRV").getAll();
+			}
+			
+			/* Loop over records, parse them and add them to our list. */
+			while(enumeration != null && enumeration.hasMoreElements()){
+				records.add(SRVRecord.parse((String)enumeration.nextElement(), this.ttl));
+			}
+		}
+		catch(NamingException e){
+			throw new IOException("SRV lookup of '" + name + "' failed!", e);
+		}
+		catch(IllegalArgumentException e){
+			throw new IOException("SRV lookup of '" + name + "' failed!", e);
+		}
+		
+		return records;
+	}
+}
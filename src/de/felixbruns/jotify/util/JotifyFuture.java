@@ -0,0 +1,183 @@
+package de.felixbruns.jotify.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link Future} that is completed explicitly and notifies
+ * {@link FutureListener}s once it is done, so callers don't
+ * need to block a thread per outstanding request.
+ * 
+ * @param <T> The result type.
+ */
+public class JotifyFuture<T> implements Future<T> {
+	/* Possible states of a future. */
+	private static final int STATE_PENDING   = 0;
+	private static final int STATE_DONE      = 1;
+	private static final int STATE_FAILED    = 2;
+	private static final int STATE_CANCELLED = 3;
+	
+	/* State, result and failure cause. */
+	private int       state;
+	private T         result;
+	private Throwable cause;
+	
+	/* Latch released once the future is done. */
+	private CountDownLatch done;
+	
+	/* Listeners to notify once the future is done. */
+	private List<FutureListener<T>> listeners;
+	
+	/**
+	 * Create a new, pending future.
+	 */
+	public JotifyFuture(){
+		this.state     = STATE_PENDING;
+		this.result    = null;
+		this.cause     = null;
+		this.done      = new CountDownLatch(1);
+		this.listeners = new ArrayList<FutureListener<T>>();
+	}
+	
+	/**
+	 * Complete this future with a result.
+	 * 
+	 * @param result The result.
+	 * 
+	 * @return true if this future was completed, false if it was already done.
+	 */
+	public boolean complete(T result){
+		synchronized(this){
+			if(this.state != STATE_PENDING){
+				return false;
+			}
+			
+			this.result = result;
+			this.state  = STATE_DONE;
+		}
+		
+		this.finish();
+		
+		return true;
+	}
+	
+	/**
+	 * Complete this future with a failure.
+	 * 
+	 * @param cause The cause of the failure.
+	 * 
+	 * @return true if this future was completed, false if it was already done.
+	 */
+	public boolean fail(Throwable cause){
+		synchronized(this){
+			if(this.state != STATE_PENDING){
+				return false;
+			}
+			
+			this.cause = cause;
+			this.state = STATE_FAILED;
+		}
+		
+		this.finish();
+		
+		return true;
+	}
+	
+	/**
+	 * Cancel this future. Running operations are not interrupted,
+	 * their result is just discarded.
+	 * 
+	 * @param mayInterruptIfRunning Ignored.
+	 * 
+	 * @return true if this future was cancelled, false if it was already done.
+	 */
+	public boolean cancel(boolean mayInterruptIfRunning){
+		synchronized(this){
+			if(this.state != STATE_PENDING){
+				return false;
+			}
+			
+			this.state = STATE_CANCELLED;
+		}
+		
+		this.finish();
+		
+		return true;
+	}
+	
+	/**
+	 * Add a listener that is notified once this future is done. If it
+	 * is already done, the listener is notified immediately on the
+	 * calling thread.
+	 * 
+	 * @param listener The listener to add.
+	 */
+	public void addListener(FutureListener<T> listener){
+		synchronized(this){
+			if(this.state == STATE_PENDING){
+				this.listeners.add(listener);
+				
+				return;
+			}
+		}
+		
+		listener.futureDone(this);
+	}
+	
+	public synchronized boolean isCancelled(){
+		return this.state == STATE_CANCELLED;
+	}
+	
+	public synchronized boolean isDone(){
+		return this.state != STATE_PENDING;
+	}
+	
+	public T get() throws InterruptedException, ExecutionException {
+		this.done.await();
+		
+		return this.getResult();
+	}
+	
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		if(!this.done.await(timeout, unit)){
+			throw new TimeoutException("Timeout while waiting for result.");
+		}
+		
+		return this.getResult();
+	}
+	
+	/* Get result or throw the failure cause. */
+	private synchronized T getResult() throws ExecutionException {
+		if(this.state == STATE_CANCELLED){
+			throw new CancellationException();
+		}
+		
+		if(this.state == STATE_FAILED){
+			throw new ExecutionException(this.cause);
+		}
+		
+		return this.result;
+	}
+	
+	/* Release waiting threads and notify listeners. */
+	private void finish(){
+		List<FutureListener<T>> listeners;
+		
+		synchronized(this){
+			listeners      = this.listeners;
+			this.listeners = null;
+		}
+		
+		this.done.countDown();
+		
+		for(FutureListener<T> listener : listeners){
+			listener.futureDone(this);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package de.felixbruns.jotify.util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of some kind of request, to
+ * estimate percentiles of their distribution.
+ */
+public class LatencyTracker {
+	/* Number of samples kept and needed before estimating percentiles. */
+	public static final int SIZE        = 128;
+	public static final int MIN_SAMPLES = 16;
+	
+	/* Ring of recent samples in ms, next index and number of samples. */
+	private long[] samples;
+	private int    index;
+	private int    count;
+	
+	/**
+	 * Create a new, empty tracker.
+	 */
+	public LatencyTracker(){
+		this.samples = new long[SIZE];
+		this.index   = 0;
+		this.count   = 0;
+	}
+	
+	/**
+	 * Add a latency, replacing the oldest one if the tracker is full.
+	 * 
+	 * @param latency The latency in ms.
+	 */
+	public synchronized void add(long latency){
+		this.samples[this.index] = latency;
+		
+		this.index = (this.index + 1) % SIZE;
+		this.count = Math.min(this.count + 1, SIZE);
+	}
+	
+	/**
+	 * Get a percentile of the recent latencies.
+	 * 
+	 * @param percentile The percentile, between 0.0 and 1.0 (e.g. 0.95).
+	 * 
+	 * @return The latency in ms or -1 if there are not enough samples yet.
+	 */
+	public long percentile(double percentile){
+		long[] sorted;
+		
+		synchronized(this){
+			if(this.count < MIN_SAMPLES){
+				return -1;
+			}
+			
+			sorted = Arrays.copyOf(this.samples, this.count);
+		}
+		
+		Arrays.sort(sorted);
+		
+		/* Nearest rank. */
+		int rank = (int)Math.ceil(percentile * sorted.length) - 1;
+		
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank))];
+	}
+	
+	/**
+	 * Get the number of samples.
+	 * 
+	 * @return The number of samples, at most {@link #SIZE}.
+	 */
+	public synchronized int size(){
+		return this.count;
+	}
+}
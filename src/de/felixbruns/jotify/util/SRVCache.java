@@ -0,0 +1,271 @@
+package de.felixbruns.jotify.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Cache for DNS SRV lookups. Answers are kept until their TTL expires
+ * and are written to a file, so later runs can skip the lookup entirely.
+ * If a lookup fails, the last good answer is used, even if it expired.
+ * 
+ * Addresses are ordered as described in RFC 2782: by priority and,
+ * within the same priority, randomly weighted by the record weights.
+ */
+public class SRVCache {
+	/* Time to use an expired answer after a failed lookup, in ms. */
+	private static final long RETRY_DELAY = 30 * 1000;
+	
+	/* Resolver to query on cache misses. */
+	private SRVResolver resolver;
+	
+	/* File to persist answers to or null. */
+	private File file;
+	
+	/* Cached answers by name. */
+	private Map<String, Entry> entries;
+	
+	/* Random number generator for weighted ordering. */
+	private Random random;
+	
+	/**
+	 * Create a new SRV cache.
+	 * 
+	 * @param resolver The {@link SRVResolver} to query on cache misses.
+	 * @param file     File to persist answers to or null to keep them in memory only.
+	 */
+	public SRVCache(SRVResolver resolver, File file){
+		this.resolver = resolver;
+		this.file     = file;
+		this.entries  = new HashMap<String, Entry>();
+		this.random   = new Random();
+		
+		/* Load answers of previous runs. */
+		if(this.file != null && this.file.exists()){
+			try{
+				this.load();
+			}
+			catch(IOException e){
+				System.err.println("Error loading SRV cache: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Lookup the SRV records of a name, using the cache if possible.
+	 * 
+	 * @param name The name to lookup.
+	 * 
+	 * @return A {@link List} of {@link InetSocketAddress} objects, possibly empty.
+	 */
+	public List<InetSocketAddress> lookup(String name){
+		List<SRVRecord> records = this.lookupRecords(name);
+		
+		/* Create list to return later. */
+		List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+		
+		for(SRVRecord record : this.order(records)){
+			addresses.add(record.toSocketAddress());
+		}
+		
+		return addresses;
+	}
+	
+	/**
+	 * Lookup the SRV records of a name, using the cache if possible.
+	 * 
+	 * @param name The name to lookup.
+	 * 
+	 * @return A {@link List} of {@link SRVRecord} objects, in no specific order.
+	 */
+	public synchronized List<SRVRecord> lookupRecords(String name){
+		Entry entry = this.entries.get(name);
+		long  now   = System.currentTimeMillis();
+		
+		/* Return cached answer, if it didn't expire yet. */
+		if(entry != null && entry.expires > now){
+			return new ArrayList<SRVRecord>(entry.records);
+		}
+		
+		/* Query resolver. */
+		try{
+			List<SRVRecord> records = this.resolver.resolve(name);
+			
+			if(!records.isEmpty()){
+				long ttl = Long.MAX_VALUE;
+				
+				for(SRVRecord record : records){
+					ttl = Math.min(ttl, record.getTtl());
+				}
+				
+				this.entries.put(name, new Entry(records, now + ttl * 1000));
+				
+				this.save();
+				
+				return new ArrayList<SRVRecord>(records);
+			}
+		}
+		catch(IOException e){
+			System.err.println("Error looking up '" + name + "': " + e.getMessage());
+		}
+		
+		/* Fall back to last good answer and don't retry for a while. */
+		if(entry != null){
+			entry.expires = now + RETRY_DELAY;
+			
+			return new ArrayList<SRVRecord>(entry.records);
+		}
+		
+		return new ArrayList<SRVRecord>();
+	}
+	
+	/* Order records by priority and weight (RFC 2782). */
+	private List<SRVRecord> order(List<SRVRecord> records){
+		List<SRVRecord> sorted  = new ArrayList<SRVRecord>(records);
+		List<SRVRecord> ordered = new ArrayList<SRVRecord>();
+		
+		Collections.sort(sorted, new Comparator<SRVRecord>(){
+			public int compare(SRVRecord a, SRVRecord b){
+				return a.getPriority() - b.getPriority();
+			}
+		});
+		
+		/* Process records of the same priority. */
+		for(int i = 0, j; i < sorted.size(); i = j){
+			List<SRVRecord> group = new ArrayList<SRVRecord>();
+			int             sum   = 0;
+			
+			for(j = i; j < sorted.size() && sorted.get(j).getPriority() == sorted.get(i).getPriority(); j++){
+				group.add(sorted.get(j));
+				
+				sum += sorted.get(j).getWeight();
+			}
+			
+			/* Repeatedly pick a record with a probability proportional to its weight. */
+			while(!group.isEmpty()){
+				int pick = (sum > 0) ? this.random.nextInt(sum + 1) : 0;
+				int k    = 0;
+				
+				for(int running = group.get(0).getWeight(); running < pick; running += group.get(++k).getWeight());
+				
+				SRVRecord record = group.remove(k);
+				
+				sum -= record.getWeight();
+				
+				ordered.add(record);
+			}
+		}
+		
+		return ordered;
+	}
+	
+	/* Load answers from file. */
+	private void load() throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+		
+		try{
+			String line;
+			
+			/* Format: <Name> <Expires> <TTL> <Priority> <Weight> <Port> <Host> */
+			while((line = reader.readLine()) != null){
+				String[] parts = line.trim().split("\\s+", 4);
+				
+				if(parts.length != 4){
+					continue;
+				}
+				
+				try{
+					SRVRecord record  = SRVRecord.parse(parts[3], Long.parseLong(parts[2]));
+					long      expires = Long.parseLong(parts[1]);
+					Entry     entry   = this.entries.get(parts[0]);
+					
+					if(entry == null){
+						entry = new Entry(new ArrayList<SRVRecord>(), expires);
+						
+						this.entries.put(parts[0], entry);
+					}
+					
+					entry.records.add(record);
+					entry.expires = Math.min(entry.expires, expires);
+				}
+				catch(IllegalArgumentException e){
+					/* Skip malformed lines. */
+				}
+			}
+		}
+		finally{
+			reader.close();
+		}
+	}
+	
+	/* Save answers to file. */
+	private void save(){
+		if(this.file == null){
+			return;
+		}
+		
+		/* Create directory, e.g. on the first run. */
+		File directory = this.file.getParentFile();
+		
+		if(directory != null){
+			directory.mkdirs();
+		}
+		
+		/* Write to a temporary file first, so readers never see a partial file. */
+		File temporary = new File(this.file.getPath() + ".tmp");
+		
+		try{
+			Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+			
+			try{
+				for(Map.Entry<String, Entry> entry : this.entries.entrySet()){
+					for(SRVRecord record : entry.getValue().records){
+						writer.write(
+							entry.getKey() + " " + entry.getValue().expires + " " +
+							record.getTtl() + " " + record + "\n"
+						);
+					}
+				}
+			}
+			finally{
+				writer.close();
+			}
+			
+			/* Replace old file. */
+			if(!temporary.renameTo(this.file)){
+				this.file.delete();
+				
+				if(!temporary.renameTo(this.file)){
+					throw new IOException("Can't rename '" + temporary + "'.");
+				}
+			}
+		}
+		catch(IOException e){
+			System.err.println("Error saving SRV cache: " + e.getMessage());
+		}
+	}
+	
+	/* Cached answer for a name. */
+	private static class Entry {
+		private List<SRVRecord> records;
+		private long            expires;
+		
+		public Entry(List<SRVRecord> records, long expires){
+			this.records = records;
+			this.expires = expires;
+		}
+	}
+}
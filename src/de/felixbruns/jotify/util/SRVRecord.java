@@ -0,0 +1,93 @@
+package de.felixbruns.jotify.util;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A DNS SRV record.
+ */
+public class SRVRecord {
+	private int    priority;
+	private int    weight;
+	private int    port;
+	private String host;
+	private long   ttl;
+	
+	/**
+	 * Create a new SRV record.
+	 * 
+	 * @param priority Priority, lower values are preferred.
+	 * @param weight   Weight for records with equal priority.
+	 * @param port     Port of the service.
+	 * @param host     Host of the service.
+	 * @param ttl      Time to live in seconds.
+	 */
+	public SRVRecord(int priority, int weight, int port, String host, long ttl){
+		this.priority = priority;
+		this.weight   = weight;
+		this.port     = port;
+		this.host     = host;
+		this.ttl      = ttl;
+	}
+	
+	/**
+	 * Parse a record in the format "&lt;Priority&gt; &lt;Weight&gt; &lt;Port&gt; &lt;Host&gt;".
+	 * 
+	 * @param record The record string.
+	 * @param ttl    Time to live in seconds.
+	 * 
+	 * @return A {@link SRVRecord}.
+	 * 
+	 * @throws IllegalArgumentException If the record is malformed.
+	 */
+	public static SRVRecord parse(String record, long ttl){
+		String[] parts = record.trim().split("\\s+");
+		
+		/* Check number of fields. */
+		if(parts.length != 4){
+			throw new IllegalArgumentException("Malformed SRV record: " + record);
+		}
+		
+		try{
+			return new SRVRecord(
+				Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+				Integer.parseInt(parts[2]), parts[3], ttl
+			);
+		}
+		catch(NumberFormatException e){
+			throw new IllegalArgumentException("Malformed SRV record: " + record, e);
+		}
+	}
+	
+	public int getPriority(){
+		return this.priority;
+	}
+	
+	public int getWeight(){
+		return this.weight;
+	}
+	
+	public int getPort(){
+		return this.port;
+	}
+	
+	public String getHost(){
+		return this.host;
+	}
+	
+	public long getTtl(){
+		return this.ttl;
+	}
+	
+	/**
+	 * Create a socket address from host and port.
+	 * 
+	 * @return An {@link InetSocketAddress}.
+	 */
+	public InetSocketAddress toSocketAddress(){
+		return new InetSocketAddress(this.host, this.port);
+	}
+	
+	public String toString(){
+		return this.priority + " " + this.weight + " " + this.port + " " + this.host;
+	}
+}
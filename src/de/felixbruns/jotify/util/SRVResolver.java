@@ -0,0 +1,20 @@
+package de.felixbruns.jotify.util;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Resolves DNS SRV records, see {@link SRVCache}.
+ */
+public interface SRVResolver {
+	/**
+	 * Query the SRV records of a name.
+	 * 
+	 * @param name The name to lookup.
+	 * 
+	 * @return A {@link List} of {@link SRVRecord} objects, possibly empty.
+	 * 
+	 * @throws IOException If the query failed.
+	 */
+	public List<SRVRecord> resolve(String name) throws IOException;
+}
@@ -0,0 +1,99 @@
+package de.felixbruns.jotify.util;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+/**
+ * An {@link Executor} that runs tasks one at a time, in the order they
+ * were submitted, on the threads of another (shared) executor. Many
+ * serial executors can share one pool, e.g. one per channel, without
+ * tasks of the same serial executor running concurrently.
+ */
+public class SerialExecutor implements Executor {
+	/* Number of tasks to run before giving the thread back, for fairness. */
+	private static final int BATCH_SIZE = 16;
+	
+	/* Executor that tasks are run on. */
+	private Executor executor;
+	
+	/* Tasks waiting to run and whether a task is running or submitted. */
+	private Queue<Runnable> tasks;
+	private boolean         active;
+	
+	/**
+	 * Create a new serial executor.
+	 * 
+	 * @param executor The {@link Executor} to run tasks on.
+	 */
+	public SerialExecutor(Executor executor){
+		this.executor = executor;
+		this.tasks    = new LinkedList<Runnable>();
+		this.active   = false;
+	}
+	
+	/**
+	 * Run a task after all tasks submitted before.
+	 * 
+	 * @param task The task.
+	 */
+	public void execute(Runnable task){
+		synchronized(this){
+			this.tasks.add(task);
+			
+			/* A running task will take care of it. */
+			if(this.active){
+				return;
+			}
+			
+			this.active = true;
+		}
+		
+		this.schedule();
+	}
+	
+	/* Submit a task that runs all queued tasks. */
+	private void schedule(){
+		try{
+			this.executor.execute(new Runnable(){
+				public void run(){
+					drain();
+				}
+			});
+		}
+		catch(RuntimeException e){
+			/* E.g. rejected, let the next task try again. */
+			synchronized(this){
+				this.active = false;
+			}
+			
+			throw e;
+		}
+	}
+	
+	/* Run queued tasks until the queue is empty or a batch is done. */
+	private void drain(){
+		Runnable task;
+		
+		for(int count = 0; count < BATCH_SIZE; count++){
+			synchronized(this){
+				if((task = this.tasks.poll()) == null){
+					this.active = false;
+					
+					return;
+				}
+			}
+			
+			try{
+				task.run();
+			}
+			catch(RuntimeException e){
+				/* Don't let one task stop the others. */
+				e.printStackTrace();
+			}
+		}
+		
+		/* Let other serial executors of the same pool run, then continue. */
+		this.schedule();
+	}
+}